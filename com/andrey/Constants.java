@@ -4,9 +4,85 @@ public final class Constants {
     public static final String TOMBSTONE = "TOMBSTONE";
     public static final String FILE_PREFIX = "sstable-";
     public static final String FILE_SUFFIX = ".db";
-    public static final int DEFAULT_RECORD_LIMIT = 10;
+    public static final String TMP_SUFFIX = ".tmp";
+    public static final String BLOOM_SUFFIX = ".bloom";
+    // Lists the moves of an SSTable ingest while they are under way; see MySSTable.ingest
+    public static final String INGEST_MANIFEST = FILE_PREFIX + "ingest.manifest";
+    // A memtable is flushed once its approximate heap size reaches -Dkvdb.memtable.bytes=...;
+    // -Dkvdb.memtable.maxRecords=... adds a record count limit (0 means none)
+    public static final long DEFAULT_MEMTABLE_BYTES = 4L * 1024 * 1024;
+    public static final int DEFAULT_RECORD_LIMIT = 0;
+    // SKIPLIST or ARENA (off-heap); overridden at startup with -Dkvdb.memtable.type=...
+    public static final String DEFAULT_MEMTABLE_TYPE = "SKIPLIST";
+    // Arena chunks start small and double up to the maximum; larger entries get their own chunk
+    public static final int MEMTABLE_ARENA_MIN_CHUNK = 64 * 1024;
+    public static final int MEMTABLE_ARENA_MAX_CHUNK = 1024 * 1024;
     public static final String DATA_DIR = "data";
-    public static final String WAL_PATH = DATA_DIR + "/wal.log";
+    public static final String WAL_FILE_NAME = "wal.log";
+    public static final String WAL_PATH = DATA_DIR + "/" + WAL_FILE_NAME;
+    // ASYNC, PERIODIC or SYNC; overridden at startup with -Dkvdb.wal.syncMode=...
+    public static final String DEFAULT_WAL_SYNC_MODE = "PERIODIC";
+    public static final long WAL_SYNC_INTERVAL_MS = 100;
+
+    // Size-tiered compaction: merge a run of similarly sized SSTables once it has enough files
+    public static final int COMPACTION_MIN_THRESHOLD = 4;
+    public static final int COMPACTION_MAX_THRESHOLD = 32;
+    public static final double COMPACTION_BUCKET_LOW = 0.5;
+    public static final double COMPACTION_BUCKET_HIGH = 1.5;
+
+    // Target size of an SSTable data block; the sparse index holds one entry per block
+    public static final int SSTABLE_BLOCK_SIZE = 4096;
+    // Map block-format SSTables into memory instead of using positional channel reads
+    public static final boolean SSTABLE_USE_MMAP = true;
+    // NONE or DEFLATE per-block compression for new SSTables; -Dkvdb.sstable.compression=...
+    public static final String DEFAULT_SSTABLE_COMPRESSION = "NONE";
+
+    // Shared block cache; overridden at startup with -Dkvdb.blockCache.bytes=... (0 disables it)
+    public static final long DEFAULT_BLOCK_CACHE_BYTES = 64L * 1024 * 1024;
+    public static final int BLOCK_CACHE_SHARDS = 16;
+
+    // Row cache for values read from SSTables; -Dkvdb.rowCache.bytes=... (0 disables it)
+    public static final long DEFAULT_ROW_CACHE_BYTES = 16L * 1024 * 1024;
+    public static final int ROW_CACHE_SHARDS = 16;
+
+    // HTTP request executor, VIRTUAL or POOL; -Dkvdb.http.executor=... The pool has
+    // -Dkvdb.http.threads=... threads (default per core) and queues up to -Dkvdb.http.queue=...
+    // requests (0 for none) before answering 503
+    public static final String DEFAULT_HTTP_EXECUTOR = "VIRTUAL";
+    public static final int HTTP_THREADS_PER_CORE = 4;
+    public static final int DEFAULT_HTTP_QUEUE_SIZE = 1024;
+
+    // Binary protocol server (MyBinaryServer) port, -Dkvdb.binary.port=... (0 disables it)
+    public static final int DEFAULT_BINARY_PORT = 8081;
+    public static final int BINARY_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    // Connections served at once; -Dkvdb.binary.maxConnections=...
+    public static final int DEFAULT_BINARY_MAX_CONNECTIONS = 1024;
+
+    // Bulk loads buffer about this much heap of input per sorted file or run;
+    // -Dkvdb.bulkLoad.chunkBytes=...
+    public static final long DEFAULT_BULK_LOAD_CHUNK_BYTES = 64L * 1024 * 1024;
+
+    // Sharded engine (MyShardedEngine): -Dkvdb.shards=... hash partitions (1 runs a single
+    // engine), or -Dkvdb.shards.splitPoints=a,b,... for range partitions split at those keys.
+    // Each shard lives in SHARD_DIR_PREFIX + index under the data directory
+    public static final int DEFAULT_SHARD_COUNT = 1;
+    public static final String SHARD_DIR_PREFIX = "shard-";
+    public static final String SHARD_LAYOUT_FILE = "shards.properties";
+
+    // Replication (MyReplicationServer, MyFollower). A leader serves followers on
+    // -Dkvdb.replication.port=... (0 disables it) and keeps up to -Dkvdb.replication.bufferBytes=...
+    // of recent WAL records for them; a follower starts with -Dkvdb.replication.leader=host:port.
+    // A read that asks for a replication position waits up to -Dkvdb.replication.readWaitMillis=...
+    public static final int DEFAULT_REPLICATION_PORT = 0;
+    public static final long DEFAULT_REPLICATION_BUFFER_BYTES = 64L * 1024 * 1024;
+    public static final int REPLICATION_HEARTBEAT_MILLIS = 100;
+    public static final int REPLICATION_RECONNECT_MILLIS = 1000;
+    public static final int REPLICATION_MAX_BATCH_BYTES = 1024 * 1024;
+    public static final long DEFAULT_REPLICATION_READ_WAIT_MILLIS = 1000;
+    public static final String REPLICA_DIR_PREFIX = "replica-";
+
+    // Bloom filter sizing: 10 bits per key gives roughly a 1% false positive rate
+    public static final int BLOOM_BITS_PER_KEY = 10;
     
     private Constants() {} // Prevent instantiation
-} 
\ No newline at end of file
+} 
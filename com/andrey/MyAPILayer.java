@@ -1,38 +1,200 @@
 package com.andrey;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.InputStreamReader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class MyAPILayer {
+    // Set while the dispatcher thread runs an exchange the pool had no room for
+    private static final ThreadLocal<Boolean> REJECTED = ThreadLocal.withInitial(() -> false);
+
+    static {
+        // The JDK server writes a response's headers and body separately; with Nagle's algorithm
+        // on, the body waits for the client's delayed ACK of the headers, adding ~40 ms to every
+        // response with a body on a keep-alive connection. Read once, when the server first starts.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
     private final HttpServer server;
-    private final MyStorageEngine storageEngine;
+    private final MyKeyValueStore storageEngine;
+    private final ExecutorService executor;
+    private final long replicationReadWaitMillis;
+
+    // Selected at startup with -Dkvdb.http.executor=...
+    public enum ExecutorType {
+        // One virtual thread per request (JDK 21+); falls back to POOL on older runtimes
+        VIRTUAL,
+        // Fixed pool of platform threads with a bounded queue; requests beyond it get a 503
+        POOL
+    }
     
     public MyAPILayer(int port) throws IOException {
+        this(port, MyKeyValueStore.open());
+    }
+    
+    public MyAPILayer(int port, MyKeyValueStore storageEngine) throws IOException {
         server = HttpServer.create(new InetSocketAddress(port), 0);
-        storageEngine = new MyStorageEngine();
-        server.createContext("/ping", new PingHandler());
-        server.createContext("/put", new PutHandler());
-        server.createContext("/putbatch", new PutBatchHandler());
-        server.createContext("/get", new GetHandler());
-        server.createContext("/getbatch", new GetBatchHandler());
-        server.createContext("/delete", new DeleteHandler());
-        server.createContext("/shutdown", new ShutdownHandler());
-        server.setExecutor(null);
+        this.storageEngine = storageEngine;
+        executor = newExecutor(
+            ExecutorType.valueOf(System.getProperty("kvdb.http.executor", Constants.DEFAULT_HTTP_EXECUTOR)),
+            Integer.getInteger("kvdb.http.threads",
+                Constants.HTTP_THREADS_PER_CORE * Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("kvdb.http.queue", Constants.DEFAULT_HTTP_QUEUE_SIZE));
+        replicationReadWaitMillis = Long.getLong("kvdb.replication.readWaitMillis",
+            Constants.DEFAULT_REPLICATION_READ_WAIT_MILLIS);
+        addContext("/ping", new PingHandler());
+        addContext("/put", new PutHandler());
+        addContext("/putbatch", new PutBatchHandler());
+        addContext("/get", new GetHandler());
+        addContext("/getbatch", new GetBatchHandler());
+        addContext("/multiget", new MultiGetHandler());
+        addContext("/bulkload", new BulkLoadHandler());
+        addContext("/delete", new DeleteHandler());
+        addContext("/metrics", new MetricsHandler());
+        addContext("/shutdown", new ShutdownHandler());
+        server.setExecutor(executor);
     }
     
     public void start() {
         server.start();
-        System.out.println("Server started on port " + server.getAddress().getPort());
+        System.out.println("Server started on port " + getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // The request executor, for tests that need to see how busy the pool is
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+        storageEngine.gracefulClose();
+    }
+
+    private void addContext(String path, HttpHandler handler) {
+        server.createContext(path, handler).getFilters().add(new ExchangeFilter());
+    }
+
+    static ExecutorService newExecutor(ExecutorType type, int threads, int queueSize) {
+        if (type == ExecutorType.VIRTUAL) {
+            try {
+                // Looked up reflectively so the server still builds and runs on JDK 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads unavailable, using a pool of " + threads + " threads");
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>(),
+            r -> {
+                Thread t = new Thread(r, "http-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            // HttpServer drops a connection whose exchange is rejected, so the dispatcher runs it
+            // itself and ExchangeFilter answers 503 without touching the storage engine
+            (task, pool) -> {
+                REJECTED.set(true);
+                try {
+                    task.run();
+                } finally {
+                    REJECTED.set(false);
+                }
+            });
+    }
+
+    // Turns rejected exchanges into a 503 and writes to a read-only follower into a 403, and
+    // closes every exchange when its handler is done, which drains any unread request body so
+    // the connection can carry the next request
+    static class ExchangeFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            try {
+                if (REJECTED.get()) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    exchange.sendResponseHeaders(503, -1);
+                } else {
+                    chain.doFilter(exchange);
+                }
+            } catch (UnsupportedOperationException e) {
+                byte[] response = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(403, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "503 when overloaded; 403 for writes to a follower; closes every exchange";
+        }
+    }
+
+    // Returns the replication position a write reached, so the writer can read it back from a
+    // follower by passing it in the same header
+    private void setReplicationPosition(HttpExchange exchange) {
+        String position = storageEngine.getReplicationPosition();
+        if (position != null) {
+            exchange.getResponseHeaders().set("X-Replication-Position", position);
+        }
+    }
+
+    // Holds a read until this node has applied X-Replication-Position, and refuses it when the
+    // node trails the leader by more than X-Max-Staleness-Ms. Only a follower ever waits or
+    // refuses. Returns false once it has answered the exchange itself.
+    private boolean awaitFreshness(HttpExchange exchange) throws IOException {
+        String position = exchange.getRequestHeaders().getFirst("X-Replication-Position");
+        String maxStaleness = exchange.getRequestHeaders().getFirst("X-Max-Staleness-Ms");
+        boolean fresh;
+        try {
+            fresh = (position == null
+                    || storageEngine.awaitReplicationPosition(position, replicationReadWaitMillis))
+                && (maxStaleness == null
+                    || storageEngine.getReplicationLagMillis() <= Long.parseLong(maxStaleness));
+        } catch (IllegalArgumentException e) {
+            exchange.sendResponseHeaders(400, -1);
+            return false;
+        }
+        if (!fresh) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.sendResponseHeaders(503, -1);
+        }
+        return fresh;
     }
     
     private static Map<String, String> parseQueryParams(String query) {
@@ -49,6 +211,116 @@ public class MyAPILayer {
         return params;
     }
 
+    // Reads a JSON array of strings, escapes included, so keys may hold commas and quotes
+    static List<String> parseJsonStringArray(String json) {
+        List<String> result = new ArrayList<>();
+        int[] pos = {skipWhitespace(json, 0)};
+        expect(json, pos, '[');
+        if (peek(json, pos) == ']') {
+            pos[0]++;
+        } else {
+            while (true) {
+                result.add(readJsonString(json, pos));
+                char c = peek(json, pos);
+                pos[0]++;
+                if (c == ']') {
+                    break;
+                }
+                if (c != ',') {
+                    throw new IllegalArgumentException("Expected , or ] at " + (pos[0] - 1));
+                }
+            }
+        }
+        if (skipWhitespace(json, pos[0]) != json.length()) {
+            throw new IllegalArgumentException("Trailing characters after the array");
+        }
+        return result;
+    }
+
+    private static String readJsonString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder value = new StringBuilder();
+        int i = pos[0];
+        while (true) {
+            if (i >= json.length()) {
+                throw new IllegalArgumentException("Unterminated string");
+            }
+            char c = json.charAt(i++);
+            if (c == '"') {
+                break;
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i >= json.length()) {
+                throw new IllegalArgumentException("Unterminated escape");
+            }
+            char escaped = json.charAt(i++);
+            switch (escaped) {
+                case '"': case '\\': case '/': value.append(escaped); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (i + 4 > json.length()) {
+                        throw new IllegalArgumentException("Truncated \\u escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid \\u escape", e);
+                    }
+                    i += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid escape \\" + escaped);
+            }
+        }
+        pos[0] = i;
+        return value.toString();
+    }
+
+    // Next non-whitespace character, leaving pos on it
+    private static char peek(String json, int[] pos) {
+        pos[0] = skipWhitespace(json, pos[0]);
+        if (pos[0] >= json.length()) {
+            throw new IllegalArgumentException("Unexpected end of input");
+        }
+        return json.charAt(pos[0]);
+    }
+
+    private static void expect(String json, int[] pos, char expected) {
+        if (peek(json, pos) != expected) {
+            throw new IllegalArgumentException("Expected " + expected + " at " + pos[0]);
+        }
+        pos[0]++;
+    }
+
+    private static int skipWhitespace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    static StringBuilder appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.append('"');
+    }
+
     static class PingHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -60,12 +332,23 @@ public class MyAPILayer {
         }
     }
 
+    class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] response = storageEngine.getMetricsText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        }
+    }
+
     class ShutdownHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             System.out.println("Shutting down...");
-            storageEngine.gracefulClose();
-            server.stop(0);
+            stop();
             System.exit(0);
         }
     }
@@ -91,6 +374,7 @@ public class MyAPILayer {
             }
 
             storageEngine.put(key, value);
+            setReplicationPosition(exchange);
             exchange.sendResponseHeaders(200, -1);
             exchange.close();
         }
@@ -113,6 +397,9 @@ public class MyAPILayer {
                 exchange.sendResponseHeaders(400, -1);
                 return;
             }
+            if (!awaitFreshness(exchange)) {
+                return;
+            }
 
             String value = storageEngine.get(key);
             if (value == null) {
@@ -120,9 +407,10 @@ public class MyAPILayer {
                 return;
             }
 
-            exchange.sendResponseHeaders(200, value.length());
+            byte[] body = value.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
             try (OutputStream os = exchange.getResponseBody()) {
-                os.write(value.getBytes());
+                os.write(body);
             }
         }
     }
@@ -146,6 +434,7 @@ public class MyAPILayer {
             }
 
             storageEngine.delete(key);
+            setReplicationPosition(exchange);
             exchange.sendResponseHeaders(200, -1);
             exchange.close();
         }
@@ -163,38 +452,145 @@ public class MyAPILayer {
                 exchange.getRequestURI().getQuery()
             );
             
+            // Either a prefix or both ends of the range; after is the last key of the previous
+            // page and limit caps the page size
             String keyStart = params.get("keyStart");
             String keyEnd = params.get("keyEnd");
+            String prefix = params.get("prefix");
+            String after = params.get("after");
+            boolean reverse = "true".equals(params.get("reverse"));
+            int limit;
+            try {
+                limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : 0;
+            } catch (NumberFormatException e) {
+                limit = -1;
+            }
             
-            if (keyStart == null || keyEnd == null) {
+            if ((prefix == null && (keyStart == null || keyEnd == null)) || limit < 0) {
                 exchange.sendResponseHeaders(400, -1);
                 return;
             }
 
-            Map<String, String> results = storageEngine.getBatch(keyStart, keyEnd);
-            String response = formatBatchResponse(results);
-            
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(200, response.length());
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(response.getBytes());
+            MyKeyRange range = prefix != null ? MyKeyRange.prefix(prefix) : MyKeyRange.closed(keyStart, keyEnd);
+            if (after != null) {
+                range = range.after(after, reverse);
+            }
+            if (!awaitFreshness(exchange)) {
+                return;
+            }
+            try (MyMergeIterator iterator = storageEngine.scan(range, reverse)) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                // A length of 0 selects chunked transfer encoding, so entries are written as
+                // they come out of the merge instead of being collected first
+                exchange.sendResponseHeaders(200, 0);
+                try (Writer out = new BufferedWriter(
+                        new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                    writeBatchResponse(iterator, limit, out);
+                }
             }
         }
 
-        private String formatBatchResponse(Map<String, String> results) {
-            StringBuilder sb = new StringBuilder();
-            sb.append("{");
+        private void writeBatchResponse(MyMergeIterator iterator, int limit, Writer out) throws IOException {
+            out.write("{");
             boolean first = true;
-            for (Map.Entry<String, String> entry : results.entrySet()) {
+            int count = 0;
+            while ((limit == 0 || count++ < limit) && iterator.next()) {
                 if (!first) {
-                    sb.append(",");
+                    out.write(",");
                 }
-                sb.append("\"").append(entry.getKey()).append("\":\"")
-                  .append(entry.getValue()).append("\"");
+                out.write("\"");
+                out.write(iterator.key());
+                out.write("\":\"");
+                out.write(iterator.value());
+                out.write("\"");
                 first = false;
             }
-            sb.append("}");
-            return sb.toString();
+            out.write("}");
+        }
+    }
+
+    class MultiGetHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String body = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))
+                .lines().collect(Collectors.joining());
+            List<String> keys;
+            try {
+                // Expecting a JSON array of keys: ["key1","key2",...]
+                keys = parseJsonStringArray(body);
+            } catch (IllegalArgumentException e) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            if (!awaitFreshness(exchange)) {
+                return;
+            }
+
+            // Keys that don't exist are left out of the response
+            Map<String, String> values = storageEngine.multiGet(keys);
+            StringBuilder response = new StringBuilder("{");
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (response.length() > 1) {
+                    response.append(",");
+                }
+                appendJsonString(response, entry.getKey()).append(":");
+                appendJsonString(response, entry.getValue());
+            }
+            byte[] bytes = response.append("}").toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    class BulkLoadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            // One "key<TAB>value" pair per line, streamed into the loader as the body arrives
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            Iterator<Map.Entry<String, String>> entries = reader.lines()
+                .filter(line -> !line.isEmpty())
+                .map(line -> {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0) {
+                        throw new IllegalArgumentException("Expected key<TAB>value but got: " + line);
+                    }
+                    return (Map.Entry<String, String>) new AbstractMap.SimpleImmutableEntry<>(
+                        line.substring(0, tab), line.substring(tab + 1));
+                })
+                .iterator();
+            long loaded;
+            try {
+                loaded = storageEngine.bulkLoad(entries);
+            } catch (IllegalArgumentException e) {
+                byte[] response = e.getMessage().getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+                return;
+            }
+
+            byte[] response = String.valueOf(loaded).getBytes(StandardCharsets.UTF_8);
+            setReplicationPosition(exchange);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
         }
     }
 
@@ -209,23 +605,27 @@ public class MyAPILayer {
             String body = new BufferedReader(new InputStreamReader(exchange.getRequestBody()))
                 .lines().collect(Collectors.joining());
             
+            MyWriteBatch batch;
             try {
-                // Expecting JSON format: {"key1":"value1","key2":"value2",...}
-                Map<String, String> entries = parseJsonToMap(body);
-                storageEngine.putBatch(entries);
-                exchange.sendResponseHeaders(200, -1);
+                // Expecting JSON format: {"key1":"value1","key2":null,...}; null deletes the key.
+                // The whole body is applied as one atomic write batch.
+                batch = parseJsonToBatch(body);
             } catch (Exception e) {
                 String response = "Invalid JSON format";
                 exchange.sendResponseHeaders(400, response.length());
                 try (OutputStream os = exchange.getResponseBody()) {
                     os.write(response.getBytes());
                 }
+                return;
             }
+            storageEngine.write(batch);
+            setReplicationPosition(exchange);
+            exchange.sendResponseHeaders(200, -1);
             exchange.close();
         }
 
-        private Map<String, String> parseJsonToMap(String json) {
-            Map<String, String> result = new HashMap<>();
+        private MyWriteBatch parseJsonToBatch(String json) {
+            MyWriteBatch result = new MyWriteBatch();
             // Simple JSON parsing (you might want to use a proper JSON library in production)
             json = json.trim();
             if (!json.startsWith("{") || !json.endsWith("}")) {
@@ -237,8 +637,12 @@ public class MyAPILayer {
                 String[] keyValue = pair.split(":", 2);
                 if (keyValue.length != 2) continue;
                 String key = keyValue[0].trim().replaceAll("\"", "");
-                String value = keyValue[1].trim().replaceAll("\"", "");
-                result.put(key, value);
+                String value = keyValue[1].trim();
+                if ("null".equals(value)) {
+                    result.delete(key);
+                } else {
+                    result.put(key, value.replaceAll("\"", ""));
+                }
             }
             return result;
         }
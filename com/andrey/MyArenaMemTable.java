@@ -0,0 +1,435 @@
+package com.andrey;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Memtable that keeps keys and values in off-heap arenas instead of as Java objects. The
+ * entries form a skiplist whose nodes are laid out in direct ByteBuffer chunks, so a full
+ * memtable is a handful of large buffers rather than millions of small heap objects.
+ *
+ * One writer at a time (put is synchronized) links new nodes and values in with release
+ * stores; readers walk the list without locking. Each node points to its key's versions,
+ * newest first; an overwrite appends a value record and links it into that chain. Arena
+ * memory is never reused and is released with the memtable once it is unreachable.
+ *
+ * Node layout, 8-byte aligned: [long valueAddr][int keyLen][int height][long next * height][key]
+ * Value layout, 8-byte aligned: [long olderAddr][long seq][int valueLen][value]; a valueLen
+ * of -1 marks a tombstone.
+ */
+public class MyArenaMemTable implements MyMemTable {
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final int MAX_HEIGHT = 12;
+    private static final int NODE_HEADER = 16;
+    // Addresses are (chunk index << 32 | offset); the first 8 bytes of chunk 0 are never used
+    private static final long NIL = 0;
+    private static final int VALUE_HEADER = 20;
+
+    private final int recordLimit;
+    private final long byteLimit;
+    private volatile ByteBuffer[] chunks;
+    private volatile int recordCount;
+    private volatile long sizeBytes;
+    // Only touched by the writer
+    private int chunkCount;
+    private int chunkPos;
+    private long head;
+    private int seed = 0x2545F491;
+
+    // A limit of 0 or less is ignored; the memtable is full once either limit is reached
+    public MyArenaMemTable(int recordLimit, long byteLimit) {
+        this.recordLimit = recordLimit;
+        this.byteLimit = byteLimit;
+        init();
+    }
+
+    private void init() {
+        chunks = new ByteBuffer[4];
+        chunkCount = 0;
+        addChunk(Constants.MEMTABLE_ARENA_MIN_CHUNK);
+        chunkPos = 8;
+        sizeBytes = 0;
+        recordCount = 0;
+        // Direct buffers start zeroed, so every next pointer of the head is already NIL
+        head = allocate(NODE_HEADER + 8 * MAX_HEIGHT);
+        buffer(head).putInt(offset(head) + 12, MAX_HEIGHT);
+    }
+
+    @Override
+    public synchronized void put(String key, String value, long seq) {
+        byte[] valueBytes = Constants.TOMBSTONE.equals(value) ? null : value.getBytes(StandardCharsets.UTF_8);
+        insert(key.getBytes(StandardCharsets.UTF_8), writeValue(valueBytes, seq), seq);
+    }
+
+    @Override
+    public String getRaw(String key, long snapshotSeq) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long node = findGreaterOrEqual(keyBytes, null);
+        if (node == NIL || compare(node, keyBytes) != 0) {
+            return null;
+        }
+        return visibleAt(valueAddr(node), snapshotSeq);
+    }
+
+    @Override
+    public boolean isFull() {
+        return (recordLimit > 0 && recordCount >= recordLimit)
+            || (byteLimit > 0 && sizeBytes >= byteLimit);
+    }
+
+    @Override
+    public synchronized void clear() {
+        init();
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return recordCount;
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return recordCount == 0;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(MyKeyRange range, boolean reverse, long snapshotSeq) {
+        return new RangeIterator(range, reverse, snapshotSeq);
+    }
+
+    // Copies key and value bytes straight from the arena; nothing is decoded into Strings
+    @Override
+    public void writeTo(MySSTableWriter writer) throws IOException {
+        for (long node = next(head, 0); node != NIL; node = next(node, 0)) {
+            writer.add(readKey(node), readValueBytes(valueAddr(node)));
+        }
+    }
+
+    private void insert(byte[] key, long valueAddr, long seq) {
+        long[] prev = new long[MAX_HEIGHT];
+        long node = findGreaterOrEqual(key, prev);
+        if (node != NIL && compare(node, key) == 0) {
+            addVersion(node, valueAddr, seq);
+            return;
+        }
+
+        int height = randomHeight();
+        node = allocate(NODE_HEADER + 8 * height + key.length);
+        ByteBuffer buf = buffer(node);
+        int off = offset(node);
+        LONGS.set(buf, off, valueAddr);
+        buf.putInt(off + 8, key.length);
+        buf.putInt(off + 12, height);
+        for (int level = 0; level < height; level++) {
+            LONGS.set(buf, off + NODE_HEADER + 8 * level, next(prev[level], level));
+        }
+        buf.put(off + NODE_HEADER + 8 * height, key);
+        // Publish bottom up, so a reader that reaches the node on any level sees it fully written
+        for (int level = 0; level < height; level++) {
+            setNext(prev[level], level, node);
+        }
+        recordCount = recordCount + 1;
+    }
+
+    // Links a value record into the node's chain, below any version with a higher sequence number
+    private void addVersion(long node, long valueAddr, long seq) {
+        long newer = NIL;
+        long older = valueAddr(node);
+        while (older != NIL && valueSeq(older) > seq) {
+            newer = older;
+            older = olderValue(older);
+        }
+        LONGS.set(buffer(valueAddr), offset(valueAddr), older);
+        if (newer == NIL) {
+            setValueAddr(node, valueAddr);
+        } else {
+            LONGS.setRelease(buffer(newer), offset(newer), valueAddr);
+        }
+    }
+
+    // Returns the first node with a key >= key, filling prev with its predecessor on each level
+    private long findGreaterOrEqual(byte[] key, long[] prev) {
+        long node = head;
+        int level = MAX_HEIGHT - 1;
+        while (true) {
+            long next = next(node, level);
+            if (next != NIL && compare(next, key) < 0) {
+                node = next;
+            } else {
+                if (prev != null) {
+                    prev[level] = node;
+                }
+                if (level == 0) {
+                    return next;
+                }
+                level--;
+            }
+        }
+    }
+
+    // Returns the last node with a key < key, or NIL if there is none
+    private long findLessThan(byte[] key) {
+        long node = head;
+        int level = MAX_HEIGHT - 1;
+        while (true) {
+            long next = next(node, level);
+            if (next != NIL && compare(next, key) < 0) {
+                node = next;
+            } else if (level == 0) {
+                return node == head ? NIL : node;
+            } else {
+                level--;
+            }
+        }
+    }
+
+    private long findLast() {
+        long node = head;
+        int level = MAX_HEIGHT - 1;
+        while (true) {
+            long next = next(node, level);
+            if (next != NIL) {
+                node = next;
+            } else if (level == 0) {
+                return node == head ? NIL : node;
+            } else {
+                level--;
+            }
+        }
+    }
+
+    private int compare(long node, byte[] key) {
+        ByteBuffer buf = buffer(node);
+        int off = offset(node);
+        int keyLen = buf.getInt(off + 8);
+        int keyOff = off + NODE_HEADER + 8 * buf.getInt(off + 12);
+        int n = Math.min(keyLen, key.length);
+        for (int i = 0; i < n; i++) {
+            int a = buf.get(keyOff + i) & 0xFF;
+            int b = key[i] & 0xFF;
+            if (a != b) {
+                return compareLeadBytes(a, b);
+            }
+        }
+        return keyLen - key.length;
+    }
+
+    // UTF-8 byte order is code point order, but keys must sort like String.compareTo, which puts
+    // supplementary characters (lead byte F0-F4) before U+E000-U+FFFF (lead byte EE or EF). Bytes
+    // before the first difference are equal, so both differing bytes sit at the same position
+    // within a character and only a lead byte pair can need swapping.
+    private static int compareLeadBytes(int a, int b) {
+        if (a >= 0xF0 && (b == 0xEE || b == 0xEF)) {
+            return -1;
+        }
+        if (b >= 0xF0 && (a == 0xEE || a == 0xEF)) {
+            return 1;
+        }
+        return a - b;
+    }
+
+    private int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && (nextRandom() & 3) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    private int nextRandom() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return seed;
+    }
+
+    // A null value writes a tombstone; the older pointer is filled in when the record is linked
+    private long writeValue(byte[] value, long seq) {
+        long addr = allocate(VALUE_HEADER + (value == null ? 0 : value.length));
+        ByteBuffer buf = buffer(addr);
+        int off = offset(addr);
+        LONGS.set(buf, off + 8, seq);
+        if (value == null) {
+            buf.putInt(off + 16, -1);
+        } else {
+            buf.putInt(off + 16, value.length);
+            buf.put(off + VALUE_HEADER, value);
+        }
+        return addr;
+    }
+
+    private String visibleAt(long valueAddr, long snapshotSeq) {
+        while (valueAddr != NIL && valueSeq(valueAddr) > snapshotSeq) {
+            valueAddr = olderValue(valueAddr);
+        }
+        if (valueAddr == NIL) {
+            return null;
+        }
+        byte[] value = readValueBytes(valueAddr);
+        return value == null ? Constants.TOMBSTONE : new String(value, StandardCharsets.UTF_8);
+    }
+
+    // Null for a tombstone
+    private byte[] readValueBytes(long valueAddr) {
+        ByteBuffer buf = buffer(valueAddr);
+        int off = offset(valueAddr);
+        int length = buf.getInt(off + 16);
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        buf.get(off + VALUE_HEADER, value);
+        return value;
+    }
+
+    private long valueSeq(long valueAddr) {
+        return (long) LONGS.get(buffer(valueAddr), offset(valueAddr) + 8);
+    }
+
+    private long olderValue(long valueAddr) {
+        return (long) LONGS.getAcquire(buffer(valueAddr), offset(valueAddr));
+    }
+
+    private byte[] readKey(long node) {
+        ByteBuffer buf = buffer(node);
+        int off = offset(node);
+        byte[] key = new byte[buf.getInt(off + 8)];
+        buf.get(off + NODE_HEADER + 8 * buf.getInt(off + 12), key);
+        return key;
+    }
+
+    private long allocate(int size) {
+        size = (size + 7) & ~7;
+        ByteBuffer current = chunks[chunkCount - 1];
+        if (chunkPos + size > current.capacity()) {
+            long grown = Math.min(2L * current.capacity(), Constants.MEMTABLE_ARENA_MAX_CHUNK);
+            addChunk((int) Math.max(grown, size));
+        }
+        long addr = ((long) (chunkCount - 1) << 32) | chunkPos;
+        chunkPos += size;
+        sizeBytes = sizeBytes + size;
+        return addr;
+    }
+
+    // The chunk table is republished through the volatile field before any address in the new
+    // chunk is, so readers always find the chunk an address points into
+    private void addChunk(int capacity) {
+        ByteBuffer[] table = chunks;
+        if (chunkCount == table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[chunkCount++] = ByteBuffer.allocateDirect(capacity);
+        chunks = table;
+        chunkPos = 0;
+    }
+
+    private ByteBuffer buffer(long addr) {
+        return chunks[(int) (addr >>> 32)];
+    }
+
+    private static int offset(long addr) {
+        return (int) addr;
+    }
+
+    private long next(long node, int level) {
+        return (long) LONGS.getAcquire(buffer(node), offset(node) + NODE_HEADER + 8 * level);
+    }
+
+    private void setNext(long node, int level, long next) {
+        LONGS.setRelease(buffer(node), offset(node) + NODE_HEADER + 8 * level, next);
+    }
+
+    private long valueAddr(long node) {
+        return (long) LONGS.getAcquire(buffer(node), offset(node));
+    }
+
+    private void setValueAddr(long node, long valueAddr) {
+        LONGS.setRelease(buffer(node), offset(node), valueAddr);
+    }
+
+    // Forward scans follow level 0; reverse scans search again for the predecessor of each
+    // key, since nodes have no back links. Keys the snapshot cannot see are skipped.
+    private final class RangeIterator implements Iterator<Map.Entry<String, String>> {
+        private final boolean reverse;
+        private final long snapshotSeq;
+        // The bound the scan runs towards, null when open
+        private final byte[] endKey;
+        private final boolean endInclusive;
+        private long node;
+        private Map.Entry<String, String> next;
+
+        RangeIterator(MyKeyRange range, boolean reverse, long snapshotSeq) {
+            this.reverse = reverse;
+            this.snapshotSeq = snapshotSeq;
+            String start = reverse ? range.getUpper() : range.getLower();
+            boolean startInclusive = reverse ? range.isUpperInclusive() : range.isLowerInclusive();
+            String end = reverse ? range.getLower() : range.getUpper();
+            this.endKey = end == null ? null : end.getBytes(StandardCharsets.UTF_8);
+            this.endInclusive = reverse ? range.isLowerInclusive() : range.isUpperInclusive();
+            if (start == null) {
+                node = reverse ? findLast() : MyArenaMemTable.this.next(head, 0);
+                return;
+            }
+            byte[] startKey = start.getBytes(StandardCharsets.UTF_8);
+            node = findGreaterOrEqual(startKey, null);
+            boolean onStart = node != NIL && compare(node, startKey) == 0;
+            if (reverse && !(onStart && startInclusive)) {
+                node = findLessThan(startKey);
+            } else if (!reverse && onStart && !startInclusive) {
+                node = MyArenaMemTable.this.next(node, 0);
+            }
+        }
+
+        private boolean inRange() {
+            if (node == NIL) {
+                return false;
+            }
+            if (endKey == null) {
+                return true;
+            }
+            int comparison = compare(node, endKey);
+            if (reverse) {
+                comparison = -comparison;
+            }
+            return comparison < 0 || (comparison == 0 && endInclusive);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && inRange()) {
+                byte[] key = readKey(node);
+                String value = visibleAt(valueAddr(node), snapshotSeq);
+                if (value != null) {
+                    next = new AbstractMap.SimpleImmutableEntry<>(new String(key, StandardCharsets.UTF_8), value);
+                }
+                node = reverse ? findLessThan(key) : MyArenaMemTable.this.next(node, 0);
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            next = null;
+            return result;
+        }
+    }
+}
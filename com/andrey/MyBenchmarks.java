@@ -0,0 +1,416 @@
+package com.andrey;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Micro-benchmarks for the engine's hot paths, using only the JDK:
+ *
+ *   java com.andrey.MyBenchmarks [name-prefix...]
+ *
+ * Each benchmark runs warmup rounds and then measured rounds of a fixed length, and reports
+ * throughput (mean and spread over the measured rounds) and time per operation. Every
+ * benchmark runs once per key and value size, set with -Dkvdb.bench.keySizes=... and
+ * -Dkvdb.bench.valueSizes=... (comma-separated; defaults 16 and 100,1000). The round length,
+ * round counts and the number of keys are -Dkvdb.bench.roundMillis, .warmupRounds, .rounds
+ * and .keys.
+ *
+ * Every benchmark runs in a JVM of its own, started with the same java binary, classpath and
+ * JVM options, so code compiled for one benchmark, its garbage and its caches can't skew the
+ * next. -Dkvdb.bench.fork=false runs them all in this JVM instead.
+ *
+ * Benchmarks that need files get their own temporary directory, except the engine ones,
+ * which use the data directory and refuse to run if it already holds anything.
+ */
+public class MyBenchmarks {
+    private static final long ROUND_MILLIS = Long.getLong("kvdb.bench.roundMillis", 1000);
+    private static final int WARMUP_ROUNDS = Integer.getInteger("kvdb.bench.warmupRounds", 2);
+    private static final int MEASURED_ROUNDS = Integer.getInteger("kvdb.bench.rounds", 5);
+    private static final int KEY_COUNT = Integer.getInteger("kvdb.bench.keys", 100_000);
+    // Operations between clock reads, so reading the clock doesn't dominate fast operations
+    private static final int OPS_PER_CHECK = 64;
+    private static final boolean FORK = Boolean.parseBoolean(System.getProperty("kvdb.bench.fork", "true"));
+    // First argument of a forked child, followed by the key size, value size and benchmark name
+    private static final String CHILD_FLAG = "--child";
+
+    // Results are folded in here so the JIT can't drop the work that produced them
+    private static long sink;
+    private static long invocation;
+
+    private final String[] prefixes;
+    // Set in a forked child: the one benchmark it runs
+    private final String only;
+    private int measured;
+    private String[] keys;
+    private String[] missingKeys;
+    private String value;
+
+    // One operation; i counts up across all rounds of a benchmark
+    private interface Op {
+        void run(long i) throws Exception;
+    }
+
+    private interface Run {
+        void run() throws Exception;
+    }
+
+    private MyBenchmarks(String[] prefixes, String only) {
+        this.prefixes = prefixes;
+        this.only = only;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals(CHILD_FLAG)) {
+            MyBenchmarks child = new MyBenchmarks(new String[] {args[3]}, args[3]);
+            child.runAll(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            if (child.measured == 0) {
+                System.err.println("Unknown benchmark " + args[3]);
+                System.exit(1);
+            }
+            return;
+        }
+        MyBenchmarks benchmarks = new MyBenchmarks(args, null);
+        boolean failed = false;
+        for (int keySize : sizes("kvdb.bench.keySizes", "16")) {
+            for (int valueSize : sizes("kvdb.bench.valueSizes", "100,1000")) {
+                System.out.println("\n=== key " + keySize + " B, value " + valueSize + " B, "
+                    + KEY_COUNT + " keys ===");
+                if (!FORK) {
+                    benchmarks.runAll(keySize, valueSize);
+                    continue;
+                }
+                for (String name : benchmarks.selectedNames()) {
+                    failed |= !fork(keySize, valueSize, name);
+                }
+            }
+        }
+        if (!FORK) {
+            System.out.println("\n(sink " + sink + ")");
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    // Runs one benchmark in a fresh JVM that prints its own result line
+    private static boolean fork(int keySize, int valueSize, String name) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(MyBenchmarks.class.getName());
+        command.addAll(Arrays.asList(CHILD_FLAG, String.valueOf(keySize), String.valueOf(valueSize), name));
+        int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (exitCode != 0) {
+            System.out.println(name + " failed with exit code " + exitCode);
+        }
+        return exitCode == 0;
+    }
+
+    // Every benchmark runAll can run, in the same order; a child given a name that isn't
+    // there measures nothing and fails, so the two can't drift apart unnoticed
+    private List<String> selectedNames() {
+        List<String> names = new ArrayList<>();
+        for (MyMemTable.Type type : MyMemTable.Type.values()) {
+            String name = "memtable." + type.name().toLowerCase();
+            names.addAll(Arrays.asList(name + ".put", name + ".get.hit", name + ".get.miss"));
+        }
+        for (int files : new int[] {1, Constants.COMPACTION_MIN_THRESHOLD - 1}) {
+            names.add("sstable.get." + files + "files.hit");
+            names.add("sstable.get." + files + "files.miss");
+        }
+        for (MyWriteAheadLog.SyncMode mode : MyWriteAheadLog.SyncMode.values()) {
+            names.add("wal.append." + mode.name().toLowerCase());
+        }
+        names.add("wal.recover");
+        names.addAll(Arrays.asList("engine.get", "engine.put", "engine.getBatch.10", "engine.getBatch.100",
+            "engine.getBatch.1000", "engine.mixed.90read", "engine.mixed.50read"));
+        names.removeIf(name -> prefixes.length > 0 && Stream.of(prefixes).noneMatch(name::startsWith));
+        return names;
+    }
+
+    private static int[] sizes(String property, String defaults) {
+        return Arrays.stream(System.getProperty(property, defaults).split(","))
+            .mapToInt(size -> Integer.parseInt(size.trim())).toArray();
+    }
+
+    private void runAll(int keySize, int valueSize) throws Exception {
+        // Zero-padded so key order is numeric order; a missing key sorts between two present ones
+        keys = new String[KEY_COUNT];
+        missingKeys = new String[KEY_COUNT];
+        String format = "k%0" + Math.max(1, keySize - 2) + "d";
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = String.format(format, i) + "0";
+            missingKeys[i] = String.format(format, i) + "5";
+        }
+        char[] chars = new char[valueSize];
+        for (int i = 0; i < valueSize; i++) {
+            chars[i] = (char) ('a' + i % 26);
+        }
+        value = new String(chars);
+
+        for (MyMemTable.Type type : MyMemTable.Type.values()) {
+            benchMemTable(type);
+        }
+        benchSSTableGet(1);
+        benchSSTableGet(Constants.COMPACTION_MIN_THRESHOLD - 1);
+        for (MyWriteAheadLog.SyncMode mode : MyWriteAheadLog.SyncMode.values()) {
+            benchWalAppend(mode);
+        }
+        benchWalRecovery();
+        benchEngine();
+    }
+
+    private boolean selected(String name) {
+        if (only != null) {
+            // A group is set up only if it holds the benchmark, which then has to match exactly
+            return only.startsWith(name);
+        }
+        return prefixes.length == 0 || Stream.of(prefixes).anyMatch(name::startsWith);
+    }
+
+    private boolean selectedExactly(String name) {
+        return only != null ? only.equals(name) : selected(name);
+    }
+
+    // Spreads i over the key space so consecutive operations don't hit neighbouring keys
+    private static int index(long i) {
+        return (int) Math.floorMod(i * 0x9E3779B97F4A7C15L, (long) KEY_COUNT);
+    }
+
+    private void benchMemTable(MyMemTable.Type type) throws Exception {
+        String name = "memtable." + type.name().toLowerCase();
+        MyMemTable[] table = {null};
+        if (selected(name + ".put")) {
+            // A fresh memtable every KEY_COUNT puts keeps the size (and the arena) bounded
+            measure(name + ".put", i -> {
+                if (i % KEY_COUNT == 0) {
+                    table[0] = MyMemTable.create(type, 0, Long.MAX_VALUE);
+                }
+                table[0].put(keys[(int) (i % KEY_COUNT)], value, i);
+            });
+        }
+        if (selected(name + ".get")) {
+            MyMemTable filled = MyMemTable.create(type, 0, Long.MAX_VALUE);
+            for (int i = 0; i < KEY_COUNT; i++) {
+                filled.put(keys[i], value, i);
+            }
+            measure(name + ".get.hit", i -> sink += filled.getRaw(keys[index(i)]).length());
+            measure(name + ".get.miss", i -> sink += filled.getRaw(missingKeys[index(i)]) == null ? 1 : 0);
+        }
+        table[0] = null;
+    }
+
+    // Key i goes to file i % files, so every file spans the whole key range and a miss has to
+    // be ruled out by every file's Bloom filter
+    private void benchSSTableGet(int files) throws Exception {
+        String name = "sstable.get." + files + "files";
+        if (!selected(name)) {
+            return;
+        }
+        Path dir = Files.createTempDirectory("kvdb-bench");
+        try {
+            for (int file = 0; file < files; file++) {
+                Path path = dir.resolve(Constants.FILE_PREFIX + file + Constants.FILE_SUFFIX);
+                try (MySSTableWriter writer = new MySSTableWriter(path, KEY_COUNT / files + 1)) {
+                    for (int i = file; i < KEY_COUNT; i += files) {
+                        writer.add(keys[i], value);
+                    }
+                    writer.finish();
+                }
+            }
+            MySSTable ssTable = new MySSTable(dir.toString(),
+                new MyBlockCache(Constants.DEFAULT_BLOCK_CACHE_BYTES), MySSTableWriter.Compression.NONE);
+            try {
+                measure(name + ".hit", i -> sink += ssTable.get(keys[index(i)]).length());
+                measure(name + ".miss", i -> sink += ssTable.get(missingKeys[index(i)]) == null ? 1 : 0);
+            } finally {
+                ssTable.close();
+            }
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    private void benchWalAppend(MyWriteAheadLog.SyncMode mode) throws Exception {
+        String name = "wal.append." + mode.name().toLowerCase();
+        if (!selected(name)) {
+            return;
+        }
+        Path dir = Files.createTempDirectory("kvdb-bench");
+        MyWriteAheadLog wal = new MyWriteAheadLog(dir.resolve("wal.log").toString(), mode);
+        try {
+            measure(name, i -> {
+                wal.awaitDurable(wal.appendPut(keys[(int) (i % KEY_COUNT)], value));
+                // Drop old segments now and then, as flushes would, so the log doesn't fill the disk
+                if (i % KEY_COUNT == KEY_COUNT - 1) {
+                    wal.deleteSegmentsUpTo(wal.rotate());
+                }
+            });
+        } finally {
+            wal.gracefulClose();
+            deleteDirectory(dir);
+        }
+    }
+
+    // Replays a log of KEY_COUNT puts; reported per replayed record
+    private void benchWalRecovery() throws Exception {
+        String name = "wal.recover";
+        if (!selected(name)) {
+            return;
+        }
+        Path dir = Files.createTempDirectory("kvdb-bench");
+        String path = dir.resolve("wal.log").toString();
+        try {
+            MyWriteAheadLog wal = new MyWriteAheadLog(path, MyWriteAheadLog.SyncMode.ASYNC);
+            for (int i = 0; i < KEY_COUNT; i++) {
+                wal.appendPut(keys[i], value);
+            }
+            wal.gracefulClose();
+            measureRuns(name, KEY_COUNT, () -> {
+                MyWriteAheadLog reopened = new MyWriteAheadLog(path, MyWriteAheadLog.SyncMode.ASYNC);
+                sink += reopened.recover(entry -> sink += entry.getKey().length());
+                reopened.gracefulClose();
+                // Every open starts an empty segment of its own; drop it so the next run replays the same log
+                for (Path segment : listSegments(dir)) {
+                    if (Files.size(segment) <= 5) {
+                        Files.delete(segment);
+                    }
+                }
+            });
+        } finally {
+            deleteDirectory(dir);
+        }
+    }
+
+    private void benchEngine() throws Exception {
+        if (!selected("engine")) {
+            return;
+        }
+        Path dataDir = Paths.get(Constants.DATA_DIR);
+        if (Files.isDirectory(dataDir)) {
+            try (Stream<Path> existing = Files.list(dataDir)) {
+                if (existing.findAny().isPresent()) {
+                    System.out.println("Skipping engine benchmarks: " + dataDir.toAbsolutePath() + " is not empty");
+                    return;
+                }
+            }
+        }
+        MyStorageEngine engine = new MyStorageEngine();
+        try {
+            Iterator<Map.Entry<String, String>> entries = Stream.of(keys)
+                .map(key -> (Map.Entry<String, String>) new AbstractMap.SimpleImmutableEntry<>(key, value))
+                .iterator();
+            engine.bulkLoad(entries);
+            measure("engine.get", i -> sink += engine.get(keys[index(i)]).length());
+            measure("engine.put", i -> engine.put(keys[index(i)], value));
+            for (int size : new int[] {10, 100, 1000}) {
+                measure("engine.getBatch." + size, i -> {
+                    int start = index(i) % (KEY_COUNT - size);
+                    sink += engine.getBatch(keys[start], keys[start + size - 1]).size();
+                }, size);
+            }
+            // 90% reads and 10% writes, then an even split
+            for (int readPercent : new int[] {90, 50}) {
+                measure("engine.mixed." + readPercent + "read", i -> {
+                    int key = index(i);
+                    if (Math.floorMod(i * 31, 100) < readPercent) {
+                        String found = engine.get(keys[key]);
+                        sink += found == null ? 0 : found.length();
+                    } else {
+                        engine.put(keys[key], value);
+                    }
+                });
+            }
+        } finally {
+            engine.gracefulClose();
+            engine.cleanup();
+        }
+    }
+
+    private void measure(String name, Op op) throws Exception {
+        measure(name, op, 1);
+    }
+
+    // itemsPerOp scales the reported throughput, e.g. to keys per second for a range read
+    private void measure(String name, Op op, int itemsPerOp) throws Exception {
+        if (!selectedExactly(name)) {
+            return;
+        }
+        measured++;
+        invocation = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            runRound(op);
+        }
+        double[] rates = new double[MEASURED_ROUNDS];
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            rates[round] = runRound(op);
+        }
+        report(name, rates, itemsPerOp);
+    }
+
+    private static void report(String name, double[] rates, int itemsPerOp) {
+        double mean = Arrays.stream(rates).average().orElse(0);
+        double variance = Arrays.stream(rates).map(rate -> (rate - mean) * (rate - mean)).sum()
+            / Math.max(1, rates.length - 1);
+        System.out.printf("%-36s %14.0f items/s +- %5.1f%%  %12.1f ns/op%n", name, mean * itemsPerOp,
+            mean > 0 ? 100 * Math.sqrt(variance) / mean : 0, mean > 0 ? 1e9 / mean : 0);
+    }
+
+    // For operations too slow to repeat within a round: times whole runs, each processing items
+    private void measureRuns(String name, int items, Run run) throws Exception {
+        if (!selectedExactly(name)) {
+            return;
+        }
+        measured++;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run.run();
+        }
+        double[] rates = new double[MEASURED_ROUNDS];
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long start = System.nanoTime();
+            run.run();
+            rates[round] = items * 1e9 / (System.nanoTime() - start);
+        }
+        report(name, rates, 1);
+    }
+
+    // Operations per second over one round
+    private static double runRound(Op op) throws Exception {
+        long start = System.nanoTime();
+        long deadline = start + ROUND_MILLIS * 1_000_000;
+        long ops = 0;
+        long now;
+        do {
+            for (int k = 0; k < OPS_PER_CHECK; k++) {
+                op.run(invocation++);
+            }
+            ops += OPS_PER_CHECK;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return ops * 1e9 / (now - start);
+    }
+
+    private static Path[] listSegments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("wal.log.")).toArray(Path[]::new);
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
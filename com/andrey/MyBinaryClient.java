@@ -0,0 +1,138 @@
+package com.andrey;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client for {@link MyBinaryServer}. The single-key methods send one frame and wait for its
+ * answer. To pipeline, {@link #send} any number of batches, {@link #flush}, and then
+ * {@link #receive} their results in the order they were sent. A connection is not thread-safe.
+ */
+public class MyBinaryClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    // Request ids of frames sent but not yet received, oldest first
+    private final ArrayDeque<Integer> outstanding = new ArrayDeque<>();
+    private int nextRequestId;
+
+    public MyBinaryClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), MyBinaryServer.BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), MyBinaryServer.BUFFER_SIZE));
+    }
+
+    public void put(String key, String value) throws IOException {
+        execute(new Batch().put(key, value));
+    }
+
+    // Returns null if the key does not exist
+    public String get(String key) throws IOException {
+        return execute(new Batch().get(key)).get(0);
+    }
+
+    public void delete(String key) throws IOException {
+        execute(new Batch().delete(key));
+    }
+
+    public List<String> execute(Batch batch) throws IOException {
+        send(batch);
+        flush();
+        return receive();
+    }
+
+    // Buffers the batch as one frame; nothing is written to the socket before flush() or a full buffer
+    public void send(Batch batch) throws IOException {
+        byte[] ops = batch.ops.toByteArray();
+        int requestId = nextRequestId++;
+        out.writeInt(4 + 2 + ops.length);
+        out.writeInt(requestId);
+        out.writeShort(batch.size);
+        out.write(ops);
+        outstanding.add(requestId);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // Results of the oldest outstanding batch, one per operation: the value for a get (null if
+    // not found) and null for a put or delete. Throws if any operation failed on the server.
+    public List<String> receive() throws IOException {
+        Integer expected = outstanding.poll();
+        if (expected == null) {
+            throw new IllegalStateException("No outstanding requests");
+        }
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        ByteBuffer response = ByteBuffer.wrap(frame);
+        int requestId = response.getInt();
+        if (requestId != expected) {
+            throw new IOException("Expected response " + expected + " but got " + requestId);
+        }
+        int opCount = response.getShort() & 0xFFFF;
+        List<String> results = new ArrayList<>(opCount);
+        String error = null;
+        for (int i = 0; i < opCount; i++) {
+            byte status = response.get();
+            if (status == MyBinaryServer.STATUS_VALUE) {
+                results.add(MyBinaryServer.readString(response));
+            } else if (status == MyBinaryServer.STATUS_OK || status == MyBinaryServer.STATUS_NOT_FOUND) {
+                results.add(null);
+            } else {
+                String message = MyBinaryServer.readString(response);
+                error = error == null ? message : error;
+                results.add(null);
+            }
+        }
+        if (error != null) {
+            throw new IOException("Server error: " + error);
+        }
+        return results;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    // Operations sent together in one frame and run in order
+    public static class Batch {
+        private final ByteArrayOutputStream ops = new ByteArrayOutputStream();
+        private final DataOutputStream data = new DataOutputStream(ops);
+        private int size;
+
+        public Batch put(String key, String value) throws IOException {
+            add(MyBinaryServer.OP_PUT, key);
+            MyBinaryServer.writeString(data, value);
+            return this;
+        }
+
+        public Batch get(String key) throws IOException {
+            return add(MyBinaryServer.OP_GET, key);
+        }
+
+        public Batch delete(String key) throws IOException {
+            return add(MyBinaryServer.OP_DELETE, key);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private Batch add(byte op, String key) throws IOException {
+            if (size == 0xFFFF) {
+                throw new IllegalStateException("A batch holds at most " + 0xFFFF + " operations");
+            }
+            data.writeByte(op);
+            MyBinaryServer.writeString(data, key);
+            size++;
+            return this;
+        }
+    }
+}
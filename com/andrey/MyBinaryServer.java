@@ -0,0 +1,233 @@
+package com.andrey;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Binary front end to the storage engine for internal clients ({@link MyBinaryClient}).
+ *
+ * Every message is a frame of [int length][body]. A request body is
+ * [int requestId][short opCount] followed by opCount operations of [byte op][string key], plus
+ * [string value] for a put; strings are [int byteLength][UTF-8 bytes]. The response body is
+ * [int requestId][short opCount] followed by one [byte status] per operation: OK for a write,
+ * VALUE and [string value] for a get that found its key, NOT_FOUND, or ERROR and
+ * [string message].
+ *
+ * The operations in a frame run in order. A client may pipeline frames without waiting for
+ * answers; each connection answers its frames in the order they arrive, and answers to frames
+ * that are already buffered are sent together. A malformed frame, including one with an
+ * unknown operation, closes the connection after the answers to earlier frames and before any
+ * of its own operations run, so every operation the client got no answer for was not applied.
+ *
+ * At most -Dkvdb.binary.maxConnections connections are served at once; one more is closed as
+ * soon as it is accepted.
+ */
+public class MyBinaryServer {
+    static final byte OP_PUT = 1;
+    static final byte OP_GET = 2;
+    static final byte OP_DELETE = 3;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+    static final byte STATUS_ERROR = 2;
+    static final byte STATUS_VALUE = 3;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final MyKeyValueStore storageEngine;
+    private final ExecutorService executor;
+    private final int maxConnections;
+    // One permit per connection being served, so the fallback pool never grows past the limit
+    private final Semaphore connectionPermits;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Thread acceptThread;
+    private volatile boolean closed;
+
+    public MyBinaryServer(int port, MyKeyValueStore storageEngine) throws IOException {
+        this.storageEngine = storageEngine;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        this.executor = newConnectionExecutor();
+        this.maxConnections = Integer.getInteger("kvdb.binary.maxConnections",
+            Constants.DEFAULT_BINARY_MAX_CONNECTIONS);
+        this.connectionPermits = new Semaphore(maxConnections);
+        this.acceptThread = new Thread(this::acceptLoop, "binary-acceptor");
+        acceptThread.setDaemon(true);
+    }
+
+    public void start() {
+        acceptThread.start();
+        System.out.println("Binary protocol server started on port " + getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Stops accepting and drops open connections; the storage engine is left open
+    public void stop() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close binary server socket: " + e.getMessage());
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed by its connection thread
+            }
+        }
+        executor.shutdown();
+    }
+
+    // One thread per connection: a virtual thread on JDK 21+, a platform thread otherwise. The
+    // connection limit bounds the platform threads, since idle ones are reused first.
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "binary-connection-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!connectionPermits.tryAcquire()) {
+                    System.err.println("Binary server refused a connection: " + maxConnections + " already open");
+                    socket.close();
+                    continue;
+                }
+                connections.add(socket);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Binary server failed to accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+            socket.setTcpNoDelay(true);
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 6 || length > Constants.BINARY_MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                byte[] response = handleFrame(ByteBuffer.wrap(frame));
+                out.writeInt(response.length);
+                out.write(response);
+                // Hold the answer back while more pipelined frames are already buffered
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            if (!closed) {
+                System.err.println("Binary connection closed: " + e);
+            }
+        } finally {
+            connections.remove(socket);
+            connectionPermits.release();
+        }
+    }
+
+    private byte[] handleFrame(ByteBuffer frame) throws IOException {
+        int requestId = frame.getInt();
+        int opCount = frame.getShort() & 0xFFFF;
+        // The whole frame is read and checked first, so a malformed one runs none of its operations
+        byte[] ops = new byte[opCount];
+        String[] keys = new String[opCount];
+        String[] values = new String[opCount];
+        for (int i = 0; i < opCount; i++) {
+            ops[i] = frame.get();
+            if (ops[i] != OP_PUT && ops[i] != OP_GET && ops[i] != OP_DELETE) {
+                throw new IOException("Unknown operation " + ops[i]);
+            }
+            keys[i] = readString(frame);
+            values[i] = ops[i] == OP_PUT ? readString(frame) : null;
+        }
+        if (frame.hasRemaining()) {
+            throw new IOException("Trailing bytes after " + opCount + " operations");
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream response = new DataOutputStream(bytes);
+        response.writeInt(requestId);
+        response.writeShort(opCount);
+        for (int i = 0; i < opCount; i++) {
+            String key = keys[i];
+            String value = values[i];
+            try {
+                switch (ops[i]) {
+                    case OP_PUT:
+                        storageEngine.put(key, value);
+                        response.writeByte(STATUS_OK);
+                        break;
+                    case OP_GET:
+                        value = storageEngine.get(key);
+                        if (value == null) {
+                            response.writeByte(STATUS_NOT_FOUND);
+                        } else {
+                            response.writeByte(STATUS_VALUE);
+                            writeString(response, value);
+                        }
+                        break;
+                    case OP_DELETE:
+                        storageEngine.delete(key);
+                        response.writeByte(STATUS_OK);
+                        break;
+                }
+            } catch (RuntimeException e) {
+                response.writeByte(STATUS_ERROR);
+                writeString(response, String.valueOf(e.getMessage()));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,179 @@
+package com.andrey;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-bounded cache of SSTable data blocks shared by every reader, keyed by
+ * (reader file id, block index). The cache is split into shards, each with its own
+ * CLOCK ring: hits only set a reference bit and never take a lock, inserts and
+ * evictions lock a single shard.
+ */
+public class MyBlockCache {
+    // Rough per-entry bookkeeping cost (key, entry, map node, buffer header)
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Shard[] shards;
+    private final long capacityBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MyBlockCache(long capacityBytes) {
+        this(capacityBytes, Constants.BLOCK_CACHE_SHARDS);
+    }
+
+    public MyBlockCache(long capacityBytes, int numShards) {
+        this.capacityBytes = capacityBytes;
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard(Math.max(1, capacityBytes / numShards));
+        }
+    }
+
+    // Returns a private view of the cached block, or null on a miss
+    public ByteBuffer get(long fileId, int blockIndex) {
+        BlockKey key = new BlockKey(fileId, blockIndex);
+        Entry entry = shardFor(key).map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.block.duplicate();
+    }
+
+    // The cache keeps the buffer; callers must not modify it afterwards
+    public void put(long fileId, int blockIndex, ByteBuffer block) {
+        BlockKey key = new BlockKey(fileId, blockIndex);
+        shardFor(key).put(key, new Entry(key, block.asReadOnlyBuffer()));
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Shard shard : shards) {
+            used += shard.usedBytes;
+        }
+        return used;
+    }
+
+    private Shard shardFor(BlockKey key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    private class Shard {
+        private final long capacityBytes;
+        private final ConcurrentHashMap<BlockKey, Entry> map = new ConcurrentHashMap<>();
+        private final List<Entry> ring = new ArrayList<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private int hand;
+        private volatile long usedBytes;
+
+        Shard(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+        }
+
+        void put(BlockKey key, Entry entry) {
+            if (entry.size > capacityBytes) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (map.putIfAbsent(key, entry) != null) {
+                    return;
+                }
+                ring.add(entry);
+                usedBytes += entry.size;
+                while (usedBytes > capacityBytes) {
+                    evictOne();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Sweeps the hand, giving referenced entries a second chance, and removes the first
+        // unreferenced one. The last ring slot is moved into the hole to keep removal O(1).
+        private void evictOne() {
+            while (true) {
+                if (hand >= ring.size()) {
+                    hand = 0;
+                }
+                Entry candidate = ring.get(hand);
+                if (candidate.referenced) {
+                    candidate.referenced = false;
+                    hand++;
+                    continue;
+                }
+                Entry last = ring.remove(ring.size() - 1);
+                if (hand < ring.size()) {
+                    ring.set(hand, last);
+                }
+                map.remove(candidate.key);
+                usedBytes -= candidate.size;
+                evictions.increment();
+                return;
+            }
+        }
+    }
+
+    private static class Entry {
+        private final BlockKey key;
+        private final ByteBuffer block;
+        private final int size;
+        private volatile boolean referenced;
+
+        Entry(BlockKey key, ByteBuffer block) {
+            this.key = key;
+            this.block = block;
+            this.size = block.remaining() + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static final class BlockKey {
+        private final long fileId;
+        private final int blockIndex;
+
+        BlockKey(long fileId, int blockIndex) {
+            this.fileId = fileId;
+            this.blockIndex = blockIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return fileId == other.fileId && blockIndex == other.blockIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(fileId * 0x9E3779B97F4A7C15L) * 31 + blockIndex;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.andrey;
+
+import java.io.*;
+
+/**
+ * Bloom filter over raw key bytes. One is kept in memory per SSTable file so point
+ * lookups can skip files that cannot contain the key.
+ */
+public class MyBloomFilter {
+    private final long[] bits;
+    private final int numHashes;
+
+    private MyBloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    public static MyBloomFilter create(int expectedKeys, int bitsPerKey) {
+        long numBits = Math.max(64L, (long) Math.max(expectedKeys, 1) * bitsPerKey);
+        int numWords = (int) Math.min(Integer.MAX_VALUE - 8, (numBits + 63) / 64);
+        // k = ln(2) * m / n minimises the false positive rate
+        int numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+        return new MyBloomFilter(new long[numWords], numHashes);
+    }
+
+    public void add(byte[] key) {
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long numBits = (long) bits.length * 64;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public boolean mightContain(byte[] key) {
+        long hash = hash64(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long numBits = (long) bits.length * 64;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(numHashes);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    public static MyBloomFilter readFrom(DataInput in) throws IOException {
+        int numHashes = in.readInt();
+        int numWords = in.readInt();
+        if (numHashes <= 0 || numWords <= 0) {
+            throw new IOException("Corrupt bloom filter header");
+        }
+        long[] bits = new long[numWords];
+        for (int i = 0; i < numWords; i++) {
+            bits[i] = in.readLong();
+        }
+        return new MyBloomFilter(bits, numHashes);
+    }
+
+    // 64-bit hash: 8-byte blocks folded with a multiply-rotate step, then the murmur3 finaliser
+    private static long hash64(byte[] key) {
+        long h = 0x9E3779B97F4A7C15L ^ key.length;
+        int i = 0;
+        for (; i + 8 <= key.length; i += 8) {
+            long k = 0;
+            for (int j = 7; j >= 0; j--) {
+                k = (k << 8) | (key[i + j] & 0xFF);
+            }
+            h ^= Long.rotateLeft(k * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+            h = Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+        }
+        long tail = 0;
+        for (int j = key.length - 1; j >= i; j--) {
+            tail = (tail << 8) | (key[j] & 0xFF);
+        }
+        h ^= Long.rotateLeft(tail * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,183 @@
+package com.andrey;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns a stream of key/value pairs into SSTable files without going through the WAL or a
+ * memtable. Input is read in chunks of about chunkBytes of heap, and each chunk is sorted and
+ * written as a file. Sorting input that is already in order costs one pass, and if the whole
+ * input was in order the chunk files are the result. Otherwise they are sorted runs, and an
+ * external merge rewrites them into the final files. A later pair for the same key replaces
+ * an earlier one.
+ *
+ * Files are written to the data directory under temporary names; the caller hands them to
+ * {@link MySSTable#ingest}. If loading fails, every file written so far is deleted.
+ */
+public class MyBulkLoader {
+    // Rough per-entry heap cost on top of the two strings
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final AtomicLong NEXT_TEMP_ID = new AtomicLong(System.nanoTime());
+
+    private final Path dataDir;
+    private final MySSTableWriter.Compression compression;
+    private final long chunkBytes;
+    private long entryCount;
+
+    public MyBulkLoader(Path dataDir, MySSTableWriter.Compression compression, long chunkBytes) {
+        this.dataDir = dataDir;
+        this.compression = compression;
+        this.chunkBytes = chunkBytes;
+    }
+
+    // Returns key-disjoint files in key order
+    public List<Path> load(Iterator<Map.Entry<String, String>> input) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try {
+            boolean sorted = true;
+            String lastKey = null;
+            List<Map.Entry<String, String>> chunk = new ArrayList<>();
+            long bytes = 0;
+            while (input.hasNext()) {
+                Map.Entry<String, String> entry = input.next();
+                if (entry.getKey() == null || entry.getValue() == null) {
+                    throw new IllegalArgumentException("Bulk load entries need a key and a value");
+                }
+                if (lastKey != null && entry.getKey().compareTo(lastKey) <= 0) {
+                    sorted = false;
+                }
+                lastKey = entry.getKey();
+                chunk.add(entry);
+                bytes += entrySize(entry);
+                if (bytes >= chunkBytes) {
+                    files.add(writeChunk(chunk));
+                    chunk.clear();
+                    bytes = 0;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                files.add(writeChunk(chunk));
+            }
+            if (sorted || files.size() <= 1) {
+                return files;
+            }
+            List<Path> merged = merge(files);
+            deleteAll(files);
+            return merged;
+        } catch (IOException | RuntimeException e) {
+            deleteAll(files);
+            throw e;
+        }
+    }
+
+    // Distinct keys written by the last load()
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    // Stable sort, so the last of several pairs for one key is the one kept
+    private Path writeChunk(List<Map.Entry<String, String>> chunk) throws IOException {
+        chunk.sort(Map.Entry.comparingByKey());
+        List<Map.Entry<String, String>> distinct = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            if (i + 1 == chunk.size() || !chunk.get(i).getKey().equals(chunk.get(i + 1).getKey())) {
+                distinct.add(chunk.get(i));
+            }
+        }
+        entryCount += distinct.size();
+        return writeFile(distinct);
+    }
+
+    private Path writeFile(List<Map.Entry<String, String>> entries) throws IOException {
+        Path file = dataDir.resolve(Constants.FILE_PREFIX + "bulk-" + NEXT_TEMP_ID.incrementAndGet()
+            + Constants.TMP_SUFFIX);
+        try (MySSTableWriter writer = new MySSTableWriter(file, entries.size(), compression)) {
+            for (Map.Entry<String, String> entry : entries) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            writer.finish();
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        return file;
+    }
+
+    // K-way merge of sorted runs; among equal keys the run written last wins. Output is
+    // buffered a chunk at a time so each file's Bloom filter is sized for its exact key count.
+    private List<Path> merge(List<Path> runs) throws IOException {
+        List<Path> output = new ArrayList<>();
+        List<MySSTableReader> readers = new ArrayList<>();
+        List<MySSTableReader.Scanner> scanners = new ArrayList<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Comparator
+            .comparing((Integer run) -> scanners.get(run).key())
+            .thenComparing(Comparator.reverseOrder()));
+        try {
+            for (Path run : runs) {
+                MySSTableReader reader = MySSTableReader.open(run);
+                readers.add(reader);
+                MySSTableReader.Scanner scanner = reader.scan(null, false);
+                scanners.add(scanner);
+                if (scanner.next()) {
+                    queue.add(scanners.size() - 1);
+                }
+            }
+            entryCount = 0;
+            List<Map.Entry<String, String>> chunk = new ArrayList<>();
+            long bytes = 0;
+            while (!queue.isEmpty()) {
+                int newest = queue.poll();
+                Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<>(
+                    scanners.get(newest).key(), scanners.get(newest).value());
+                if (scanners.get(newest).next()) {
+                    queue.add(newest);
+                }
+                while (!queue.isEmpty() && scanners.get(queue.peek()).key().equals(entry.getKey())) {
+                    int shadowed = queue.poll();
+                    if (scanners.get(shadowed).next()) {
+                        queue.add(shadowed);
+                    }
+                }
+                chunk.add(entry);
+                bytes += entrySize(entry);
+                if (bytes >= chunkBytes) {
+                    output.add(writeFile(chunk));
+                    entryCount += chunk.size();
+                    chunk.clear();
+                    bytes = 0;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                output.add(writeFile(chunk));
+                entryCount += chunk.size();
+            }
+            return output;
+        } catch (IOException | RuntimeException e) {
+            deleteAll(output);
+            throw e;
+        } finally {
+            for (MySSTableReader.Scanner scanner : scanners) {
+                scanner.close();
+            }
+            MySSTable.releaseFiles(readers);
+        }
+    }
+
+    private static long entrySize(Map.Entry<String, String> entry) {
+        return 2L * (entry.getKey().length() + entry.getValue().length()) + ENTRY_OVERHEAD;
+    }
+
+    private static void deleteAll(List<Path> files) throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
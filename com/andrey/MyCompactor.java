@@ -0,0 +1,211 @@
+package com.andrey;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Size-tiered compaction for {@link MySSTable}. Runs on a single background thread,
+ * merges runs of adjacent, similarly sized files into one and hands the result back
+ * to the SSTable for an atomic swap.
+ */
+public class MyCompactor {
+    private final MySSTable ssTable;
+    private final ExecutorService executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final MyHistogram compactionTimes = new MyHistogram();
+
+    public MyCompactor(MySSTable ssTable) {
+        this.ssTable = ssTable;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "sstable-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void maybeScheduleCompaction() {
+        // Coalesce triggers: one pending run picks up every file flushed before it starts
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                scheduled.set(false);
+                try {
+                    List<Long> run;
+                    while ((run = pickRun()) != null) {
+                        compact(run);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Compaction failed: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+        }
+    }
+
+    // Merges every file into one, waiting for the result. Queued behind any running compaction.
+    public void compactAll() throws IOException {
+        try {
+            executor.submit(() -> {
+                List<Long> all = new ArrayList<>(ssTable.getFiles().keySet());
+                if (all.size() > 1) {
+                    compact(all);
+                }
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compacting", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compaction failed", e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Walks files oldest to newest and returns the first run of adjacent files whose sizes
+    // stay within the bucket bounds of the run's average. Adjacency keeps newest-wins ordering.
+    private List<Long> pickRun() {
+        List<Long> run = new ArrayList<>();
+        long runBytes = 0;
+        for (Map.Entry<Long, MySSTableReader> file : ssTable.getFiles().descendingMap().entrySet()) {
+            long size = file.getValue().getFileSize();
+            if (!run.isEmpty()) {
+                double avg = (double) runBytes / run.size();
+                if (size < avg * Constants.COMPACTION_BUCKET_LOW || size > avg * Constants.COMPACTION_BUCKET_HIGH) {
+                    if (run.size() >= Constants.COMPACTION_MIN_THRESHOLD) {
+                        return run;
+                    }
+                    run.clear();
+                    runBytes = 0;
+                }
+            }
+            run.add(file.getKey());
+            runBytes += size;
+            if (run.size() == Constants.COMPACTION_MAX_THRESHOLD) {
+                return run;
+            }
+        }
+        return run.size() >= Constants.COMPACTION_MIN_THRESHOLD ? run : null;
+    }
+
+    public MyHistogram getCompactionTimes() {
+        return compactionTimes;
+    }
+
+    private void compact(List<Long> fileNumbers) throws IOException {
+        long start = System.nanoTime();
+        Map<Long, MySSTableReader> files = ssTable.getFiles();
+        // Tombstones can only be dropped when nothing older than the run could hold the key
+        boolean dropTombstones = fileNumbers.contains(ssTable.getFiles().lastKey());
+        long oldest = fileNumbers.stream().mapToLong(Long::longValue).min().getAsLong();
+        Path output = Paths.get(files.get(oldest).getPath().toString() + Constants.TMP_SUFFIX);
+
+        PriorityQueue<Cursor> queue = new PriorityQueue<>();
+        List<Cursor> cursors = new ArrayList<>();
+        List<MySSTableReader> retained = new ArrayList<>();
+        long expectedKeys = 0;
+        try {
+            for (Long number : fileNumbers) {
+                MySSTableReader reader = files.get(number);
+                if (!reader.retain()) {
+                    throw new IOException("SSTable " + reader.getPath() + " was closed during compaction");
+                }
+                retained.add(reader);
+                Cursor cursor = new Cursor(number, reader.scan(null, false));
+                cursors.add(cursor);
+                expectedKeys += reader.getEntryCount();
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+
+            try (MySSTableWriter writer = new MySSTableWriter(output, expectedKeys, ssTable.getCompression())) {
+                while (!queue.isEmpty()) {
+                    // The newest file sorts first among equal keys; skip the shadowed versions
+                    Cursor newest = queue.poll();
+                    String key = newest.key;
+                    String value = newest.value;
+                    if (newest.advance()) {
+                        queue.add(newest);
+                    }
+                    while (!queue.isEmpty() && queue.peek().key.equals(key)) {
+                        Cursor shadowed = queue.poll();
+                        if (shadowed.advance()) {
+                            queue.add(shadowed);
+                        }
+                    }
+                    if (dropTombstones && Constants.TOMBSTONE.equals(value)) {
+                        continue;
+                    }
+                    writer.add(key, value);
+                }
+                writer.finish();
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(output);
+            throw e;
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+            for (MySSTableReader reader : retained) {
+                reader.release();
+            }
+        }
+
+        ssTable.installCompaction(fileNumbers, oldest, output);
+        compactionTimes.recordSince(start);
+    }
+
+    private static class Cursor implements Comparable<Cursor>, Closeable {
+        private final long fileNumber;
+        private final MySSTableReader.Scanner scanner;
+        private String key;
+        private String value;
+
+        Cursor(long fileNumber, MySSTableReader.Scanner scanner) {
+            this.fileNumber = fileNumber;
+            this.scanner = scanner;
+        }
+
+        boolean advance() throws IOException {
+            if (!scanner.next()) {
+                return false;
+            }
+            key = scanner.key();
+            value = scanner.value();
+            return true;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int comparison = key.compareTo(other.key);
+            return comparison != 0 ? comparison : Long.compare(other.fileNumber, fileNumber);
+        }
+
+        @Override
+        public void close() throws IOException {
+            scanner.close();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.andrey;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * Read-only replica of a leader's store, kept up to date over a {@link MyReplicationServer}
+ * connection. The data lives in an ordinary {@link MyStorageEngine} under
+ * dataDir/replica-N. Streamed WAL records are applied to it as write batches, in order; a
+ * snapshot from the leader is bulk loaded into a fresh engine in the next directory, which
+ * replaces the old one once it is complete, so reads never see a half-loaded snapshot.
+ *
+ * Writes are rejected. Reads see the leader's writes up to the position this follower has
+ * applied; {@link #awaitReplicationPosition} waits for a position a writer got back from the
+ * leader, which gives that writer read-your-writes here. The replica is not kept across
+ * restarts: a restarted follower starts empty and reloads from a snapshot.
+ */
+public class MyFollower implements MyKeyValueStore {
+    private final Path dataDir;
+    private final InetSocketAddress leader;
+    private final Thread replicator;
+    // Swapping the engine for a freshly loaded one takes the write lock; everything else reads
+    private final ReentrantReadWriteLock engineLock = new ReentrantReadWriteLock();
+    private MyStorageEngine engine;
+    private int generation;
+    // Replication progress, guarded by itself and notified when it advances
+    private final Object progress = new Object();
+    private long sessionId;
+    private long appliedSeq;
+    private long leaderSeq;
+    private long caughtUpAtMillis;
+    private volatile boolean connected;
+    private volatile Socket socket;
+    private volatile boolean closed;
+    private final LongAdder recordsApplied = new LongAdder();
+    private final LongAdder snapshotsLoaded = new LongAdder();
+
+    // leader is host:port of the leader's replication server
+    public MyFollower(String dataDir, String leader) {
+        int colon = leader.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Leader must be host:port, not " + leader);
+        }
+        this.leader = InetSocketAddress.createUnresolved(leader.substring(0, colon),
+            Integer.parseInt(leader.substring(colon + 1)));
+        this.dataDir = Paths.get(dataDir);
+        try {
+            Files.createDirectories(this.dataDir);
+            // Left over from an earlier run; a follower always resyncs from the leader
+            try (Stream<Path> dirs = Files.list(this.dataDir)) {
+                for (Path dir : (Iterable<Path>) dirs::iterator) {
+                    if (dir.getFileName().toString().startsWith(Constants.REPLICA_DIR_PREFIX)) {
+                        deleteDirectory(dir);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to prepare " + dataDir + " for a replica", e);
+        }
+        this.engine = newEngine();
+        this.replicator = new Thread(this::replicate, "replication-follower");
+        replicator.setDaemon(true);
+    }
+
+    public void start() {
+        replicator.start();
+        System.out.println("Following the leader at " + leader.getHostString() + ":" + leader.getPort());
+    }
+
+    private MyStorageEngine newEngine() {
+        return new MyStorageEngine(dataDir.resolve(Constants.REPLICA_DIR_PREFIX + generation++).toString(), 1);
+    }
+
+    // Connects to the leader and applies what it sends, reconnecting until closed
+    private void replicate() {
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                // gracefulClose sets closed before closing the socket, so one of us sees the other
+                if (closed) {
+                    return;
+                }
+                s.connect(new InetSocketAddress(leader.getHostString(), leader.getPort()));
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(),
+                    MyReplicationServer.BUFFER_SIZE));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                synchronized (progress) {
+                    out.writeLong(sessionId);
+                    out.writeLong(appliedSeq);
+                }
+                out.flush();
+                connected = true;
+                follow(in, out);
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    System.err.println("Replication from " + leader.getHostString() + ":" + leader.getPort()
+                        + " interrupted: " + e);
+                }
+            } finally {
+                connected = false;
+            }
+            synchronized (progress) {
+                try {
+                    if (!closed) {
+                        progress.wait(Constants.REPLICATION_RECONNECT_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void follow(DataInputStream in, DataOutputStream out) throws IOException {
+        while (!closed) {
+            byte type = in.readByte();
+            switch (type) {
+                case MyReplicationServer.MSG_RECORD: {
+                    long seq = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > Constants.BINARY_MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    byte[] record = new byte[length];
+                    in.readFully(record);
+                    applyRecord(seq, record);
+                    break;
+                }
+                case MyReplicationServer.MSG_POSITION:
+                    leaderAt(in.readLong());
+                    break;
+                case MyReplicationServer.MSG_SNAPSHOT: {
+                    long session = in.readLong();
+                    long seq = in.readLong();
+                    loadSnapshot(in, session, seq);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown replication message " + type);
+            }
+            // Acknowledge once the messages that already arrived are applied
+            if (in.available() == 0) {
+                synchronized (progress) {
+                    out.writeLong(appliedSeq);
+                }
+                out.flush();
+            }
+        }
+    }
+
+    private void applyRecord(long seq, byte[] record) throws IOException {
+        long expected;
+        synchronized (progress) {
+            expected = appliedSeq + 1;
+        }
+        if (seq != expected) {
+            throw new IOException("Expected record " + expected + " from the leader, got " + seq);
+        }
+        MyWriteBatch batch = new MyWriteBatch();
+        for (MyWriteAheadLog.LogEntry entry : MyWriteAheadLog.decodeRecord(record)) {
+            if (entry.getOperation() == MyWriteAheadLog.Operation.PUT) {
+                batch.put(entry.getKey(), entry.getValue());
+            } else {
+                batch.delete(entry.getKey());
+            }
+        }
+        engineLock.readLock().lock();
+        try {
+            engine.write(batch);
+        } finally {
+            engineLock.readLock().unlock();
+        }
+        recordsApplied.increment();
+        synchronized (progress) {
+            appliedSeq = seq;
+            advanced();
+        }
+    }
+
+    private void leaderAt(long seq) {
+        synchronized (progress) {
+            leaderSeq = seq;
+            advanced();
+        }
+    }
+
+    // Called with the progress lock held
+    private void advanced() {
+        leaderSeq = Math.max(leaderSeq, appliedSeq);
+        if (appliedSeq == leaderSeq) {
+            caughtUpAtMillis = System.currentTimeMillis();
+        }
+        progress.notifyAll();
+    }
+
+    // Loads the snapshot into a new engine and swaps it in; the old engine and its files go
+    private void loadSnapshot(DataInputStream in, long session, long seq) throws IOException {
+        MyStorageEngine fresh = newEngine();
+        try {
+            fresh.bulkLoad(new SnapshotIterator(in));
+        } catch (UncheckedIOException e) {
+            discard(fresh);
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            discard(fresh);
+            throw e;
+        }
+        snapshotsLoaded.increment();
+        MyStorageEngine old;
+        engineLock.writeLock().lock();
+        try {
+            old = engine;
+            engine = fresh;
+            synchronized (progress) {
+                sessionId = session;
+                appliedSeq = seq;
+                advanced();
+            }
+        } finally {
+            engineLock.writeLock().unlock();
+        }
+        discard(old);
+    }
+
+    private void discard(MyStorageEngine old) {
+        try {
+            old.gracefulClose();
+            old.cleanup();
+            deleteDirectory(Paths.get(old.getDataDir()));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to remove replica " + old.getDataDir() + ": " + e.getMessage());
+        }
+    }
+
+    // The ENTRY messages of a snapshot, up to SNAPSHOT_END
+    private static class SnapshotIterator implements Iterator<Map.Entry<String, String>> {
+        private final DataInputStream in;
+        private Map.Entry<String, String> next;
+        private boolean done;
+
+        SnapshotIterator(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    byte type = in.readByte();
+                    if (type == MyReplicationServer.MSG_SNAPSHOT_END) {
+                        done = true;
+                    } else if (type == MyReplicationServer.MSG_ENTRY) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(readString(in), readString(in));
+                    } else {
+                        throw new IOException("Unexpected replication message " + type + " in a snapshot");
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = next;
+            next = null;
+            return entry;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Constants.BINARY_MAX_FRAME_SIZE) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted((a, b) -> b.compareTo(a))::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        engineLock.readLock().lock();
+        try {
+            return engine.get(key);
+        } finally {
+            engineLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> multiGet(Collection<String> keys) {
+        engineLock.readLock().lock();
+        try {
+            return engine.multiGet(keys);
+        } finally {
+            engineLock.readLock().unlock();
+        }
+    }
+
+    // The iterator reads from the engine it was opened on even if a snapshot replaces it
+    @Override
+    public MyMergeIterator scan(MyKeyRange range, boolean reverse) throws IOException {
+        engineLock.readLock().lock();
+        try {
+            return engine.scan(range, reverse);
+        } finally {
+            engineLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getBatch(MyKeyRange range, boolean reverse, int limit) {
+        engineLock.readLock().lock();
+        try {
+            return engine.getBatch(range, reverse, limit);
+        } finally {
+            engineLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, String value) {
+        throw readOnly();
+    }
+
+    @Override
+    public void delete(String key) {
+        throw readOnly();
+    }
+
+    @Override
+    public void write(MyWriteBatch batch) {
+        throw readOnly();
+    }
+
+    @Override
+    public long bulkLoad(Iterator<Map.Entry<String, String>> entries) {
+        throw readOnly();
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Followers are read-only; write to the leader");
+    }
+
+    @Override
+    public String getReplicationPosition() {
+        synchronized (progress) {
+            return sessionId == 0 ? null : MyReplicationLog.position(sessionId, appliedSeq);
+        }
+    }
+
+    // Positions from an earlier session of the leader are never reached; they time out
+    @Override
+    public boolean awaitReplicationPosition(String position, long timeoutMillis) {
+        long[] target = MyReplicationLog.parsePosition(position);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (progress) {
+            while (sessionId != target[0] || appliedSeq < target[1]) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    progress.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Time since this follower last had everything the leader had; unbounded before the first sync
+    @Override
+    public long getReplicationLagMillis() {
+        synchronized (progress) {
+            if (sessionId == 0) {
+                return Long.MAX_VALUE;
+            }
+            return connected && appliedSeq >= leaderSeq ? 0 : System.currentTimeMillis() - caughtUpAtMillis;
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getAppliedSeq() {
+        synchronized (progress) {
+            return appliedSeq;
+        }
+    }
+
+    public long getLeaderSeq() {
+        synchronized (progress) {
+            return leaderSeq;
+        }
+    }
+
+    long getRecordsApplied() {
+        return recordsApplied.sum();
+    }
+
+    long getSnapshotsLoaded() {
+        return snapshotsLoaded.sum();
+    }
+
+    @Override
+    public String getMetricsText() {
+        engineLock.readLock().lock();
+        try {
+            return engine.getMetricsText() + MyMetrics.replicationFollower(this);
+        } finally {
+            engineLock.readLock().unlock();
+        }
+    }
+
+    // Stops replicating and closes the replica; its files stay until the next start
+    @Override
+    public void gracefulClose() {
+        closed = true;
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // Already closed by the replicator
+            }
+        }
+        // Wakes a replicator waiting to reconnect; one that is applying something finishes first
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+        try {
+            replicator.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        engineLock.writeLock().lock();
+        try {
+            engine.gracefulClose();
+        } finally {
+            engineLock.writeLock().unlock();
+        }
+    }
+
+    // Removes the replica's files; call after gracefulClose
+    public void cleanup() {
+        engineLock.writeLock().lock();
+        try {
+            engine.cleanup();
+            deleteDirectory(Paths.get(engine.getDataDir()));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to cleanup storage", e);
+        } finally {
+            engineLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.andrey;
+
+/**
+ * Bounds of a range scan in String order. Either end may be open (null) and either bound may
+ * be inclusive or exclusive, which covers plain [keyStart, keyEnd] ranges, prefix scans and
+ * resuming a paged scan after the last key a client has seen.
+ */
+public final class MyKeyRange {
+    private final String lower;
+    private final boolean lowerInclusive;
+    private final String upper;
+    private final boolean upperInclusive;
+
+    private MyKeyRange(String lower, boolean lowerInclusive, String upper, boolean upperInclusive) {
+        this.lower = lower;
+        this.lowerInclusive = lowerInclusive;
+        this.upper = upper;
+        this.upperInclusive = upperInclusive;
+    }
+
+    public static MyKeyRange closed(String keyStart, String keyEnd) {
+        return new MyKeyRange(keyStart, true, keyEnd, true);
+    }
+
+    public static MyKeyRange all() {
+        return new MyKeyRange(null, false, null, false);
+    }
+
+    // Every key that starts with prefix: [prefix, next prefix), open-ended when no String
+    // sorts after all of them (the prefix is empty or all U+FFFF)
+    public static MyKeyRange prefix(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return new MyKeyRange(prefix.isEmpty() ? null : prefix, true, null, false);
+        }
+        String next = prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+        return new MyKeyRange(prefix, true, next, false);
+    }
+
+    // The rest of the range once lastKey has been returned by a scan in the given direction
+    public MyKeyRange after(String lastKey, boolean reverse) {
+        if (reverse) {
+            return isAbove(lastKey) ? this : new MyKeyRange(lower, lowerInclusive, lastKey, false);
+        }
+        return isBelow(lastKey) ? this : new MyKeyRange(lastKey, false, upper, upperInclusive);
+    }
+
+    // Null when the range has no lower bound
+    public String getLower() {
+        return lower;
+    }
+
+    // Null when the range has no upper bound
+    public String getUpper() {
+        return upper;
+    }
+
+    public boolean isLowerInclusive() {
+        return lowerInclusive;
+    }
+
+    public boolean isUpperInclusive() {
+        return upperInclusive;
+    }
+
+    // True if key sorts before the range
+    public boolean isBelow(String key) {
+        if (lower == null) {
+            return false;
+        }
+        int comparison = key.compareTo(lower);
+        return comparison < 0 || (comparison == 0 && !lowerInclusive);
+    }
+
+    // True if key sorts after the range
+    public boolean isAbove(String key) {
+        if (upper == null) {
+            return false;
+        }
+        int comparison = key.compareTo(upper);
+        return comparison > 0 || (comparison == 0 && !upperInclusive);
+    }
+
+    public boolean contains(String key) {
+        return !isBelow(key) && !isAbove(key);
+    }
+
+    @Override
+    public String toString() {
+        return (lowerInclusive ? "[" : "(") + (lower == null ? "" : lower) + ", "
+            + (upper == null ? "" : upper) + (upperInclusive ? "]" : ")");
+    }
+}
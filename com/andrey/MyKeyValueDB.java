@@ -6,10 +6,34 @@ public class MyKeyValueDB {
     public static void main(String[] args) {
         System.out.println("Starting MyKeyValueDB...");
         try {
-            MyAPILayer apiLayer = new MyAPILayer(8080);
+            MyKeyValueStore storageEngine = openStore();
+            MyAPILayer apiLayer = new MyAPILayer(Integer.getInteger("kvdb.http.port", 8080), storageEngine);
+            int binaryPort = Integer.getInteger("kvdb.binary.port", Constants.DEFAULT_BINARY_PORT);
+            if (binaryPort > 0) {
+                new MyBinaryServer(binaryPort, storageEngine).start();
+            }
+            int replicationPort = Integer.getInteger("kvdb.replication.port", Constants.DEFAULT_REPLICATION_PORT);
+            if (replicationPort > 0) {
+                if (!(storageEngine instanceof MyStorageEngine)) {
+                    throw new IllegalStateException("Only a single, unsharded engine can lead replication");
+                }
+                new MyReplicationServer(replicationPort, (MyStorageEngine) storageEngine,
+                    Long.getLong("kvdb.replication.bufferBytes", Constants.DEFAULT_REPLICATION_BUFFER_BYTES)).start();
+            }
             apiLayer.start();
         } catch (IOException e) {
             System.err.println("Failed to start API layer: " + e.getMessage());
         }
     }
-} 
\ No newline at end of file
+
+    // A follower of -Dkvdb.replication.leader=host:port, or the local store
+    private static MyKeyValueStore openStore() {
+        String leader = System.getProperty("kvdb.replication.leader");
+        if (leader == null) {
+            return MyKeyValueStore.open();
+        }
+        MyFollower follower = new MyFollower(Constants.DATA_DIR, leader);
+        follower.start();
+        return follower;
+    }
+}
@@ -0,0 +1,68 @@
+package com.andrey;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The operations the API layers serve, implemented by a single {@link MyStorageEngine}, by
+ * {@link MyShardedEngine}, which spreads the keys over several of them, and by a read-only
+ * {@link MyFollower}. {@link #open()} picks one from the configuration.
+ */
+public interface MyKeyValueStore {
+    void put(String key, String value);
+
+    // Null when the key is missing or deleted
+    String get(String key);
+
+    void delete(String key);
+
+    // Returns the keys that exist, in key order
+    Map<String, String> multiGet(Collection<String> keys);
+
+    void write(MyWriteBatch batch);
+
+    // Streams the live keys in range, ascending or descending; the caller must close the iterator
+    MyMergeIterator scan(MyKeyRange range, boolean reverse) throws IOException;
+
+    // One page of a scan, in scan order; a limit of 0 or less returns the whole range
+    Map<String, String> getBatch(MyKeyRange range, boolean reverse, int limit);
+
+    // Writes the entries straight to SSTables; returns the number of distinct keys loaded
+    long bulkLoad(Iterator<Map.Entry<String, String>> entries);
+
+    // Prometheus text format
+    String getMetricsText();
+
+    void gracefulClose();
+
+    // Where the last write reached in the replication stream, returned to writers so they can
+    // read their writes from a follower; null when this store isn't replicated
+    default String getReplicationPosition() {
+        return null;
+    }
+
+    // Waits until reads here see everything up to position; false if that didn't happen in
+    // time. Only a follower ever waits.
+    default boolean awaitReplicationPosition(String position, long timeoutMillis) {
+        return true;
+    }
+
+    // How far reads here trail the leader's writes; 0 when this is not a follower
+    default long getReplicationLagMillis() {
+        return 0;
+    }
+
+    // Over the data directory: range shards when -Dkvdb.shards.splitPoints is set, hash shards
+    // when -Dkvdb.shards is above 1, otherwise a single engine
+    static MyKeyValueStore open() {
+        String splitPoints = System.getProperty("kvdb.shards.splitPoints");
+        if (splitPoints != null) {
+            return new MyShardedEngine(Constants.DATA_DIR, Arrays.asList(splitPoints.split(",")));
+        }
+        int shards = Integer.getInteger("kvdb.shards", Constants.DEFAULT_SHARD_COUNT);
+        return shards > 1 ? new MyShardedEngine(Constants.DATA_DIR, shards) : new MyStorageEngine();
+    }
+}
@@ -0,0 +1,559 @@
+package com.andrey;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * YCSB-style load generator, driving either a storage engine in this process (opened as
+ * {@link MyKeyValueStore#open} does, so -Dkvdb.shards applies) or the HTTP API of a running
+ * server:
+ *
+ *   java -Dkvdb.load.workload=A -Dkvdb.load.target=HTTP com.andrey.MyLoadGenerator
+ *
+ * A run has a load phase, which inserts recordCount keys, and a run phase, which issues
+ * operationCount operations (or runs for durationSeconds) in the workload's mix. Workloads A-F
+ * are YCSB's core workloads; every part of them can be overridden with -Dkvdb.load.* (see
+ * {@link Workload#fromProperties}). Latency is recorded per operation type and printed every
+ * status interval and as a summary at the end of each phase. With a target rate, operations
+ * are scheduled at fixed times and latency counts from the scheduled time, so a stall also
+ * shows up in the operations that queued behind it.
+ */
+public class MyLoadGenerator {
+    static final String KEY_PREFIX = "user";
+    // Sorts after every key made by key(), for scans that run to the end of the key space
+    private static final String KEY_LIMIT = KEY_PREFIX + "~";
+    private static final int KEY_DIGITS = 10;
+
+    enum Target { ENGINE, HTTP }
+
+    enum Distribution { UNIFORM, ZIPFIAN, LATEST }
+
+    enum OpType { INSERT, READ, UPDATE, SCAN, READ_MODIFY_WRITE }
+
+    private final Workload workload;
+    private final Store store;
+    private final KeyChooser keyChooser;
+    // Keys 0..nextInsert-1 have been (or are being) inserted
+    private final AtomicLong nextInsert = new AtomicLong();
+
+    MyLoadGenerator(Workload workload, Store store) {
+        this.workload = workload;
+        this.store = store;
+        this.keyChooser = KeyChooser.create(workload.distribution, workload.recordCount);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Workload workload = Workload.fromProperties();
+        Target target = Target.valueOf(System.getProperty("kvdb.load.target", "ENGINE").toUpperCase());
+        String phases = System.getProperty("kvdb.load.phases", "load,run");
+        System.out.println(workload);
+        try (Store store = target == Target.ENGINE
+                ? new EngineStore(MyKeyValueStore.open())
+                : new HttpStore(URI.create(System.getProperty("kvdb.load.url", "http://localhost:8080")))) {
+            MyLoadGenerator generator = new MyLoadGenerator(workload, store);
+            if (phases.contains("load")) {
+                generator.load();
+            }
+            if (phases.contains("run")) {
+                generator.run();
+            }
+        }
+    }
+
+    // Inserts keys 0..recordCount-1, recordCount operations in all
+    Map<OpType, Stats> load() throws InterruptedException {
+        nextInsert.set(0);
+        return execute("load", workload.recordCount, 0, random -> OpType.INSERT);
+    }
+
+    // Runs the workload's mix over the keys the load phase inserted
+    Map<OpType, Stats> run() throws InterruptedException {
+        nextInsert.set(workload.recordCount);
+        return execute("run", workload.operationCount, workload.durationSeconds * 1_000_000_000L,
+            workload::chooseOp);
+    }
+
+    private interface OpChooser {
+        OpType choose(ThreadLocalRandom random);
+    }
+
+    private Map<OpType, Stats> execute(String phase, long operations, long durationNanos, OpChooser chooser)
+            throws InterruptedException {
+        Map<OpType, Stats> stats = new EnumMap<>(OpType.class);
+        for (OpType type : OpType.values()) {
+            stats.put(type, new Stats());
+        }
+        AtomicLong issued = new AtomicLong();
+        long start = System.nanoTime();
+        long deadline = durationNanos > 0 ? start + durationNanos : Long.MAX_VALUE;
+        long opIntervalNanos = workload.targetOpsPerSecond > 0 ? 1_000_000_000L / workload.targetOpsPerSecond : 0;
+
+        Thread[] workers = new Thread[workload.threads];
+        for (int t = 0; t < workers.length; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                char[] valueSource = randomChars(random, 2 * workload.valueSize);
+                long op;
+                while ((op = issued.getAndIncrement()) < operations) {
+                    long intended = System.nanoTime();
+                    if (opIntervalNanos > 0) {
+                        intended = start + op * opIntervalNanos;
+                        long wait;
+                        while ((wait = intended - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    if (intended >= deadline || System.nanoTime() >= deadline) {
+                        break;
+                    }
+                    OpType type = chooser.choose(random);
+                    Stats opStats = stats.get(type);
+                    try {
+                        String value = new String(valueSource, random.nextInt(workload.valueSize + 1),
+                            workload.valueSize);
+                        if (!perform(type, random, value)) {
+                            opStats.notFound.increment();
+                        }
+                    } catch (Exception e) {
+                        opStats.errors.increment();
+                    }
+                    opStats.record(System.nanoTime() - intended);
+                }
+            }, "load-" + phase + "-" + t);
+            workers[t].start();
+        }
+
+        Thread reporter = new Thread(() -> reportIntervals(phase, start, stats), "load-status");
+        reporter.setDaemon(true);
+        reporter.start();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        reporter.interrupt();
+        printSummary(phase, System.nanoTime() - start, stats);
+        return stats;
+    }
+
+    // Returns false for a read or scan that found nothing
+    private boolean perform(OpType type, ThreadLocalRandom random, String value) throws IOException {
+        switch (type) {
+            case INSERT:
+                store.put(key(nextInsert.getAndIncrement()), value);
+                return true;
+            case READ:
+                return store.get(chooseKey(random)) != null;
+            case UPDATE:
+                store.put(chooseKey(random), value);
+                return true;
+            case SCAN:
+                return store.scan(chooseKey(random), 1 + random.nextInt(workload.maxScanLength)) > 0;
+            case READ_MODIFY_WRITE:
+                String key = chooseKey(random);
+                boolean found = store.get(key) != null;
+                store.put(key, value);
+                return found;
+            default:
+                throw new IllegalStateException("Unknown operation " + type);
+        }
+    }
+
+    // A key inserted in the load phase or, with inserts in the mix, since; an insert that is
+    // still in flight can be chosen and then reads as not found
+    private String chooseKey(ThreadLocalRandom random) {
+        return key(keyChooser.next(random, Math.max(1, nextInsert.get())));
+    }
+
+    // Zero-padded, so key order is insertion order and a scan covers consecutive inserts
+    static String key(long n) {
+        String digits = Long.toString(n);
+        return KEY_PREFIX + "0".repeat(Math.max(0, KEY_DIGITS - digits.length())) + digits;
+    }
+
+    private static char[] randomChars(ThreadLocalRandom random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return chars;
+    }
+
+    private void reportIntervals(String phase, long start, Map<OpType, Stats> stats) {
+        long last = start;
+        while (true) {
+            try {
+                Thread.sleep(workload.statusIntervalSeconds * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "[%s %5d s]",
+                phase, (now - start) / 1_000_000_000L));
+            long ops = 0;
+            StringBuilder latencies = new StringBuilder();
+            for (Map.Entry<OpType, Stats> entry : stats.entrySet()) {
+                MyHistogram interval = entry.getValue().takeInterval();
+                if (interval.getCount() == 0) {
+                    continue;
+                }
+                ops += interval.getCount();
+                latencies.append(String.format(Locale.ROOT, " | %s p50=%s p99=%s max=%s",
+                    entry.getKey(), micros(interval.getPercentile(0.5)), micros(interval.getPercentile(0.99)),
+                    micros(interval.getMax())));
+            }
+            line.append(String.format(Locale.ROOT, " %10.0f ops/s", ops * 1e9 / Math.max(1, now - last)));
+            System.out.println(line.append(latencies));
+            last = now;
+        }
+    }
+
+    private static void printSummary(String phase, long elapsedNanos, Map<OpType, Stats> stats) {
+        long ops = stats.values().stream().mapToLong(s -> s.total.getCount()).sum();
+        System.out.printf(Locale.ROOT, "%n[%s] %d operations in %.1f s, %.0f ops/s (latency in us)%n",
+            phase, ops, elapsedNanos / 1e9, ops * 1e9 / Math.max(1, elapsedNanos));
+        System.out.printf(Locale.ROOT, "%-18s %10s %10s %9s %9s %9s %9s %9s %9s %9s %8s%n", "operation", "count",
+            "ops/s", "avg", "p50", "p95", "p99", "p99.9", "max", "not found", "errors");
+        for (Map.Entry<OpType, Stats> entry : stats.entrySet()) {
+            MyHistogram total = entry.getValue().total;
+            long count = total.getCount();
+            if (count == 0) {
+                continue;
+            }
+            System.out.printf(Locale.ROOT, "%-18s %10d %10.0f %9s %9s %9s %9s %9s %9s %9d %8d%n", entry.getKey(),
+                count, count * 1e9 / Math.max(1, elapsedNanos), micros(total.getSum() / count),
+                micros(total.getPercentile(0.5)), micros(total.getPercentile(0.95)),
+                micros(total.getPercentile(0.99)), micros(total.getPercentile(0.999)), micros(total.getMax()),
+                entry.getValue().notFound.sum(), entry.getValue().errors.sum());
+        }
+        System.out.println();
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1e3);
+    }
+
+    // Latency of one operation type over the whole phase and since the last status line
+    static class Stats {
+        final MyHistogram total = new MyHistogram();
+        final LongAdder notFound = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        private volatile MyHistogram interval = new MyHistogram();
+
+        void record(long nanos) {
+            total.record(nanos);
+            interval.record(nanos);
+        }
+
+        // A recording racing with the swap may land in the old histogram after it was read;
+        // it is still in the total
+        MyHistogram takeInterval() {
+            MyHistogram taken = interval;
+            interval = new MyHistogram();
+            return taken;
+        }
+    }
+
+    /**
+     * The operation mix and shape of a run. Proportions are relative to each other and need
+     * not add up to one.
+     */
+    static class Workload {
+        String name;
+        double read;
+        double update;
+        double insert;
+        double scan;
+        double readModifyWrite;
+        Distribution distribution = Distribution.ZIPFIAN;
+        long recordCount = 100_000;
+        long operationCount = 1_000_000;
+        long durationSeconds;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int valueSize = 1000;
+        int maxScanLength = 100;
+        long targetOpsPerSecond;
+        long statusIntervalSeconds = 10;
+
+        // YCSB's core workloads
+        static Workload preset(String name) {
+            Workload workload = new Workload();
+            workload.name = name.toUpperCase();
+            switch (workload.name) {
+                case "A": // update heavy
+                    workload.read = 0.5;
+                    workload.update = 0.5;
+                    break;
+                case "B": // read mostly
+                    workload.read = 0.95;
+                    workload.update = 0.05;
+                    break;
+                case "C": // read only
+                    workload.read = 1;
+                    break;
+                case "D": // read latest
+                    workload.read = 0.95;
+                    workload.insert = 0.05;
+                    workload.distribution = Distribution.LATEST;
+                    break;
+                case "E": // short ranges
+                    workload.scan = 0.95;
+                    workload.insert = 0.05;
+                    break;
+                case "F": // read-modify-write
+                    workload.read = 0.5;
+                    workload.readModifyWrite = 0.5;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workload " + name + ", expected A-F");
+            }
+            return workload;
+        }
+
+        // A preset from kvdb.load.workload (default A) with any of its fields overridden by
+        // kvdb.load.<field>, e.g. kvdb.load.read=0.8, kvdb.load.distribution=UNIFORM
+        static Workload fromProperties() {
+            Workload workload = preset(System.getProperty("kvdb.load.workload", "A"));
+            workload.read = doubleProperty("read", workload.read);
+            workload.update = doubleProperty("update", workload.update);
+            workload.insert = doubleProperty("insert", workload.insert);
+            workload.scan = doubleProperty("scan", workload.scan);
+            workload.readModifyWrite = doubleProperty("readModifyWrite", workload.readModifyWrite);
+            workload.distribution = Distribution.valueOf(System.getProperty("kvdb.load.distribution",
+                workload.distribution.name()).toUpperCase());
+            workload.recordCount = Long.getLong("kvdb.load.recordCount", workload.recordCount);
+            workload.operationCount = Long.getLong("kvdb.load.operationCount", workload.operationCount);
+            workload.durationSeconds = Long.getLong("kvdb.load.durationSeconds", workload.durationSeconds);
+            workload.threads = Integer.getInteger("kvdb.load.threads", workload.threads);
+            workload.valueSize = Integer.getInteger("kvdb.load.valueSize", workload.valueSize);
+            workload.maxScanLength = Integer.getInteger("kvdb.load.maxScanLength", workload.maxScanLength);
+            workload.targetOpsPerSecond = Long.getLong("kvdb.load.targetOpsPerSecond", workload.targetOpsPerSecond);
+            workload.statusIntervalSeconds = Long.getLong("kvdb.load.statusIntervalSeconds",
+                workload.statusIntervalSeconds);
+            // A duration alone bounds the run
+            if (workload.durationSeconds > 0 && System.getProperty("kvdb.load.operationCount") == null) {
+                workload.operationCount = Long.MAX_VALUE;
+            }
+            workload.validate();
+            return workload;
+        }
+
+        private static double doubleProperty(String field, double defaultValue) {
+            String value = System.getProperty("kvdb.load." + field);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        void validate() {
+            double total = read + update + insert + scan + readModifyWrite;
+            if (total <= 0 || Math.min(Math.min(read, update), Math.min(Math.min(insert, scan), readModifyWrite)) < 0) {
+                throw new IllegalArgumentException("Operation proportions must be non-negative with a positive sum");
+            }
+            if (recordCount < 1 || threads < 1 || valueSize < 0 || maxScanLength < 1 || statusIntervalSeconds < 1) {
+                throw new IllegalArgumentException("recordCount, threads, maxScanLength and statusIntervalSeconds "
+                    + "must be positive and valueSize non-negative");
+            }
+        }
+
+        OpType chooseOp(ThreadLocalRandom random) {
+            double r = random.nextDouble() * (read + update + insert + scan + readModifyWrite);
+            if ((r -= read) < 0) {
+                return OpType.READ;
+            }
+            if ((r -= update) < 0) {
+                return OpType.UPDATE;
+            }
+            if ((r -= insert) < 0) {
+                return OpType.INSERT;
+            }
+            if ((r -= scan) < 0) {
+                return OpType.SCAN;
+            }
+            return readModifyWrite > 0 ? OpType.READ_MODIFY_WRITE : OpType.READ;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "Workload %s: read=%.2f update=%.2f insert=%.2f scan=%.2f rmw=%.2f, %s keys, "
+                    + "%d records, %s operations%s, %d threads, %d-byte values%s", name, read, update, insert, scan,
+                readModifyWrite, distribution.name().toLowerCase(), recordCount,
+                operationCount == Long.MAX_VALUE ? "unbounded" : Long.toString(operationCount),
+                durationSeconds > 0 ? " for up to " + durationSeconds + " s" : "", threads, valueSize,
+                targetOpsPerSecond > 0 ? ", target " + targetOpsPerSecond + " ops/s" : "");
+        }
+    }
+
+    // Picks key numbers in 0..keyCount-1
+    interface KeyChooser {
+        long next(ThreadLocalRandom random, long keyCount);
+
+        static KeyChooser create(Distribution distribution, long recordCount) {
+            switch (distribution) {
+                case UNIFORM:
+                    return (random, keyCount) -> random.nextLong(keyCount);
+                case ZIPFIAN:
+                    // Popularity ranks are hashed over the key space, so the hot keys are not
+                    // neighbours and do not all land in the same block
+                    Zipfian ranks = new Zipfian(recordCount);
+                    return (random, keyCount) -> Math.floorMod(fnv64(ranks.next(random)), keyCount);
+                case LATEST:
+                    Zipfian age = new Zipfian(recordCount);
+                    return (random, keyCount) -> keyCount - 1 - Math.min(age.next(random), keyCount - 1);
+                default:
+                    throw new IllegalArgumentException("Unknown distribution " + distribution);
+            }
+        }
+    }
+
+    /**
+     * Zipfian ranks 0..items-1 with rank 0 the most popular, by the method of Gray et al.,
+     * "Quickly Generating Billion-Record Synthetic Databases", as YCSB does. Setup sums a
+     * series over all items; each draw is constant time.
+     */
+    static class Zipfian {
+        static final double THETA = 0.99;
+
+        private final long items;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+        private final double secondRankBound;
+
+        Zipfian(long items) {
+            this.items = items;
+            this.zetaN = zeta(items);
+            this.alpha = 1 / (1 - THETA);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta(2) / zetaN);
+            this.secondRankBound = 1 + Math.pow(0.5, THETA);
+        }
+
+        long next(ThreadLocalRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < secondRankBound) {
+                return Math.min(1, items - 1);
+            }
+            return Math.min((long) (items * Math.pow(eta * u - eta + 1, alpha)), items - 1);
+        }
+
+        private static double zeta(long n) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+    }
+
+    private static long fnv64(long value) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= value & 0xFF;
+            hash *= 0x100000001B3L;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    // What the generator drives; get returns null for a missing key, scan the number of entries
+    interface Store extends Closeable {
+        String get(String key) throws IOException;
+
+        void put(String key, String value) throws IOException;
+
+        int scan(String startKey, int count) throws IOException;
+    }
+
+    static class EngineStore implements Store {
+        private final MyKeyValueStore engine;
+
+        EngineStore(MyKeyValueStore engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public String get(String key) {
+            return engine.get(key);
+        }
+
+        @Override
+        public void put(String key, String value) {
+            engine.put(key, value);
+        }
+
+        @Override
+        public int scan(String startKey, int count) {
+            return engine.getBatch(MyKeyRange.closed(startKey, KEY_LIMIT), false, count).size();
+        }
+
+        @Override
+        public void close() {
+            engine.gracefulClose();
+        }
+    }
+
+    // Keys and values are letters and digits, so they go into queries and form bodies unescaped
+    static class HttpStore implements Store {
+        private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        private final URI base;
+
+        HttpStore(URI base) {
+            this.base = base;
+        }
+
+        @Override
+        public String get(String key) throws IOException {
+            HttpResponse<String> response = send(HttpRequest.newBuilder(base.resolve("/get?key=" + key)).GET());
+            return response.statusCode() == 404 ? null : checked(response).body();
+        }
+
+        @Override
+        public void put(String key, String value) throws IOException {
+            checked(send(HttpRequest.newBuilder(base.resolve("/put"))
+                .POST(HttpRequest.BodyPublishers.ofString("key=" + key + "&value=" + value))));
+        }
+
+        @Override
+        public int scan(String startKey, int count) throws IOException {
+            String body = checked(send(HttpRequest.newBuilder(base.resolve(
+                "/getbatch?keyStart=" + startKey + "&keyEnd=" + KEY_LIMIT + "&limit=" + count)).GET())).body();
+            int entries = 0;
+            for (int i = body.indexOf("\":\""); i >= 0; i = body.indexOf("\":\"", i + 1)) {
+                entries++;
+            }
+            return entries;
+        }
+
+        private HttpResponse<String> send(HttpRequest.Builder request) throws IOException {
+            try {
+                return client.send(request.build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+
+        private static HttpResponse<String> checked(HttpResponse<String> response) throws IOException {
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode() + " from " + response.uri());
+            }
+            return response;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,65 +1,94 @@
 package com.andrey;
 
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.HashMap;
-
-public class MyMemTable {
-    private final ConcurrentSkipListMap<String, String> data;
-    private final AtomicInteger recordCount;
-    private final int recordLimit;
-    
-    public MyMemTable(int recordLimit) {
-        this.data = new ConcurrentSkipListMap<>();
-        this.recordCount = new AtomicInteger(0);
-        this.recordLimit = recordLimit;
+
+/**
+ * Sorted in-memory buffer of recent writes. Deleted keys are kept as Constants.TOMBSTONE
+ * until the memtable is flushed. Every write carries the sequence number it was given in the
+ * WAL; a key keeps all of its versions so a reader can ask for the newest one at or below its
+ * snapshot. Writes and reads may run concurrently, and writes to one key may arrive out of
+ * sequence order.
+ */
+public interface MyMemTable {
+    // Selected at startup with -Dkvdb.memtable.type=...
+    enum Type {
+        SKIPLIST, // Strings in a ConcurrentSkipListMap on the heap
+        ARENA     // Key and value bytes in off-heap arenas
     }
-    
-    public void put(String key, String value) {
-        String oldValue = data.put(key, value);
-        if (oldValue == null) {
-            // Only increment if this is a new key
-            recordCount.incrementAndGet();
+
+    static MyMemTable create(Type type, int recordLimit, long byteLimit) {
+        switch (type) {
+            case ARENA:
+                return new MyArenaMemTable(recordLimit, byteLimit);
+            case SKIPLIST:
+            default:
+                return new MySkipListMemTable(recordLimit, byteLimit);
         }
     }
 
-    
-    public String get(String key) {
-        String value = data.get(key);
-        return Constants.TOMBSTONE.equals(value) ? null : value;
-    }
-    
-    public void delete(String key) {
-        String oldValue = data.put(key, Constants.TOMBSTONE);
-        if (oldValue == null) {
-            // Only increment if this is a new key
-            recordCount.incrementAndGet();
-        }
+    // Reads without a snapshot see the newest version
+    long LATEST = Long.MAX_VALUE;
+
+    void put(String key, String value, long seq);
+
+    // Writes without a sequence number are numbered 0; a later one replaces an earlier one
+    default void put(String key, String value) {
+        put(key, value, 0);
     }
-    
-    public boolean isFull() {
-        return recordCount.get() >= recordLimit;
+
+    default void delete(String key, long seq) {
+        put(key, Constants.TOMBSTONE, seq);
     }
-    
-    public Map<String, String> getAll() {
-        return data;
+
+    default void delete(String key) {
+        delete(key, 0);
     }
-    
-    public void clear() {
-        data.clear();
-        recordCount.set(0);
+
+    default String get(String key) {
+        String value = getRaw(key, LATEST);
+        return Constants.TOMBSTONE.equals(value) ? null : value;
     }
-    
-    public int getCurrentSize() {
-        return recordCount.get();
+
+    // Newest version at or below snapshotSeq, Constants.TOMBSTONE for a deleted key, or null
+    // if the snapshot sees no version so callers go on to older data
+    String getRaw(String key, long snapshotSeq);
+
+    default String getRaw(String key) {
+        return getRaw(key, LATEST);
     }
-    
-    public boolean isEmpty() {
-        return recordCount.get() == 0;
+
+    boolean isFull();
+
+    void clear();
+
+    int getCurrentSize();
+
+    // Approximate memory used by the entries, in bytes
+    long getSizeBytes();
+
+    boolean isEmpty();
+
+    // Lazily walks the keys in range as seen at snapshotSeq, in key order or descending key
+    // order, tombstones included
+    Iterator<Map.Entry<String, String>> scan(MyKeyRange range, boolean reverse, long snapshotSeq);
+
+    default Map<String, String> getBatch(String keyStart, String keyEnd, long snapshotSeq) {
+        Map<String, String> results = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, String>> it = scan(MyKeyRange.closed(keyStart, keyEnd), false, snapshotSeq);
+        while (it.hasNext()) {
+            Map.Entry<String, String> entry = it.next();
+            results.put(entry.getKey(), entry.getValue());
+        }
+        return results;
     }
 
-    public Map<String, String> getBatch(String keyStart, String keyEnd) {
-        return data.subMap(keyStart, true, keyEnd, true);
+    default Map<String, String> getBatch(String keyStart, String keyEnd) {
+        return getBatch(keyStart, keyEnd, LATEST);
     }
-} 
\ No newline at end of file
+
+    // Adds the newest version of every key, tombstones included, to the writer in key order
+    void writeTo(MySSTableWriter writer) throws IOException;
+}
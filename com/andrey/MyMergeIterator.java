@@ -0,0 +1,233 @@
+package com.andrey;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Lazy range read over a snapshot. Each memtable and SSTable contributes a cursor positioned
+ * at the start of the range, and a priority queue ordered by key hands out the next key in
+ * scan order, ascending or (for a reverse scan) descending. When several sources hold the
+ * same key the newest one wins and the rest are skipped; deleted keys are dropped once their
+ * tombstone has hidden the older values. Only one entry per source is held in memory, so a
+ * range of any size can be streamed.
+ *
+ * The iterator owns the snapshot and releases it on close. A sharded engine merges one such
+ * iterator per shard the same way.
+ */
+public class MyMergeIterator implements Closeable {
+    private final MySnapshot snapshot;
+    private final PriorityQueue<Source> queue;
+    private final Source[] sources;
+    private String key;
+    private String value;
+
+    public MyMergeIterator(MySnapshot snapshot, MyKeyRange range, boolean reverse) throws IOException {
+        this.snapshot = snapshot;
+        this.queue = newQueue(reverse);
+        List<MyMemTable> memTables = snapshot.getMemTables();
+        List<MySSTableReader> files = snapshot.getFiles();
+        this.sources = new Source[memTables.size() + files.size()];
+        try {
+            // Lower rank is newer: memtables newest first, then the files newest first
+            int rank = 0;
+            for (MyMemTable memTable : memTables) {
+                sources[rank] = new MemTableSource(rank, memTable.scan(range, reverse, snapshot.getSeq()));
+                rank++;
+            }
+            for (MySSTableReader reader : files) {
+                MySSTableReader.Scanner scanner = reverse
+                    ? reader.scanReverse(range.getUpper()) : reader.scan(range.getLower());
+                sources[rank] = new FileSource(rank, scanner, range, reverse);
+                rank++;
+            }
+            for (Source source : sources) {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Interleaves iterators over disjoint sets of keys, such as one per shard, in scan order.
+    // It takes ownership of them and closes them on close, or right away if it fails.
+    MyMergeIterator(List<MyMergeIterator> parts, boolean reverse) throws IOException {
+        this.snapshot = null;
+        this.queue = newQueue(reverse);
+        this.sources = new Source[parts.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = new IteratorSource(i, parts.get(i));
+        }
+        try {
+            for (Source source : sources) {
+                if (source.advance()) {
+                    queue.add(source);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static PriorityQueue<Source> newQueue(boolean reverse) {
+        return new PriorityQueue<>((a, b) -> {
+            int comparison = reverse ? b.key.compareTo(a.key) : a.key.compareTo(b.key);
+            return comparison != 0 ? comparison : Integer.compare(a.rank, b.rank);
+        });
+    }
+
+    // Moves to the next live key; returns false once the range is exhausted
+    public boolean next() throws IOException {
+        while (!queue.isEmpty()) {
+            Source newest = queue.poll();
+            String candidateKey = newest.key;
+            String candidateValue = newest.value;
+            advance(newest);
+            while (!queue.isEmpty() && queue.peek().key.equals(candidateKey)) {
+                advance(queue.poll());
+            }
+            if (!Constants.TOMBSTONE.equals(candidateValue)) {
+                key = candidateKey;
+                value = candidateValue;
+                return true;
+            }
+        }
+        key = null;
+        value = null;
+        return false;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    private void advance(Source source) throws IOException {
+        if (source.advance()) {
+            queue.add(source);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        queue.clear();
+        try {
+            for (Source source : sources) {
+                if (source != null) {
+                    source.close();
+                }
+            }
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+    }
+
+    private abstract static class Source {
+        final int rank;
+        String key;
+        String value;
+
+        Source(int rank) {
+            this.rank = rank;
+        }
+
+        // Loads the source's next entry into key and value; false when it has none left in range
+        abstract boolean advance() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static final class MemTableSource extends Source {
+        private final Iterator<Map.Entry<String, String>> entries;
+
+        MemTableSource(int rank, Iterator<Map.Entry<String, String>> entries) {
+            super(rank);
+            this.entries = entries;
+        }
+
+        @Override
+        boolean advance() {
+            if (!entries.hasNext()) {
+                return false;
+            }
+            Map.Entry<String, String> entry = entries.next();
+            key = entry.getKey();
+            value = entry.getValue();
+            return true;
+        }
+    }
+
+    // Another merge's live entries, already in scan order with tombstones dropped
+    private static final class IteratorSource extends Source {
+        private final MyMergeIterator iterator;
+
+        IteratorSource(int rank, MyMergeIterator iterator) {
+            super(rank);
+            this.iterator = iterator;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            if (!iterator.next()) {
+                return false;
+            }
+            key = iterator.key();
+            value = iterator.value();
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            iterator.close();
+        }
+    }
+
+    // Scanners seek to the start key inclusively and run to the end of the file, so the source
+    // steps over an excluded start key and stops at the far end of the range
+    private static final class FileSource extends Source {
+        private final MySSTableReader.Scanner scanner;
+        private final MyKeyRange range;
+        private final boolean reverse;
+
+        FileSource(int rank, MySSTableReader.Scanner scanner, MyKeyRange range, boolean reverse) {
+            super(rank);
+            this.scanner = scanner;
+            this.range = range;
+            this.reverse = reverse;
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            while (scanner.next()) {
+                String next = scanner.key();
+                if (reverse ? range.isBelow(next) : range.isAbove(next)) {
+                    return false;
+                }
+                if (range.contains(next)) {
+                    key = next;
+                    value = scanner.value();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void close() throws IOException {
+            scanner.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.andrey;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Latency histograms for the engine's operations, plus the rendering of every engine metric in
+ * the Prometheus text format. The counters themselves live in the components that update them
+ * (WAL, SSTables, caches, replication); this class only reads them. A sharded engine renders
+ * all of its shards together, labelled by shard.
+ */
+public class MyMetrics {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    final MyHistogram get = new MyHistogram();
+    final MyHistogram put = new MyHistogram();
+    final MyHistogram delete = new MyHistogram();
+    final MyHistogram write = new MyHistogram();
+    final MyHistogram multiGet = new MyHistogram();
+    final MyHistogram scan = new MyHistogram();
+    final MyHistogram bulkLoad = new MyHistogram();
+
+    // Every metric of the given engines; with more than one engine each sample is labelled with
+    // the engine's index as its shard, and each metric's HELP and TYPE lines appear once
+    public static String toPrometheus(List<MyStorageEngine> engines) {
+        StringBuilder out = new StringBuilder();
+        header(out, "kvdb_op_latency_seconds", "summary", "Engine operation latency; scan covers opening the iterator");
+        summaries(out, engines, "kvdb_op_latency_seconds", "op=\"get\"", engine -> engine.getMetrics().get);
+        summaries(out, engines, "kvdb_op_latency_seconds", "op=\"put\"", engine -> engine.getMetrics().put);
+        summaries(out, engines, "kvdb_op_latency_seconds", "op=\"delete\"", engine -> engine.getMetrics().delete);
+        summaries(out, engines, "kvdb_op_latency_seconds", "op=\"write_batch\"", engine -> engine.getMetrics().write);
+        summaries(out, engines, "kvdb_op_latency_seconds", "op=\"multiget\"", engine -> engine.getMetrics().multiGet);
+        summaries(out, engines, "kvdb_op_latency_seconds", "op=\"scan\"", engine -> engine.getMetrics().scan);
+        summaries(out, engines, "kvdb_op_latency_seconds", "op=\"bulk_load\"", engine -> engine.getMetrics().bulkLoad);
+
+        header(out, "kvdb_sstable_lookups_total", "counter", "Point lookups that reached the SSTables");
+        values(out, engines, "kvdb_sstable_lookups_total", null, engine -> engine.getSSTable().getLookups());
+        header(out, "kvdb_sstable_files_searched_total", "counter", "SSTables searched by point lookups");
+        values(out, engines, "kvdb_sstable_files_searched_total", null, engine -> engine.getSSTable().getFilesSearched());
+        header(out, "kvdb_sstable_bloom_skips_total", "counter", "SSTables skipped by point lookups after a Bloom filter miss");
+        values(out, engines, "kvdb_sstable_bloom_skips_total", null, engine -> engine.getSSTable().getBloomSkips());
+        header(out, "kvdb_sstable_files", "gauge", "SSTables in the file set");
+        values(out, engines, "kvdb_sstable_files", null, engine -> engine.getSSTable().getFileCount());
+        header(out, "kvdb_sstable_bytes", "gauge", "Total size of the SSTables in the file set");
+        values(out, engines, "kvdb_sstable_bytes", null, engine -> engine.getSSTable().getTotalFileBytes());
+        header(out, "kvdb_flush_seconds", "summary", "Time to write a memtable out as an SSTable");
+        summaries(out, engines, "kvdb_flush_seconds", null, engine -> engine.getSSTable().getFlushTimes());
+        header(out, "kvdb_compaction_seconds", "summary", "Time to merge a run of SSTables");
+        summaries(out, engines, "kvdb_compaction_seconds", null, engine -> engine.getSSTable().getCompactionTimes());
+
+        header(out, "kvdb_memtable_bytes", "gauge", "Approximate size of the memtables");
+        values(out, engines, "kvdb_memtable_bytes", "memtable=\"active\"", engine -> engine.getMemTable().getSizeBytes());
+        values(out, engines, "kvdb_memtable_bytes", "memtable=\"immutable\"", engine -> {
+            MyMemTable immutable = engine.getImmutableMemTable();
+            return immutable == null ? 0 : immutable.getSizeBytes();
+        });
+        header(out, "kvdb_memtable_entries", "gauge", "Entries in the active memtable");
+        values(out, engines, "kvdb_memtable_entries", null, engine -> engine.getMemTable().getCurrentSize());
+
+        header(out, "kvdb_wal_records_total", "counter", "Records appended to the WAL");
+        values(out, engines, "kvdb_wal_records_total", null, engine -> engine.getWal().getRecordsAppended());
+        header(out, "kvdb_wal_bytes_total", "counter", "Bytes written to the WAL");
+        values(out, engines, "kvdb_wal_bytes_total", null, engine -> engine.getWal().getBytesWritten());
+        header(out, "kvdb_wal_group_writes_total", "counter", "Group commit writes, each covering one or more records");
+        values(out, engines, "kvdb_wal_group_writes_total", null, engine -> engine.getWal().getGroupWrites());
+        header(out, "kvdb_wal_sync_seconds", "summary", "WAL fsync latency");
+        summaries(out, engines, "kvdb_wal_sync_seconds", null, engine -> engine.getWal().getSyncTimes());
+
+        if (engines.get(0).getBlockCache() != null) {
+            cache(out, engines, "block", engine -> engine.getBlockCache().getHits(),
+                engine -> engine.getBlockCache().getMisses(), engine -> engine.getBlockCache().getEvictions(),
+                engine -> engine.getBlockCache().getUsedBytes());
+        }
+        if (engines.get(0).getRowCache() != null) {
+            cache(out, engines, "row", engine -> engine.getRowCache().getHits(),
+                engine -> engine.getRowCache().getMisses(), engine -> engine.getRowCache().getEvictions(),
+                engine -> engine.getRowCache().getUsedBytes());
+        }
+        return out.toString();
+    }
+
+    // A replication leader's stream and the followers reading it
+    static String replicationLeader(MyReplicationLog log) {
+        StringBuilder out = new StringBuilder();
+        single(out, "kvdb_replication_seq", "gauge", "Sequence number of the last WAL record offered to followers",
+            log.getLastSeq());
+        single(out, "kvdb_replication_buffer_bytes", "gauge", "Bytes of WAL records buffered for followers",
+            log.getBufferedBytes());
+        single(out, "kvdb_replication_buffer_records", "gauge", "WAL records buffered for followers",
+            log.getBufferedRecords());
+        single(out, "kvdb_replication_followers", "gauge", "Connected followers", log.getFollowers().size());
+        header(out, "kvdb_replication_follower_lag_records", "gauge",
+            "Records a follower has not acknowledged applying yet");
+        long lastSeq = log.getLastSeq();
+        for (MyReplicationLog.Follower follower : log.getFollowers()) {
+            out.append("kvdb_replication_follower_lag_records{follower=\"").append(follower.address).append("\"} ")
+                .append(Math.max(0, lastSeq - follower.ackedSeq)).append('\n');
+        }
+        single(out, "kvdb_replication_records_sent_total", "counter", "WAL records sent to followers",
+            log.getRecordsSent());
+        single(out, "kvdb_replication_snapshots_sent_total", "counter", "Snapshots sent to followers",
+            log.getSnapshotsSent());
+        return out.toString();
+    }
+
+    // A follower's progress behind its leader
+    static String replicationFollower(MyFollower follower) {
+        StringBuilder out = new StringBuilder();
+        long applied = follower.getAppliedSeq();
+        long leader = follower.getLeaderSeq();
+        single(out, "kvdb_replication_connected", "gauge", "1 while connected to the leader",
+            follower.isConnected() ? 1 : 0);
+        single(out, "kvdb_replication_applied_seq", "gauge", "Sequence number of the last leader record applied",
+            applied);
+        single(out, "kvdb_replication_leader_seq", "gauge", "Sequence number of the leader's last record as last heard",
+            leader);
+        single(out, "kvdb_replication_lag_records", "gauge", "Leader records not applied here yet",
+            Math.max(0, leader - applied));
+        long lagMillis = follower.getReplicationLagMillis();
+        header(out, "kvdb_replication_lag_seconds", "gauge",
+            "Time since this follower last had all of the leader's writes");
+        out.append("kvdb_replication_lag_seconds ").append(lagMillis == Long.MAX_VALUE
+            ? "+Inf" : seconds(TimeUnit.MILLISECONDS.toNanos(lagMillis))).append('\n');
+        single(out, "kvdb_replication_records_applied_total", "counter", "Leader records applied",
+            follower.getRecordsApplied());
+        single(out, "kvdb_replication_snapshots_loaded_total", "counter", "Leader snapshots loaded",
+            follower.getSnapshotsLoaded());
+        return out.toString();
+    }
+
+    private static void single(StringBuilder out, String name, String type, String help, long value) {
+        header(out, name, type, help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Engines share one configuration, so either all of them have a given cache or none does
+    private static void cache(StringBuilder out, List<MyStorageEngine> engines, String name,
+            ToLongFunction<MyStorageEngine> hits, ToLongFunction<MyStorageEngine> misses,
+            ToLongFunction<MyStorageEngine> evictions, ToLongFunction<MyStorageEngine> bytes) {
+        String prefix = "kvdb_" + name + "_cache_";
+        header(out, prefix + "hits_total", "counter", "Lookups served by the " + name + " cache");
+        values(out, engines, prefix + "hits_total", null, hits);
+        header(out, prefix + "misses_total", "counter", "Lookups the " + name + " cache could not serve");
+        values(out, engines, prefix + "misses_total", null, misses);
+        header(out, prefix + "evictions_total", "counter", "Entries evicted from the " + name + " cache");
+        values(out, engines, prefix + "evictions_total", null, evictions);
+        header(out, prefix + "bytes", "gauge", "Bytes held by the " + name + " cache");
+        values(out, engines, prefix + "bytes", null, bytes);
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void values(StringBuilder out, List<MyStorageEngine> engines, String name, String labels,
+            ToLongFunction<MyStorageEngine> value) {
+        for (int i = 0; i < engines.size(); i++) {
+            String sampleLabels = withShard(engines, i, labels);
+            out.append(name);
+            if (sampleLabels != null) {
+                out.append('{').append(sampleLabels).append('}');
+            }
+            out.append(' ').append(value.applyAsLong(engines.get(i))).append('\n');
+        }
+    }
+
+    private static void summaries(StringBuilder out, List<MyStorageEngine> engines, String name, String labels,
+            Function<MyStorageEngine, MyHistogram> histogram) {
+        for (int i = 0; i < engines.size(); i++) {
+            summary(out, name, withShard(engines, i, labels), histogram.apply(engines.get(i)));
+        }
+    }
+
+    private static String withShard(List<MyStorageEngine> engines, int index, String labels) {
+        if (engines.size() == 1) {
+            return labels;
+        }
+        String shard = "shard=\"" + index + "\"";
+        return labels == null ? shard : shard + "," + labels;
+    }
+
+    // Quantiles, sum and count of a nanosecond histogram, in seconds
+    private static void summary(StringBuilder out, String name, String labels, MyHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                .append(seconds(histogram.getPercentile(quantile))).append('\n');
+        }
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(suffix).append(' ').append(seconds(histogram.getSum())).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
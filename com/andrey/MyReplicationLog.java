@@ -0,0 +1,182 @@
+package com.andrey;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leader side of replication by WAL shipping. Every record the engine's WAL appends is kept
+ * here in sequence order until the buffer outgrows its byte budget, and
+ * {@link MyReplicationServer} streams them to each follower from where it left off.
+ *
+ * WAL sequence numbers restart with every process, so each run of the leader has a random
+ * session id, and a position is the pair, written "session:seq". A follower that comes from an
+ * earlier session, or asks for a record that has already been dropped, is sent a snapshot.
+ * Writes to the leader return the position they reached, and a follower asked to read at that
+ * position waits until it has applied it, which gives a client read-your-writes.
+ */
+public class MyReplicationLog implements MyWriteAheadLog.RecordListener {
+    private final long sessionId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    private final long maxBytes;
+    // Guarded by this
+    private final TreeMap<Long, byte[]> records = new TreeMap<>();
+    private long bytes;
+    private long lastSeq;
+    // Streams can't start at or before this; see requireSnapshotThrough
+    private long snapshotThrough;
+    private final Set<Follower> followers = ConcurrentHashMap.newKeySet();
+    private final LongAdder recordsSent = new LongAdder();
+    private final LongAdder snapshotsSent = new LongAdder();
+
+    // A connected follower and the last position it reported applying
+    static final class Follower {
+        final String address;
+        volatile long ackedSeq;
+
+        Follower(String address, long ackedSeq) {
+            this.address = address;
+            this.ackedSeq = ackedSeq;
+        }
+    }
+
+    MyReplicationLog(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Records up to seq were appended before the log was attached to the WAL
+    synchronized void startAfter(long seq) {
+        lastSeq = Math.max(lastSeq, seq);
+    }
+
+    @Override
+    public synchronized void appended(long seq, byte[] record) {
+        records.put(seq, record);
+        bytes += record.length;
+        lastSeq = seq;
+        // The newest record stays even if it alone is over budget
+        while (bytes > maxBytes && records.size() > 1) {
+            bytes -= records.pollFirstEntry().getValue().length;
+        }
+        notifyAll();
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    // Position of the last record appended, as returned to writers
+    public String getPosition() {
+        return position(sessionId, getLastSeq());
+    }
+
+    static String position(long sessionId, long seq) {
+        return Long.toHexString(sessionId) + ":" + seq;
+    }
+
+    // {session, seq} from a position string
+    static long[] parsePosition(String position) {
+        int colon = position.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Invalid replication position " + position);
+        }
+        try {
+            return new long[] {Long.parseUnsignedLong(position.substring(0, colon), 16),
+                Long.parseLong(position.substring(colon + 1))};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid replication position " + position, e);
+        }
+    }
+
+    // Followers that haven't applied past seq must reload from a snapshot, because the engine
+    // changed in a way the records don't carry (a bulk load or an ingested file)
+    synchronized void requireSnapshotThrough(long seq) {
+        snapshotThrough = Math.max(snapshotThrough, seq);
+        while (!records.isEmpty() && records.firstKey() <= snapshotThrough) {
+            bytes -= records.pollFirstEntry().getValue().length;
+        }
+        notifyAll();
+    }
+
+    // Whether a stream can start at seq: it is the next record or still in the buffer
+    synchronized boolean canStreamFrom(long seq) {
+        return seq > snapshotThrough && (seq == lastSeq + 1 || records.containsKey(seq));
+    }
+
+    // Records from seq on, up to about maxBatchBytes of them, waiting up to waitMillis for the
+    // first. Empty if none arrived in time; null if seq has already been dropped.
+    synchronized List<Map.Entry<Long, byte[]>> read(long seq, int maxBatchBytes, long waitMillis)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (seq > lastSeq && seq > snapshotThrough) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return Collections.emptyList();
+            }
+            wait(remaining);
+        }
+        if (seq <= snapshotThrough || !records.containsKey(seq)) {
+            return null;
+        }
+        List<Map.Entry<Long, byte[]>> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for (Map.Entry<Long, byte[]> entry : records.tailMap(seq).entrySet()) {
+            batch.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            batchBytes += entry.getValue().length;
+            if (batchBytes >= maxBatchBytes) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    Follower addFollower(String address, long ackedSeq) {
+        Follower follower = new Follower(address, ackedSeq);
+        followers.add(follower);
+        return follower;
+    }
+
+    void removeFollower(Follower follower) {
+        followers.remove(follower);
+    }
+
+    Collection<Follower> getFollowers() {
+        return Collections.unmodifiableSet(followers);
+    }
+
+    synchronized long getBufferedBytes() {
+        return bytes;
+    }
+
+    synchronized int getBufferedRecords() {
+        return records.size();
+    }
+
+    void addRecordsSent(int count) {
+        recordsSent.add(count);
+    }
+
+    void snapshotSent() {
+        snapshotsSent.increment();
+    }
+
+    long getRecordsSent() {
+        return recordsSent.sum();
+    }
+
+    long getSnapshotsSent() {
+        return snapshotsSent.sum();
+    }
+}
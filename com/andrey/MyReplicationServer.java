@@ -0,0 +1,176 @@
+package com.andrey;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Leader end of replication: streams the engine's WAL records to followers ({@link MyFollower}).
+ *
+ * A follower opens a connection and sends [long session][long appliedSeq], the position it has
+ * applied up to (0 and 0 when it has nothing). If that is in the leader's current session and
+ * the next record is still buffered in the {@link MyReplicationLog}, streaming resumes there.
+ * Otherwise the follower is first sent a snapshot: SNAPSHOT [long session][long seq], one
+ * ENTRY [string key][string value] per live key in key order, then SNAPSHOT_END; strings are
+ * [int byteLength][UTF-8 bytes]. After that come RECORD [long seq][int length][record] messages
+ * with the WAL records in sequence order, each followed by POSITION [long lastSeq] with the
+ * leader's latest record, which is also sent as a heartbeat when there are no writes. The
+ * follower answers with [long appliedSeq] as it goes. A follower that falls so far behind that
+ * its next record has been dropped from the buffer gets a new snapshot on the same connection.
+ *
+ * Records are shipped as soon as they are appended, before the leader has synced them, so a
+ * follower can briefly hold writes that a crash of the leader loses. A restarted leader has a
+ * new session, and every follower reloads from a snapshot of it.
+ */
+public class MyReplicationServer {
+    static final byte MSG_SNAPSHOT = 1;
+    static final byte MSG_ENTRY = 2;
+    static final byte MSG_SNAPSHOT_END = 3;
+    static final byte MSG_RECORD = 4;
+    static final byte MSG_POSITION = 5;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final MyStorageEngine storageEngine;
+    private final MyReplicationLog log;
+    private final ExecutorService executor;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final Thread acceptThread;
+    private volatile boolean closed;
+
+    public MyReplicationServer(int port, MyStorageEngine storageEngine, long bufferBytes) throws IOException {
+        this.storageEngine = storageEngine;
+        this.log = storageEngine.enableReplication(bufferBytes);
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(port));
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "replication-follower-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.acceptThread = new Thread(this::acceptLoop, "replication-acceptor");
+        acceptThread.setDaemon(true);
+    }
+
+    public void start() {
+        acceptThread.start();
+        System.out.println("Replication server started on port " + getPort());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Stops accepting and drops the followers; the storage engine is left open
+    public void stop() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close replication server socket: " + e.getMessage());
+        }
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed by its connection thread
+            }
+        }
+        executor.shutdown();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.add(socket);
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Replication server failed to accept a connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        MyReplicationLog.Follower follower = null;
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+            socket.setTcpNoDelay(true);
+            long session = in.readLong();
+            long appliedSeq = in.readLong();
+            follower = log.addFollower(socket.getRemoteSocketAddress().toString(), appliedSeq);
+            long next = session == log.getSessionId() && log.canStreamFrom(appliedSeq + 1)
+                ? appliedSeq + 1 : sendSnapshot(out);
+            while (!closed) {
+                List<Map.Entry<Long, byte[]>> records = log.read(next,
+                    Constants.REPLICATION_MAX_BATCH_BYTES, Constants.REPLICATION_HEARTBEAT_MILLIS);
+                readAcks(in, follower);
+                if (records == null) {
+                    next = sendSnapshot(out);
+                    continue;
+                }
+                for (Map.Entry<Long, byte[]> record : records) {
+                    out.writeByte(MSG_RECORD);
+                    out.writeLong(record.getKey());
+                    out.writeInt(record.getValue().length);
+                    out.write(record.getValue());
+                    next = record.getKey() + 1;
+                }
+                log.addRecordsSent(records.size());
+                out.writeByte(MSG_POSITION);
+                out.writeLong(log.getLastSeq());
+                out.flush();
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Replication connection closed: " + e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (follower != null) {
+                log.removeFollower(follower);
+            }
+            connections.remove(socket);
+        }
+    }
+
+    // Streams the whole store as of the latest record; returns the sequence number to go on from
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        MySnapshot snapshot = storageEngine.getReplicationSnapshot();
+        long seq = storageEngine.getWalSeq(snapshot);
+        try (MyMergeIterator iterator = new MyMergeIterator(snapshot, MyKeyRange.all(), false)) {
+            out.writeByte(MSG_SNAPSHOT);
+            out.writeLong(log.getSessionId());
+            out.writeLong(seq);
+            while (iterator.next()) {
+                out.writeByte(MSG_ENTRY);
+                MyBinaryServer.writeString(out, iterator.key());
+                MyBinaryServer.writeString(out, iterator.value());
+            }
+            out.writeByte(MSG_SNAPSHOT_END);
+            out.flush();
+        }
+        log.snapshotSent();
+        return seq + 1;
+    }
+
+    // Takes in whatever acknowledgements have arrived without waiting for more
+    private static void readAcks(DataInputStream in, MyReplicationLog.Follower follower) throws IOException {
+        while (in.available() >= Long.BYTES) {
+            follower.ackedSeq = in.readLong();
+        }
+    }
+}
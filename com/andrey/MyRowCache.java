@@ -0,0 +1,167 @@
+package com.andrey;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte-bounded LRU cache of values read from the SSTables. Writes invalidate the key,
+ * so an entry is always the latest value on disk.
+ *
+ * A read that misses takes a stamp before it looks at the memtables and passes it to
+ * {@link #putIfUnchanged}; the value is only cached if no write touched the key's shard
+ * in between, so a lookup racing with a put or delete can never cache a stale value.
+ */
+public class MyRowCache {
+    // Rough per-entry cost on top of the two strings (map node, entry, string headers)
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Shard[] shards;
+    private final long capacityBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MyRowCache(long capacityBytes) {
+        this(capacityBytes, Constants.ROW_CACHE_SHARDS);
+    }
+
+    public MyRowCache(long capacityBytes, int numShards) {
+        this.capacityBytes = capacityBytes;
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard(Math.max(1, capacityBytes / numShards));
+        }
+    }
+
+    public String get(String key) {
+        Shard shard = shardFor(key);
+        String value;
+        synchronized (shard) {
+            value = shard.map.get(key);
+        }
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public long stamp(String key) {
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            return shard.generation;
+        }
+    }
+
+    public void putIfUnchanged(String key, String value, long stamp) {
+        long size = entrySize(key, value);
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            if (shard.generation != stamp || shard.suspended > 0 || size > shard.capacityBytes) {
+                return;
+            }
+            String old = shard.map.put(key, value);
+            if (old != null) {
+                shard.usedBytes -= entrySize(key, old);
+            }
+            shard.usedBytes += size;
+            Iterator<Map.Entry<String, String>> eldest = shard.map.entrySet().iterator();
+            while (shard.usedBytes > shard.capacityBytes && eldest.hasNext()) {
+                Map.Entry<String, String> entry = eldest.next();
+                shard.usedBytes -= entrySize(entry.getKey(), entry.getValue());
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    // Called after every put or delete has been applied to the memtable
+    public void invalidate(String key) {
+        Shard shard = shardFor(key);
+        synchronized (shard) {
+            shard.generation++;
+            String old = shard.map.remove(key);
+            if (old != null) {
+                shard.usedBytes -= entrySize(key, old);
+            }
+        }
+    }
+
+    // Drops every entry and refuses new ones until endInvalidateAll, for writes that bypass
+    // the memtable such as a bulk load. Call it before the new files become visible: a lookup
+    // that read the old files in between can't cache what it found, and one that stamped before
+    // the end is rejected by the second generation bump.
+    public void beginInvalidateAll() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.generation++;
+                shard.suspended++;
+                shard.map.clear();
+                shard.usedBytes = 0;
+            }
+        }
+    }
+
+    // Called once the new files are visible, including when publishing them failed
+    public void endInvalidateAll() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.generation++;
+                shard.suspended--;
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                used += shard.usedBytes;
+            }
+        }
+        return used;
+    }
+
+    private static long entrySize(String key, String value) {
+        return 2L * (key.length() + value.length()) + ENTRY_OVERHEAD;
+    }
+
+    private Shard shardFor(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    private static class Shard {
+        private final long capacityBytes;
+        // Access order, so iteration starts at the least recently used entry
+        private final LinkedHashMap<String, String> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long usedBytes;
+        private long generation;
+        // Open beginInvalidateAll calls; entries can't be added while it's above zero
+        private int suspended;
+
+        Shard(long capacityBytes) {
+            this.capacityBytes = capacityBytes;
+        }
+    }
+}
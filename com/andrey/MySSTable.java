@@ -1,44 +1,300 @@
 package com.andrey;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MySSTable {
     private final String dataDir;
-    private TreeMap<Long, Path> sortedFilesList;
+    // Newest first. Replaced as a whole so flushes and compaction can swap the file set under readers.
+    // The set owns one reference on each reader and drops it when the file leaves the set.
+    private volatile NavigableMap<Long, MySSTableReader> sortedFilesList;
     private volatile long fileCounter;
+    private final MyCompactor compactor;
+    // Shared by all readers; null when block caching is disabled
+    private final MyBlockCache blockCache;
+    // Codec for files written from now on; existing files keep the one they were written with
+    private final MySSTableWriter.Compression compression;
+    // Read amplification: files a lookup searched and files its Bloom filters ruled out
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder filesSearched = new LongAdder();
+    private final LongAdder bloomSkips = new LongAdder();
+    private final MyHistogram flushTimes = new MyHistogram();
 
     public MySSTable(String dataDir) throws IOException {
+        this(dataDir, null);
+    }
+
+    public MySSTable(String dataDir, MyBlockCache blockCache) throws IOException {
+        this(dataDir, blockCache, MySSTableWriter.Compression.NONE);
+    }
+
+    public MySSTable(String dataDir, MyBlockCache blockCache, MySSTableWriter.Compression compression)
+            throws IOException {
         this.dataDir = dataDir;
-        this.fileCounter = getNextFileCounter();
+        this.blockCache = blockCache;
+        this.compression = compression;
         Files.createDirectories(Paths.get(dataDir));
-        this.sortedFilesList = new TreeMap<>((a, b) -> b.compareTo(a)); // Reverse order
+        completeInterruptedIngest();
+        this.fileCounter = getNextFileCounter();
+        deleteLeftoverTempFiles();
         loadSortedFilesList();
+        this.compactor = new MyCompactor(this);
+        compactor.maybeScheduleCompaction();
     }
     
     public void flush(MyMemTable memTable) throws IOException {
-        Map<String, String> data = memTable.getAll();
-        if (data.isEmpty()) {
+        if (memTable.isEmpty()) {
             return;
         }
         
-        String filename = generateFilename();
-        try (RandomAccessFile writer = new RandomAccessFile(filename, "rw")) {
-            // Write number of entries at the start of file
-            writer.writeInt(data.size());
-            
-            for (Map.Entry<String, String> entry : data.entrySet()) {
-                String line = String.format("%s,%s\n", entry.getKey(), entry.getValue());
-                writer.write(line.getBytes());
+        long start = System.nanoTime();
+        long fileNumber = nextFileNumber();
+        Path file = filePath(fileNumber);
+        // Written under a temporary name so a concurrent directory scan never sees a partial file
+        Path tmp = Paths.get(file.toString() + Constants.TMP_SUFFIX);
+        try (MySSTableWriter writer = new MySSTableWriter(tmp, memTable.getCurrentSize(), compression)) {
+            memTable.writeTo(writer);
+            writer.finish();
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        // The caller deletes the memtable's WAL segments next, so the rename has to be durable
+        syncDirectory(Paths.get(dataDir));
+        addFile(fileNumber, MySSTableReader.open(file, blockCache));
+        flushTimes.recordSince(start);
+        compactor.maybeScheduleCompaction();
+    }
+
+    // Moves finished files into the file set under new file numbers, later files newest, and
+    // publishes them in one swap so a lookup sees all of them or none of them. The moves are
+    // listed in a manifest before the first one, and a crash part way through is rolled
+    // forward when the directory is next opened, so on disk, too, either every file joins the
+    // set or none does. On failure every input file is deleted.
+    public synchronized void ingest(List<Path> newFiles) throws IOException {
+        Path dir = Paths.get(dataDir);
+        Path manifest = dir.resolve(Constants.INGEST_MANIFEST);
+        Map<Long, Path> targets = new TreeMap<>();
+        List<MySSTableReader> opened = new ArrayList<>();
+        try {
+            StringBuilder moves = new StringBuilder();
+            for (Path newFile : newFiles) {
+                syncFile(newFile);
+                long fileNumber = nextFileNumber();
+                targets.put(fileNumber, filePath(fileNumber));
+                moves.append(newFile.getFileName()).append('\t')
+                    .append(filePath(fileNumber).getFileName()).append('\n');
+            }
+            Path tmp = Paths.get(manifest + Constants.TMP_SUFFIX);
+            Files.write(tmp, moves.toString().getBytes(StandardCharsets.UTF_8));
+            syncFile(tmp);
+            Files.move(tmp, manifest, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(dir);
+
+            Iterator<Path> sources = newFiles.iterator();
+            for (Path target : targets.values()) {
+                Files.move(sources.next(), target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            syncDirectory(dir);
+            Files.delete(manifest);
+            syncDirectory(dir);
+
+            TreeMap<Long, MySSTableReader> files = new TreeMap<>(sortedFilesList);
+            for (Map.Entry<Long, Path> target : targets.entrySet()) {
+                MySSTableReader reader = MySSTableReader.open(target.getValue(), blockCache);
+                opened.add(reader);
+                files.put(target.getKey(), reader);
+            }
+            sortedFilesList = Collections.unmodifiableNavigableMap(files);
+        } catch (IOException | RuntimeException e) {
+            releaseFiles(opened);
+            // The manifest goes first, so a crash while cleaning up can't roll the rest forward
+            List<Path> leftovers = new ArrayList<>();
+            leftovers.add(manifest);
+            leftovers.addAll(newFiles);
+            leftovers.addAll(targets.values());
+            for (Path file : leftovers) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+        compactor.maybeScheduleCompaction();
+    }
+
+    // Finishes the moves of an ingest that a crash interrupted. Its files were complete and
+    // synced before the manifest was written, so the moves can always be completed.
+    private void completeInterruptedIngest() throws IOException {
+        Path dir = Paths.get(dataDir);
+        Path manifest = dir.resolve(Constants.INGEST_MANIFEST);
+        if (!Files.exists(manifest)) {
+            return;
+        }
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                continue;
+            }
+            Path source = dir.resolve(line.substring(0, tab));
+            if (Files.exists(source)) {
+                Files.move(source, dir.resolve(line.substring(tab + 1)), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        syncDirectory(dir);
+        Files.delete(manifest);
+        syncDirectory(dir);
+    }
+
+    NavigableMap<Long, MySSTableReader> getFiles() {
+        return sortedFilesList;
+    }
+
+    public MyBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public MySSTableWriter.Compression getCompression() {
+        return compression;
+    }
+
+    public int getFileCount() {
+        return sortedFilesList.size();
+    }
+
+    public long getTotalFileBytes() {
+        long bytes = 0;
+        for (MySSTableReader reader : sortedFilesList.values()) {
+            bytes += reader.getFileSize();
+        }
+        return bytes;
+    }
+
+    public long getLookups() {
+        return lookups.sum();
+    }
+
+    public long getFilesSearched() {
+        return filesSearched.sum();
+    }
+
+    public long getBloomSkips() {
+        return bloomSkips.sum();
+    }
+
+    public MyHistogram getFlushTimes() {
+        return flushTimes;
+    }
+
+    public MyHistogram getCompactionTimes() {
+        return compactor.getCompactionTimes();
+    }
+
+    public void compact() throws IOException {
+        compactor.compactAll();
+    }
+
+    // Swaps a finished compaction into the file set. The merged file replaces the oldest input
+    // first, so every remaining input is a newer file holding the same latest versions; a crash
+    // before the other inputs are deleted leaves a correct (if redundant) set of files.
+    synchronized void installCompaction(List<Long> inputs, long oldest, Path merged) throws IOException {
+        Path target = sortedFilesList.get(oldest).getPath();
+        Files.move(merged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Durable before any input goes, or a crash could leave neither the merge nor its inputs
+        syncDirectory(Paths.get(dataDir));
+        Files.deleteIfExists(bloomPath(target));
+
+        TreeMap<Long, MySSTableReader> files = new TreeMap<>(sortedFilesList);
+        List<MySSTableReader> removed = new ArrayList<>();
+        removed.add(files.put(oldest, MySSTableReader.open(target, blockCache)));
+        for (Long number : inputs) {
+            if (number != oldest) {
+                MySSTableReader reader = files.remove(number);
+                removed.add(reader);
+                Files.deleteIfExists(reader.getPath());
+                Files.deleteIfExists(bloomPath(reader.getPath()));
+            }
+        }
+        sortedFilesList = Collections.unmodifiableNavigableMap(files);
+        // Lookups still holding these readers keep them open; the last release closes them
+        releaseFiles(removed);
+    }
+
+    static void syncFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    // Makes the renames and deletions in dir durable. Where the platform can't open a directory
+    // (Windows), the rename itself is all there is.
+    static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Directories can't be opened here
+        }
+    }
+
+    public void close() {
+        compactor.shutdown();
+        synchronized (this) {
+            releaseFiles(sortedFilesList.values());
+            sortedFilesList = Collections.unmodifiableNavigableMap(new TreeMap<>((a, b) -> b.compareTo(a)));
+        }
+    }
+
+    // Takes a reference on every file in the current set, newest first. If a swap released one
+    // of them in between, the set has already been replaced and the next attempt sees the new one.
+    List<MySSTableReader> acquireFiles() {
+        while (true) {
+            Collection<MySSTableReader> files = sortedFilesList.values();
+            List<MySSTableReader> acquired = new ArrayList<>(files.size());
+            for (MySSTableReader reader : files) {
+                if (!reader.retain()) {
+                    break;
+                }
+                acquired.add(reader);
+            }
+            if (acquired.size() == files.size()) {
+                return acquired;
+            }
+            releaseFiles(acquired);
+        }
+    }
+
+    static void releaseFiles(Collection<MySSTableReader> files) {
+        for (MySSTableReader reader : files) {
+            reader.release();
+        }
+    }
+
+    private void deleteLeftoverTempFiles() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dataDir),
+                Constants.FILE_PREFIX + "*" + Constants.TMP_SUFFIX)) {
+            for (Path file : stream) {
+                Files.delete(file);
             }
         }
-        loadSortedFilesList();           
     }
 
     private synchronized void loadSortedFilesList() throws IOException {
-        sortedFilesList.clear();
+        TreeMap<Long, MySSTableReader> files = new TreeMap<>((a, b) -> b.compareTo(a)); // Reverse order
         
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dataDir), 
                 Constants.FILE_PREFIX + "*" + Constants.FILE_SUFFIX)) {
@@ -46,31 +302,90 @@ public class MySSTable {
                 String fileName = file.getFileName().toString();
                 long fileNumber = Long.parseLong(fileName.substring(Constants.FILE_PREFIX.length(), 
                         fileName.length() - Constants.FILE_SUFFIX.length()));
-                sortedFilesList.put(fileNumber, file);
+                files.put(fileNumber, MySSTableReader.open(file, blockCache));
             }
         }
+        sortedFilesList = Collections.unmodifiableNavigableMap(files);
+    }
+
+    private synchronized void addFile(long fileNumber, MySSTableReader reader) {
+        TreeMap<Long, MySSTableReader> files = new TreeMap<>(sortedFilesList);
+        files.put(fileNumber, reader);
+        sortedFilesList = Collections.unmodifiableNavigableMap(files);
     }
     
-    private synchronized String generateFilename() {
-        return Paths.get(dataDir, Constants.FILE_PREFIX + (fileCounter++) + Constants.FILE_SUFFIX).toString();
+    private synchronized long nextFileNumber() {
+        return fileCounter++;
+    }
+
+    private Path filePath(long fileNumber) {
+        return Paths.get(dataDir, Constants.FILE_PREFIX + fileNumber + Constants.FILE_SUFFIX);
+    }
+
+    // Bloom filter sidecar of a legacy text-format file
+    static Path bloomPath(Path file) {
+        return Paths.get(file.toString() + Constants.BLOOM_SUFFIX);
     }
     
-    public void cleanup() throws IOException {
+    public synchronized void cleanup() throws IOException {
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dataDir), Constants.FILE_PREFIX + "*" + Constants.FILE_SUFFIX)) {
             for (Path file : stream) {
                 Files.delete(file);
+                Files.deleteIfExists(bloomPath(file));
+            }
+        }
+        releaseFiles(sortedFilesList.values());
+        sortedFilesList = Collections.unmodifiableNavigableMap(new TreeMap<>((a, b) -> b.compareTo(a)));
+    }
+
+    public String get(String key) throws IOException {
+        lookups.increment();
+        List<MySSTableReader> files = acquireFiles();
+        try {
+            for (MySSTableReader reader : files) {
+                if (!reader.mightContain(key)) {
+                    bloomSkips.increment();
+                    continue;
+                }
+                filesSearched.increment();
+                String result = reader.get(key);
+                if (result != null) {
+                    return Constants.TOMBSTONE.equals(result) ? null : result;
+                }
             }
+            return null;
+        } finally {
+            releaseFiles(files);
         }
     }
 
-    public synchronized String get(String key) throws IOException {
-        for (Path file : sortedFilesList.values()) {
-            String result = binarySearchInFile(file.toFile(), key);
-            if (result != null) {
-                return Constants.TOMBSTONE.equals(result) ? null : result;
+    // Looks up distinct keys given in ascending order with one pass over each file, newest first;
+    // a file is only asked for the keys no newer file has. Deleted keys map to Constants.TOMBSTONE.
+    public Map<String, String> getAll(List<String> sortedKeys) throws IOException {
+        Map<String, String> found = new HashMap<>();
+        List<String> remaining = sortedKeys;
+        List<MySSTableReader> files = acquireFiles();
+        try {
+            for (MySSTableReader reader : files) {
+                if (remaining.isEmpty()) {
+                    break;
+                }
+                int foundBefore = found.size();
+                reader.getAll(remaining, found);
+                if (found.size() > foundBefore) {
+                    List<String> stillMissing = new ArrayList<>(remaining.size() - (found.size() - foundBefore));
+                    for (String key : remaining) {
+                        if (!found.containsKey(key)) {
+                            stillMissing.add(key);
+                        }
+                    }
+                    remaining = stillMissing;
+                }
             }
+            return found;
+        } finally {
+            releaseFiles(files);
         }
-        return null;
     }
 
     private long getNextFileCounter() {
@@ -97,99 +412,24 @@ public class MySSTable {
         }
     }
 
-    private String binarySearchInFile(File file, String searchKey) throws IOException {
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            // Read number of entries
-            int numEntries = raf.readInt();
-            if (numEntries == 0) {
-                return null;
-            }
-
-            // Perform binary search
-            long start = raf.getFilePointer();
-            long end = raf.length();
-            
-            while (start < end) {
-                long mid = start + (end - start) / 2;
-                
-                // Seek to the start of a line
-                raf.seek(mid);
-                if (mid > start) {
-                    // Skip partial line if we're not at the start
-                    raf.readLine();
-                }
-                
-                // Read and parse the line
-                String line = raf.readLine();
-                if (line == null) {
-                    end = mid;
-                    continue;
-                }
-                
-                String[] parts = line.split(",", 2);
-                if (parts.length != 2) {
-                    continue;
-                }
-                
-                int comparison = parts[0].compareTo(searchKey);
-                if (comparison == 0) {
-                    return parts[1];
-                } else if (comparison < 0) {
-                    start = raf.getFilePointer();
-                } else {
-                    end = mid;
-                }
-            }
-        }
-        return null;
-    }
-
-    public synchronized Map<String, String> getBatch(String keyStart, String keyEnd) throws IOException {
+    public Map<String, String> getBatch(String keyStart, String keyEnd) throws IOException {
         Map<String, String> results = new TreeMap<>();
         
         // Iterate through files from newest to oldest
-        for (Path file : sortedFilesList.values()) {
-            Map<String, String> fileResults = readBatchFromFile(file.toFile(), keyStart, keyEnd);
-            
-            // Only add entries that we haven't seen yet
-            for (Map.Entry<String, String> entry : fileResults.entrySet()) {
-                if (!results.containsKey(entry.getKey())) {
-                    results.put(entry.getKey(), entry.getValue());
-                }
-            }
-        }
-        
-        return results;
-    }
-
-    private Map<String, String> readBatchFromFile(File file, String keyStart, String keyEnd) throws IOException {
-        Map<String, String> results = new TreeMap<>();
-        
-        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-            // Skip the number of entries at the start
-            int numEntries = raf.readInt();
-            
-            // Read through the file sequentially
-            String line;
-            while ((line = raf.readLine()) != null) {
-                String[] parts = line.split(",", 2);
-                if (parts.length != 2) continue;
-                
-                String key = parts[0];
-                String value = parts[1];
-                
-                // Check if key is in range
-                if (key.compareTo(keyStart) >= 0 && key.compareTo(keyEnd) <= 0) {
-                    results.put(key, value);
-                }
-                
-                // Optimization: if we've passed the end key, we can stop
-                if (key.compareTo(keyEnd) > 0) {
-                    break;
+        List<MySSTableReader> files = acquireFiles();
+        try {
+            for (MySSTableReader reader : files) {
+                try (MySSTableReader.Scanner scanner = reader.scan(keyStart)) {
+                    // Only add entries that we haven't seen yet
+                    while (scanner.next() && scanner.key().compareTo(keyEnd) <= 0) {
+                        results.putIfAbsent(scanner.key(), scanner.value());
+                    }
                 }
             }
+        } finally {
+            releaseFiles(files);
         }
         
         return results;
     }
-} 
\ No newline at end of file
+} 
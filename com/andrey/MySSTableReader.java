@@ -0,0 +1,662 @@
+package com.andrey;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Read side of one SSTable file. The footer, sparse index and Bloom filter are loaded
+ * once when the file is opened; a lookup then costs one index search plus one block read.
+ * Block-format files are opened once and memory-mapped, so block reads are zero-copy slices.
+ * Legacy text files (version 1) are still served through a line-based binary search.
+ *
+ * Readers are reference counted. The file set in {@link MySSTable} holds one reference and
+ * every in-flight lookup or scan holds another; the channel is closed when the last one is
+ * released, so a file dropped by compaction stays readable until its readers are done.
+ *
+ * Blocks go through the shared {@link MyBlockCache} when one is configured. Cache keys use a
+ * per-reader file id rather than the file number, because compaction reuses file numbers.
+ * Compressed blocks are inflated when they are read and cached inflated, so a cache hit costs
+ * the same whatever the file's codec.
+ */
+public class MySSTableReader {
+    private static final AtomicLong NEXT_FILE_ID = new AtomicLong();
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private final Path path;
+    private final long fileId = NEXT_FILE_ID.incrementAndGet();
+    private final MyBlockCache blockCache;
+    private final FileChannel channel;
+    // Null when the file is too large to map in one piece or mapping is disabled
+    private final MappedByteBuffer mapped;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final byte version;
+    private final MySSTableWriter.Compression compression;
+    private final long fileSize;
+    private final long entryCount;
+    private final MyBloomFilter filter;
+    // Sparse index: first key and location of every data block (block format only)
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+
+    private MySSTableReader(Path path, MyBlockCache blockCache, FileChannel channel, MappedByteBuffer mapped,
+                            byte version, MySSTableWriter.Compression compression, long fileSize,
+                            long entryCount, MyBloomFilter filter,
+                            String[] blockKeys, long[] blockOffsets, int[] blockLengths) {
+        this.path = path;
+        this.blockCache = blockCache;
+        this.channel = channel;
+        this.mapped = mapped;
+        this.version = version;
+        this.compression = compression;
+        this.fileSize = fileSize;
+        this.entryCount = entryCount;
+        this.filter = filter;
+        this.blockKeys = blockKeys;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+    }
+
+    public static MySSTableReader open(Path path) throws IOException {
+        return open(path, null);
+    }
+
+    public static MySSTableReader open(Path path, MyBlockCache blockCache) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize >= MySSTableWriter.FOOTER_SIZE) {
+                ByteBuffer tail = readFully(channel, fileSize - 9, 9);
+                byte version = tail.get();
+                if (tail.getLong() == MySSTableWriter.MAGIC) {
+                    return openBlockFormat(path, blockCache, channel, fileSize, version);
+                }
+            }
+            // Legacy files are read through RandomAccessFile.readLine and keep no open channel
+            long entryCount = fileSize >= 4 ? readFully(channel, 0, 4).getInt() : 0;
+            channel.close();
+            return new MySSTableReader(path, null, null, null, MySSTableWriter.VERSION_TEXT,
+                    MySSTableWriter.Compression.NONE, fileSize, entryCount,
+                    loadLegacyBloomFilter(path, fileSize), null, null, null);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static MySSTableReader openBlockFormat(Path path, MyBlockCache blockCache, FileChannel channel,
+                                                   long fileSize, byte version)
+            throws IOException {
+        if (version != MySSTableWriter.VERSION_BLOCK && version != MySSTableWriter.VERSION_COMPRESSED) {
+            throw new IOException("Unsupported SSTable version " + version + " in " + path);
+        }
+        int footerSize = version == MySSTableWriter.VERSION_COMPRESSED
+            ? MySSTableWriter.COMPRESSED_FOOTER_SIZE : MySSTableWriter.FOOTER_SIZE;
+        ByteBuffer footer = readFully(channel, fileSize - footerSize, footerSize);
+        long indexOffset = footer.getLong();
+        int indexLength = footer.getInt();
+        long filterOffset = footer.getLong();
+        int filterLength = footer.getInt();
+        long entryCount = footer.getLong();
+        MySSTableWriter.Compression compression = version == MySSTableWriter.VERSION_COMPRESSED
+            ? MySSTableWriter.Compression.fromId(footer.get()) : MySSTableWriter.Compression.NONE;
+
+        ByteBuffer buffer = readFully(channel, indexOffset, indexLength);
+        int numBlocks = buffer.getInt();
+        String[] blockKeys = new String[numBlocks];
+        long[] blockOffsets = new long[numBlocks];
+        int[] blockLengths = new int[numBlocks];
+        for (int i = 0; i < numBlocks; i++) {
+            blockKeys[i] = readString(buffer, buffer.getInt());
+            blockOffsets[i] = buffer.getLong();
+            blockLengths[i] = buffer.getInt();
+        }
+
+        ByteBuffer filterBytes = readFully(channel, filterOffset, filterLength);
+        MyBloomFilter filter = MyBloomFilter.readFrom(new DataInputStream(
+                new ByteArrayInputStream(filterBytes.array(), 0, filterLength)));
+
+        MappedByteBuffer mapped = null;
+        if (Constants.SSTABLE_USE_MMAP && indexOffset <= Integer.MAX_VALUE) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, indexOffset);
+        }
+        return new MySSTableReader(path, blockCache, channel, mapped, version, compression, fileSize, entryCount,
+                filter, blockKeys, blockOffsets, blockLengths);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of SSTable file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    // Takes a reference for a lookup or scan. Fails once the reader has been fully released.
+    public boolean retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count == 0) {
+                return false;
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    public void release() {
+        if (refCount.decrementAndGet() == 0 && channel != null) {
+            try {
+                // The mapping itself is unmapped by the GC once the buffer is unreachable
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public byte getVersion() {
+        return version;
+    }
+
+    public MySSTableWriter.Compression getCompression() {
+        return compression;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public boolean mightContain(String key) {
+        return filter.mightContain(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Returns the stored value, Constants.TOMBSTONE for a delete, or null if the key is absent
+    public String get(String key) throws IOException {
+        if (version == MySSTableWriter.VERSION_TEXT) {
+            return binarySearchInFile(key);
+        }
+        int blockIndex = findBlock(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        ByteBuffer block = readBlock(blockIndex, true);
+        while (block.hasRemaining()) {
+            String recordKey = readString(block, block.getInt());
+            byte type = block.get();
+            int valueLength = block.getInt();
+            int comparison = recordKey.compareTo(key);
+            if (comparison == 0) {
+                return type == MySSTableWriter.TYPE_DELETE ? Constants.TOMBSTONE : readString(block, valueLength);
+            } else if (comparison > 0) {
+                return null;
+            }
+            block.position(block.position() + valueLength);
+        }
+        return null;
+    }
+
+    // Looks up distinct keys given in ascending order and puts the ones present into found, with
+    // values as get() returns them. Keys that share a block read it once and walk it forwards
+    // from where the previous key stopped.
+    public void getAll(List<String> sortedKeys, Map<String, String> found) throws IOException {
+        int blockIndex = -1;
+        ByteBuffer block = null;
+        // Header of the record at the block's current position, read but not yet consumed
+        String recordKey = null;
+        byte type = 0;
+        int valueLength = 0;
+        for (String key : sortedKeys) {
+            if (!mightContain(key)) {
+                continue;
+            }
+            if (version == MySSTableWriter.VERSION_TEXT) {
+                String value = binarySearchInFile(key);
+                if (value != null) {
+                    found.put(key, value);
+                }
+                continue;
+            }
+            int keyBlock = findBlock(key);
+            if (keyBlock < 0) {
+                continue;
+            }
+            if (keyBlock != blockIndex) {
+                blockIndex = keyBlock;
+                block = readBlock(blockIndex, true);
+                recordKey = null;
+            }
+            while (recordKey != null || block.hasRemaining()) {
+                if (recordKey == null) {
+                    recordKey = readString(block, block.getInt());
+                    type = block.get();
+                    valueLength = block.getInt();
+                }
+                int comparison = recordKey.compareTo(key);
+                if (comparison > 0) {
+                    // Absent; the record may still match a later key
+                    break;
+                }
+                recordKey = null;
+                if (comparison == 0) {
+                    found.put(key, type == MySSTableWriter.TYPE_DELETE
+                        ? Constants.TOMBSTONE : readString(block, valueLength));
+                    break;
+                }
+                block.position(block.position() + valueLength);
+            }
+        }
+    }
+
+    // Iterates entries in key order starting at the first key >= fromKey (or the start if null)
+    // The caller must hold a reference for as long as the scanner is open.
+    public Scanner scan(String fromKey) throws IOException {
+        return scan(fromKey, true);
+    }
+
+    // Bulk readers such as compaction pass fillCache = false so they don't evict the hot set
+    public Scanner scan(String fromKey, boolean fillCache) throws IOException {
+        Scanner scanner = version == MySSTableWriter.VERSION_TEXT
+            ? new TextScanner() : new BlockScanner(fromKey, fillCache);
+        if (fromKey != null) {
+            scanner.skipTo(fromKey);
+        }
+        return scanner;
+    }
+
+    // Iterates entries in descending key order starting at the last key <= fromKey (or the end
+    // if null). The caller must hold a reference for as long as the scanner is open.
+    public Scanner scanReverse(String fromKey) throws IOException {
+        return version == MySSTableWriter.VERSION_TEXT
+            ? new ReverseTextScanner(fromKey) : new ReverseBlockScanner(fromKey);
+    }
+
+    // Index of the last block whose first key is <= key, or -1 if key sorts before the file
+    private int findBlock(String key) {
+        int low = 0;
+        int high = blockKeys.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockKeys[mid].compareTo(key) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    private ByteBuffer readBlock(int blockIndex, boolean fillCache) throws IOException {
+        if (blockCache != null) {
+            ByteBuffer cached = blockCache.get(fileId, blockIndex);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ByteBuffer block;
+        if (mapped != null) {
+            block = mapped.slice((int) blockOffsets[blockIndex], blockLengths[blockIndex]);
+        } else {
+            block = readFully(channel, blockOffsets[blockIndex], blockLengths[blockIndex]);
+        }
+        if (version == MySSTableWriter.VERSION_COMPRESSED) {
+            block = decompress(block);
+        }
+        if (blockCache != null && fillCache) {
+            if (block.isDirect()) {
+                // Cache a heap copy so the entry doesn't pin the mapping of a dropped file
+                block = ByteBuffer.allocate(block.remaining()).put(block).flip();
+            }
+            blockCache.put(fileId, blockIndex, block);
+            return block.duplicate();
+        }
+        return block;
+    }
+
+    // Strips the codec byte of a version 3 block and inflates it if it was stored compressed
+    private ByteBuffer decompress(ByteBuffer stored) throws IOException {
+        MySSTableWriter.Compression codec = MySSTableWriter.Compression.fromId(stored.get());
+        if (codec == MySSTableWriter.Compression.NONE) {
+            return stored.slice();
+        }
+        byte[] raw = new byte[stored.getInt()];
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(stored);
+        try {
+            int length = 0;
+            while (length < raw.length) {
+                int n = inflater.inflate(raw, length, raw.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Truncated compressed block in " + path);
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block in " + path, e);
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // RandomAccessFile.readLine widens each byte to a char; undo that to get the UTF-8 text back
+    private static String decodeLegacyLine(String line) {
+        return new String(line.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+
+    private String binarySearchInFile(String searchKey) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+            // Read number of entries
+            int numEntries = raf.readInt();
+            if (numEntries == 0) {
+                return null;
+            }
+
+            // Perform binary search
+            long start = raf.getFilePointer();
+            long end = raf.length();
+
+            while (start < end) {
+                long mid = start + (end - start) / 2;
+
+                // Seek to the start of the first line beginning at or after mid. Reading from
+                // mid - 1 keeps a line that starts exactly at mid from being skipped.
+                if (mid > start) {
+                    raf.seek(mid - 1);
+                    raf.readLine();
+                } else {
+                    raf.seek(mid);
+                }
+
+                // Read and parse the line
+                String line = raf.readLine();
+                if (line == null) {
+                    end = mid;
+                    continue;
+                }
+
+                String[] parts = decodeLegacyLine(line).split(",", 2);
+                if (parts.length != 2) {
+                    continue;
+                }
+
+                int comparison = parts[0].compareTo(searchKey);
+                if (comparison == 0) {
+                    return parts[1];
+                } else if (comparison < 0) {
+                    start = raf.getFilePointer();
+                } else {
+                    end = mid;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Legacy files keep their Bloom filter in a sidecar that records the data file's length;
+    // it is rebuilt from the file when missing, corrupt or stale
+    private static MyBloomFilter loadLegacyBloomFilter(Path file, long fileSize) throws IOException {
+        Path sidecar = MySSTable.bloomPath(file);
+        if (Files.exists(sidecar)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(sidecar.toFile())))) {
+                if (in.readLong() == fileSize) {
+                    return MyBloomFilter.readFrom(in);
+                }
+            } catch (IOException e) {
+                // Fall through and rebuild
+            }
+        }
+
+        MyBloomFilter filter;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()))) {
+            int numEntries = new DataInputStream(in).readInt();
+            filter = MyBloomFilter.create(numEntries, Constants.BLOOM_BITS_PER_KEY);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",", 2);
+                if (parts.length == 2) {
+                    filter.add(parts[0].getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        Path tmp = Paths.get(sidecar.toString() + Constants.TMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp.toFile())))) {
+            out.writeLong(fileSize);
+            filter.writeTo(out);
+        }
+        Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return filter;
+    }
+
+    /**
+     * Forward cursor over a file's entries. Values are returned as stored, with deletes
+     * reported as Constants.TOMBSTONE.
+     */
+    public abstract static class Scanner implements Closeable {
+        protected String key;
+        protected String value;
+        // Set by skipTo when it has already read the entry the next call must return
+        protected boolean pending;
+
+        public abstract boolean next() throws IOException;
+
+        public String key() {
+            return key;
+        }
+
+        public String value() {
+            return value;
+        }
+
+        // Positions the scanner so the next call to next() returns the first key >= target
+        void skipTo(String target) throws IOException {
+            pending = false;
+            while (next()) {
+                if (key.compareTo(target) >= 0) {
+                    pending = true;
+                    return;
+                }
+            }
+        }
+
+        protected boolean consumePending() {
+            if (pending) {
+                pending = false;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private class BlockScanner extends Scanner {
+        private final boolean fillCache;
+        private int blockIndex;
+        private ByteBuffer block;
+
+        BlockScanner(String fromKey, boolean fillCache) {
+            this.fillCache = fillCache;
+            this.blockIndex = fromKey == null ? 0 : Math.max(0, findBlock(fromKey));
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (consumePending()) {
+                return true;
+            }
+            while (block == null || !block.hasRemaining()) {
+                if (blockIndex >= blockKeys.length) {
+                    return false;
+                }
+                block = readBlock(blockIndex++, fillCache);
+            }
+            key = readString(block, block.getInt());
+            byte type = block.get();
+            int valueLength = block.getInt();
+            if (type == MySSTableWriter.TYPE_DELETE) {
+                value = Constants.TOMBSTONE;
+                block.position(block.position() + valueLength);
+            } else {
+                value = readString(block, valueLength);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            block = null;
+        }
+    }
+
+    // Decodes one block at a time and walks it backwards, then moves on to the block before
+    private class ReverseBlockScanner extends Scanner {
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private int blockIndex;
+        // Next entry of the loaded block to return, -1 once it is used up
+        private int position = -1;
+
+        ReverseBlockScanner(String fromKey) throws IOException {
+            this.blockIndex = fromKey == null ? blockKeys.length - 1 : findBlock(fromKey);
+            if (blockIndex >= 0) {
+                loadBlock(blockIndex--);
+                while (position >= 0 && fromKey != null && keys.get(position).compareTo(fromKey) > 0) {
+                    position--;
+                }
+            }
+        }
+
+        private void loadBlock(int index) throws IOException {
+            keys.clear();
+            values.clear();
+            ByteBuffer block = readBlock(index, true);
+            while (block.hasRemaining()) {
+                keys.add(readString(block, block.getInt()));
+                byte type = block.get();
+                int valueLength = block.getInt();
+                if (type == MySSTableWriter.TYPE_DELETE) {
+                    values.add(Constants.TOMBSTONE);
+                    block.position(block.position() + valueLength);
+                } else {
+                    values.add(readString(block, valueLength));
+                }
+            }
+            position = keys.size() - 1;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (position < 0) {
+                if (blockIndex < 0) {
+                    return false;
+                }
+                loadBlock(blockIndex--);
+            }
+            key = keys.get(position);
+            value = values.get(position);
+            position--;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            keys.clear();
+            values.clear();
+        }
+    }
+
+    // Legacy files have no index to walk backwards with, so the entries up to fromKey are read
+    // forwards once and returned in reverse
+    private class ReverseTextScanner extends Scanner {
+        private final List<String[]> entries = new ArrayList<>();
+        private int position;
+
+        ReverseTextScanner(String fromKey) throws IOException {
+            try (TextScanner scanner = new TextScanner()) {
+                while (scanner.next() && (fromKey == null || scanner.key().compareTo(fromKey) <= 0)) {
+                    entries.add(new String[] {scanner.key(), scanner.value()});
+                }
+            }
+            position = entries.size() - 1;
+        }
+
+        @Override
+        public boolean next() {
+            if (position < 0) {
+                return false;
+            }
+            key = entries.get(position)[0];
+            value = entries.get(position)[1];
+            position--;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            entries.clear();
+        }
+    }
+
+    private class TextScanner extends Scanner {
+        private final BufferedReader reader;
+
+        TextScanner() throws IOException {
+            InputStream in = new BufferedInputStream(new FileInputStream(path.toFile()));
+            in.skipNBytes(4);
+            this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (consumePending()) {
+                return true;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",", 2);
+                if (parts.length == 2) {
+                    key = parts[0];
+                    value = parts[1];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.andrey;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an SSTable in the block format. Entries must be added in key order.
+ *
+ * Layout:
+ *   data blocks    records of [int keyLen][key][byte type][int valueLen][value]
+ *   index block    [int count] then per block [int keyLen][first key][long offset][int length]
+ *   filter block   serialized {@link MyBloomFilter}
+ *   footer         [long indexOffset][int indexLength][long filterOffset][int filterLength]
+ *                  [long entryCount][byte version][long magic]
+ *
+ * Files written with compression are version 3. Each data block is stored as [byte codec]
+ * followed by the records as they are for NONE, or by [int rawLength][compressed records];
+ * a block that does not shrink is stored uncompressed. The footer gains a byte naming the
+ * file's codec just before the version. The index and filter blocks are never compressed.
+ *
+ * Legacy files (int count followed by "key,value\n" lines) have no magic and are version 1.
+ */
+public class MySSTableWriter implements Closeable {
+    static final long MAGIC = 0x4D794B5644425353L; // "MyKVDBSS"
+    static final byte VERSION_TEXT = 1;
+    static final byte VERSION_BLOCK = 2;
+    static final byte VERSION_COMPRESSED = 3;
+    static final int FOOTER_SIZE = 8 + 4 + 8 + 4 + 8 + 1 + 8;
+    static final int COMPRESSED_FOOTER_SIZE = FOOTER_SIZE + 1;
+    static final byte TYPE_PUT = 0;
+    static final byte TYPE_DELETE = 1;
+
+    // Selected at startup with -Dkvdb.sstable.compression=...
+    public enum Compression {
+        NONE(0),
+        DEFLATE(1); // java.util.zip at BEST_SPEED
+
+        final byte id;
+
+        Compression(int id) {
+            this.id = (byte) id;
+        }
+
+        static Compression fromId(byte id) throws IOException {
+            for (Compression compression : values()) {
+                if (compression.id == id) {
+                    return compression;
+                }
+            }
+            throw new IOException("Unknown SSTable compression " + id);
+        }
+    }
+
+    private final FileOutputStream file;
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final Compression compression;
+    // Null when the file is not compressed
+    private final Deflater deflater;
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    private final MyBloomFilter filter;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private final List<String> blockKeys = new ArrayList<>();
+    private final List<long[]> blockHandles = new ArrayList<>();
+    private String blockFirstKey;
+    private long position;
+    private long entryCount;
+
+    public MySSTableWriter(Path path, long expectedKeys) throws IOException {
+        this(path, expectedKeys, Compression.NONE);
+    }
+
+    public MySSTableWriter(Path path, long expectedKeys, Compression compression) throws IOException {
+        this(path, expectedKeys, Constants.SSTABLE_BLOCK_SIZE, compression);
+    }
+
+    public MySSTableWriter(Path path, long expectedKeys, int blockSize) throws IOException {
+        this(path, expectedKeys, blockSize, Compression.NONE);
+    }
+
+    public MySSTableWriter(Path path, long expectedKeys, int blockSize, Compression compression)
+            throws IOException {
+        this.file = new FileOutputStream(path.toFile());
+        this.out = new DataOutputStream(new BufferedOutputStream(file));
+        this.blockSize = blockSize;
+        this.compression = compression;
+        this.deflater = compression == Compression.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.filter = MyBloomFilter.create((int) Math.min(Integer.MAX_VALUE, expectedKeys),
+                Constants.BLOOM_BITS_PER_KEY);
+    }
+
+    // Values equal to Constants.TOMBSTONE are stored as delete records
+    public void add(String key, String value) throws IOException {
+        add(key.getBytes(StandardCharsets.UTF_8),
+            Constants.TOMBSTONE.equals(value) ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // UTF-8 encoded entry; a null value is stored as a delete record
+    public void add(byte[] keyBytes, byte[] valueBytes) throws IOException {
+        if (blockFirstKey == null) {
+            blockFirstKey = new String(keyBytes, StandardCharsets.UTF_8);
+        }
+        blockOut.writeInt(keyBytes.length);
+        blockOut.write(keyBytes);
+        if (valueBytes == null) {
+            blockOut.writeByte(TYPE_DELETE);
+            blockOut.writeInt(0);
+        } else {
+            blockOut.writeByte(TYPE_PUT);
+            blockOut.writeInt(valueBytes.length);
+            blockOut.write(valueBytes);
+        }
+        filter.add(keyBytes);
+        entryCount++;
+        if (block.size() >= blockSize) {
+            finishBlock();
+        }
+    }
+
+    public void finish() throws IOException {
+        finishBlock();
+
+        long indexOffset = position;
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexOut = new DataOutputStream(index);
+        indexOut.writeInt(blockKeys.size());
+        for (int i = 0; i < blockKeys.size(); i++) {
+            byte[] keyBytes = blockKeys.get(i).getBytes(StandardCharsets.UTF_8);
+            indexOut.writeInt(keyBytes.length);
+            indexOut.write(keyBytes);
+            indexOut.writeLong(blockHandles.get(i)[0]);
+            indexOut.writeInt((int) blockHandles.get(i)[1]);
+        }
+        write(index.toByteArray());
+
+        long filterOffset = position;
+        ByteArrayOutputStream filterBytes = new ByteArrayOutputStream();
+        filter.writeTo(new DataOutputStream(filterBytes));
+        write(filterBytes.toByteArray());
+
+        out.writeLong(indexOffset);
+        out.writeInt((int) (filterOffset - indexOffset));
+        out.writeLong(filterOffset);
+        out.writeInt(filterBytes.size());
+        out.writeLong(entryCount);
+        if (compression == Compression.NONE) {
+            out.writeByte(VERSION_BLOCK);
+        } else {
+            out.writeByte(compression.id);
+            out.writeByte(VERSION_COMPRESSED);
+        }
+        out.writeLong(MAGIC);
+        out.flush();
+        // The file must be on disk before it is renamed into the file set and the WAL
+        // segments or compaction inputs it replaces are deleted
+        file.getFD().sync();
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (deflater != null) {
+            deflater.end();
+        }
+        out.close();
+    }
+
+    private void finishBlock() throws IOException {
+        if (block.size() == 0) {
+            return;
+        }
+        blockKeys.add(blockFirstKey);
+        long offset = position;
+        if (compression == Compression.NONE) {
+            write(block.toByteArray());
+        } else {
+            writeCompressed(block.toByteArray());
+        }
+        blockHandles.add(new long[] {offset, position - offset});
+        block.reset();
+        blockFirstKey = null;
+    }
+
+    private void writeCompressed(byte[] raw) throws IOException {
+        compressed.reset();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, raw.length / 2)];
+        while (!deflater.finished()) {
+            compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        if (compressed.size() + 4 < raw.length) {
+            out.writeByte(compression.id);
+            out.writeInt(raw.length);
+            position += 5;
+            write(compressed.toByteArray());
+        } else {
+            out.writeByte(Compression.NONE.id);
+            position += 1;
+            write(raw);
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        out.write(bytes);
+        position += bytes.length;
+    }
+}
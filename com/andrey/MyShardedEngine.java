@@ -0,0 +1,436 @@
+package com.andrey;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Splits the key space over several {@link MyStorageEngine}s, each with its own memtable, WAL,
+ * SSTables and flush thread under dataDir/shard-N, so writes to different shards don't contend.
+ * Keys are assigned by hash (spreads any key pattern evenly) or by range (split points, so a
+ * scan only visits the shards its range overlaps). The block and row cache budgets are divided
+ * between the shards; memtable limits apply per shard.
+ *
+ * Point operations go to the key's shard. multiGet, scans and bulk loads visit each shard
+ * involved and combine the results; scans are merged in key order. Each shard is consistent
+ * on its own, but operations spanning shards are not atomic across them: a write batch is
+ * split into one batch per shard, so a crash can keep the part for one shard and lose the
+ * part for another, and a scan reads each shard from its own snapshot.
+ *
+ * The layout is recorded in the data directory on first use, and opening the directory with a
+ * different one fails, since keys would be looked for in the wrong shards.
+ */
+public class MyShardedEngine implements MyKeyValueStore {
+    // Entries handed to a shard's bulk loader at a time
+    private static final int BULK_LOAD_BATCH = 1024;
+
+    private final Path dataDir;
+    private final MyStorageEngine[] shards;
+    // Range partitioning: shard i holds the keys from splitPoints[i-1] (inclusive) up to
+    // splitPoints[i] (exclusive). Null for hash partitioning.
+    private final String[] splitPoints;
+
+    // Hash partitioning over shardCount shards
+    public MyShardedEngine(String dataDir, int shardCount) {
+        this(dataDir, shardCount, null);
+    }
+
+    // Range partitioning: one more shard than there are split points, which must be ascending
+    public MyShardedEngine(String dataDir, List<String> splitPoints) {
+        this(dataDir, splitPoints.size() + 1, splitPoints.toArray(new String[0]));
+    }
+
+    private MyShardedEngine(String dataDir, int shardCount, String[] splitPoints) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A sharded engine needs at least one shard");
+        }
+        if (splitPoints != null) {
+            for (int i = 1; i < splitPoints.length; i++) {
+                if (splitPoints[i - 1].compareTo(splitPoints[i]) >= 0) {
+                    throw new IllegalArgumentException("Split points must be strictly ascending");
+                }
+            }
+        }
+        this.dataDir = Paths.get(dataDir);
+        this.splitPoints = splitPoints;
+        try {
+            checkLayout(shardCount);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the shard layout", e);
+        }
+        shards = new MyStorageEngine[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new MyStorageEngine(Paths.get(dataDir, Constants.SHARD_DIR_PREFIX + i).toString(),
+                    shardCount);
+            }
+        } catch (RuntimeException e) {
+            for (MyStorageEngine shard : shards) {
+                if (shard != null) {
+                    shard.gracefulClose();
+                }
+            }
+            throw e;
+        }
+    }
+
+    // Records the layout in a new data directory, or checks that it matches the recorded one
+    private void checkLayout(int shardCount) throws IOException {
+        Properties layout = new Properties();
+        layout.setProperty("partitioning", splitPoints == null ? "HASH" : "RANGE");
+        layout.setProperty("shards", Integer.toString(shardCount));
+        if (splitPoints != null) {
+            for (int i = 0; i < splitPoints.length; i++) {
+                layout.setProperty("splitPoint." + i, splitPoints[i]);
+            }
+        }
+        Path file = dataDir.resolve(Constants.SHARD_LAYOUT_FILE);
+        if (Files.exists(file)) {
+            Properties recorded = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                recorded.load(in);
+            }
+            if (!recorded.equals(layout)) {
+                throw new IllegalStateException(dataDir + " holds shards laid out as " + recorded
+                    + ", not " + layout);
+            }
+            return;
+        }
+        Files.createDirectories(dataDir);
+        // A single engine keeps its files directly in the data directory
+        try (Stream<Path> files = Files.list(dataDir)) {
+            if (files.anyMatch(path -> !Files.isDirectory(path))) {
+                throw new IllegalStateException(dataDir + " holds data that is not sharded");
+            }
+        }
+        Path tmp = dataDir.resolve(Constants.SHARD_LAYOUT_FILE + Constants.TMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            layout.store(out, "Shard layout; keys are assigned to shards by this, so it must not change");
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // The shard that holds key. Hash partitioning uses String.hashCode, which the language
+    // specifies, so keys stay in their shards across JVMs and restarts.
+    int shardOf(String key) {
+        if (splitPoints != null) {
+            int low = 0;
+            int high = splitPoints.length;
+            // The number of split points at or below key
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (splitPoints[mid].compareTo(key) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+        int hash = key.hashCode() * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), shards.length);
+    }
+
+    MyStorageEngine getShard(int index) {
+        return shards[index];
+    }
+
+    @Override
+    public void put(String key, String value) {
+        shards[shardOf(key)].put(key, value);
+    }
+
+    @Override
+    public String get(String key) {
+        return shards[shardOf(key)].get(key);
+    }
+
+    @Override
+    public void delete(String key) {
+        shards[shardOf(key)].delete(key);
+    }
+
+    @Override
+    public Map<String, String> multiGet(Collection<String> keys) {
+        List<List<String>> byShard = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (String key : keys) {
+            byShard.get(shardOf(key)).add(key);
+        }
+        Map<String, String> results = new TreeMap<>();
+        for (int i = 0; i < shards.length; i++) {
+            if (!byShard.get(i).isEmpty()) {
+                results.putAll(shards[i].multiGet(byShard.get(i)));
+            }
+        }
+        return results;
+    }
+
+    // Atomic within each shard only; see the class comment
+    @Override
+    public void write(MyWriteBatch batch) {
+        MyWriteBatch[] byShard = new MyWriteBatch[shards.length];
+        for (MyWriteAheadLog.LogEntry entry : batch.getEntries()) {
+            int shard = shardOf(entry.getKey());
+            if (byShard[shard] == null) {
+                byShard[shard] = new MyWriteBatch();
+            }
+            if (entry.getOperation() == MyWriteAheadLog.Operation.PUT) {
+                byShard[shard].put(entry.getKey(), entry.getValue());
+            } else {
+                byShard[shard].delete(entry.getKey());
+            }
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (byShard[i] != null) {
+                shards[i].write(byShard[i]);
+            }
+        }
+    }
+
+    @Override
+    public MyMergeIterator scan(MyKeyRange range, boolean reverse) throws IOException {
+        List<MyMergeIterator> parts = new ArrayList<>();
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                if (overlaps(i, range)) {
+                    parts.add(shards[i].scan(range, reverse));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (MyMergeIterator part : parts) {
+                part.close();
+            }
+            throw e;
+        }
+        return new MyMergeIterator(parts, reverse);
+    }
+
+    // Whether shard i can hold keys in range; always true under hash partitioning
+    private boolean overlaps(int shard, MyKeyRange range) {
+        if (splitPoints == null) {
+            return true;
+        }
+        String first = shard == 0 ? null : splitPoints[shard - 1];
+        String end = shard == splitPoints.length ? null : splitPoints[shard];
+        if (first != null && range.isAbove(first)) {
+            return false;
+        }
+        return end == null || range.getLower() == null || range.getLower().compareTo(end) < 0;
+    }
+
+    @Override
+    public Map<String, String> getBatch(MyKeyRange range, boolean reverse, int limit) {
+        try (MyMergeIterator iterator = scan(range, reverse)) {
+            Map<String, String> results = new LinkedHashMap<>();
+            while ((limit <= 0 || results.size() < limit) && iterator.next()) {
+                results.put(iterator.key(), iterator.value());
+            }
+            return results;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read batch from SSTable", e);
+        }
+    }
+
+    // Loads the shards in parallel, each from a queue fed from the input. If the input fails or
+    // holds a bad entry, every shard abandons its load and deletes what it wrote. A shard adds
+    // its files once its part of the input is complete, so a shard failing at the very end
+    // leaves the shards that finished before it loaded.
+    @Override
+    public long bulkLoad(Iterator<Map.Entry<String, String>> entries) {
+        List<BlockingQueue<List<Map.Entry<String, String>>>> queues = new ArrayList<>();
+        List<Future<Long>> loads = new ArrayList<>();
+        ExecutorService loaders = Executors.newFixedThreadPool(shards.length, r -> {
+            Thread t = new Thread(r, "shard-bulk-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (MyStorageEngine shard : shards) {
+                BlockingQueue<List<Map.Entry<String, String>>> queue = new ArrayBlockingQueue<>(4);
+                queues.add(queue);
+                loads.add(loaders.submit(() -> shard.bulkLoad(new QueueIterator(queue))));
+            }
+            List<List<Map.Entry<String, String>>> pending = new ArrayList<>();
+            for (int i = 0; i < shards.length; i++) {
+                pending.add(new ArrayList<>());
+            }
+            boolean complete = false;
+            try {
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> entry = entries.next();
+                    if (entry.getKey() == null || entry.getValue() == null) {
+                        throw new IllegalArgumentException("Bulk load entries need a key and a value");
+                    }
+                    int shard = shardOf(entry.getKey());
+                    pending.get(shard).add(entry);
+                    if (pending.get(shard).size() == BULK_LOAD_BATCH) {
+                        hand(queues.get(shard), loads.get(shard), pending.get(shard));
+                        pending.set(shard, new ArrayList<>());
+                    }
+                }
+                for (int i = 0; i < shards.length; i++) {
+                    if (!pending.get(i).isEmpty()) {
+                        hand(queues.get(i), loads.get(i), pending.get(i));
+                    }
+                    hand(queues.get(i), loads.get(i), QueueIterator.END);
+                }
+                complete = true;
+            } finally {
+                if (!complete) {
+                    for (int i = 0; i < shards.length; i++) {
+                        // A loader that already stopped won't take it, and doesn't need it
+                        queues.get(i).clear();
+                        queues.get(i).offer(QueueIterator.ABORT);
+                    }
+                }
+            }
+            long loaded = 0;
+            for (Future<Long> load : loads) {
+                loaded += load.get();
+            }
+            return loaded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while bulk loading", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException
+                ? (RuntimeException) e.getCause() : new RuntimeException("Failed to bulk load", e.getCause());
+        } finally {
+            loaders.shutdownNow();
+        }
+    }
+
+    // Blocks until the shard's loader takes the batch, failing if the loader has stopped
+    private static void hand(BlockingQueue<List<Map.Entry<String, String>>> queue, Future<Long> load,
+            List<Map.Entry<String, String>> batch) throws InterruptedException, ExecutionException {
+        while (!queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+            if (load.isDone()) {
+                load.get();
+                throw new IllegalStateException("Shard bulk loader stopped before the end of its input");
+            }
+        }
+    }
+
+    // The entries a shard's loader receives; ABORT makes it fail so it deletes what it wrote
+    private static final class QueueIterator implements Iterator<Map.Entry<String, String>> {
+        // Compared by identity, so each needs an instance of its own
+        static final List<Map.Entry<String, String>> END = new ArrayList<>(0);
+        static final List<Map.Entry<String, String>> ABORT = new ArrayList<>(0);
+
+        private final BlockingQueue<List<Map.Entry<String, String>>> queue;
+        private Iterator<Map.Entry<String, String>> batch = Collections.emptyIterator();
+        private boolean ended;
+
+        QueueIterator(BlockingQueue<List<Map.Entry<String, String>>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!batch.hasNext() && !ended) {
+                List<Map.Entry<String, String>> next;
+                try {
+                    next = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Bulk load abandoned", e);
+                }
+                if (next == ABORT) {
+                    throw new IllegalStateException("Bulk load abandoned");
+                }
+                ended = next == END;
+                batch = next.iterator();
+            }
+            return batch.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.next();
+        }
+    }
+
+    @Override
+    public String getMetricsText() {
+        List<MyStorageEngine> engines = new ArrayList<>();
+        Collections.addAll(engines, shards);
+        return MyMetrics.toPrometheus(engines);
+    }
+
+    public void compact() {
+        for (MyStorageEngine shard : shards) {
+            shard.compact();
+        }
+    }
+
+    public int getSSTableCount() {
+        int count = 0;
+        for (MyStorageEngine shard : shards) {
+            count += shard.getSSTableCount();
+        }
+        return count;
+    }
+
+    // Closes every shard, reporting the first failure after trying them all
+    @Override
+    public void gracefulClose() {
+        RuntimeException failure = null;
+        for (MyStorageEngine shard : shards) {
+            try {
+                shard.gracefulClose();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public void cleanup() {
+        for (MyStorageEngine shard : shards) {
+            shard.cleanup();
+        }
+        try {
+            Files.deleteIfExists(dataDir.resolve(Constants.SHARD_LAYOUT_FILE));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to cleanup storage", e);
+        }
+    }
+}
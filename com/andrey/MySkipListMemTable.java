@@ -0,0 +1,175 @@
+package com.andrey;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MySkipListMemTable implements MyMemTable {
+    // Rough heap cost of one entry besides its characters: skiplist node and index levels,
+    // two String headers and their backing arrays
+    private static final int ENTRY_OVERHEAD = 112;
+    // Each further version of a key: the Version object and a String header
+    private static final int VERSION_OVERHEAD = 72;
+
+    // Each key maps to its versions, newest first
+    private final ConcurrentSkipListMap<String, Version> data;
+    private final AtomicInteger recordCount;
+    private final AtomicLong sizeBytes;
+    private final int recordLimit;
+    private final long byteLimit;
+
+    public MySkipListMemTable(int recordLimit) {
+        this(recordLimit, 0);
+    }
+
+    // A limit of 0 or less is ignored; the memtable is full once either limit is reached
+    public MySkipListMemTable(int recordLimit, long byteLimit) {
+        this.data = new ConcurrentSkipListMap<>();
+        this.recordCount = new AtomicInteger(0);
+        this.sizeBytes = new AtomicLong(0);
+        this.recordLimit = recordLimit;
+        this.byteLimit = byteLimit;
+    }
+
+    @Override
+    public void put(String key, String value, long seq) {
+        Version head = data.putIfAbsent(key, new Version(value, seq, null));
+        if (head == null) {
+            // Only increment if this is a new key
+            recordCount.incrementAndGet();
+            sizeBytes.addAndGet(2L * (key.length() + value.length()) + ENTRY_OVERHEAD);
+            return;
+        }
+        while (!data.replace(key, head, head.with(value, seq))) {
+            head = data.get(key);
+        }
+        sizeBytes.addAndGet(2L * value.length() + VERSION_OVERHEAD);
+    }
+
+    @Override
+    public String getRaw(String key, long snapshotSeq) {
+        Version version = data.get(key);
+        return version == null ? null : version.visibleAt(snapshotSeq);
+    }
+
+    @Override
+    public boolean isFull() {
+        return (recordLimit > 0 && recordCount.get() >= recordLimit)
+            || (byteLimit > 0 && sizeBytes.get() >= byteLimit);
+    }
+
+    @Override
+    public void clear() {
+        data.clear();
+        recordCount.set(0);
+        sizeBytes.set(0);
+    }
+
+    @Override
+    public int getCurrentSize() {
+        return recordCount.get();
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return sizeBytes.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return recordCount.get() == 0;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(MyKeyRange range, boolean reverse, long snapshotSeq) {
+        NavigableMap<String, Version> view = data;
+        if (range.getLower() != null) {
+            view = view.tailMap(range.getLower(), range.isLowerInclusive());
+        }
+        if (range.getUpper() != null) {
+            view = view.headMap(range.getUpper(), range.isUpperInclusive());
+        }
+        if (reverse) {
+            view = view.descendingMap();
+        }
+        return new VisibleIterator(view.entrySet().iterator(), snapshotSeq);
+    }
+
+    @Override
+    public void writeTo(MySSTableWriter writer) throws IOException {
+        for (Map.Entry<String, Version> entry : data.entrySet()) {
+            writer.add(entry.getKey(), entry.getValue().value);
+        }
+    }
+
+    // Skips keys whose versions are all newer than the snapshot
+    private static final class VisibleIterator implements Iterator<Map.Entry<String, String>> {
+        private final Iterator<Map.Entry<String, Version>> entries;
+        private final long snapshotSeq;
+        private Map.Entry<String, String> next;
+
+        VisibleIterator(Iterator<Map.Entry<String, Version>> entries, long snapshotSeq) {
+            this.entries = entries;
+            this.snapshotSeq = snapshotSeq;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && entries.hasNext()) {
+                Map.Entry<String, Version> entry = entries.next();
+                String value = entry.getValue().visibleAt(snapshotSeq);
+                if (value != null) {
+                    next = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), value);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    // Immutable chain of versions ordered by sequence number, newest first
+    private static final class Version {
+        private final String value;
+        private final long seq;
+        private final Version older;
+
+        Version(String value, long seq, Version older) {
+            this.value = value;
+            this.seq = seq;
+            this.older = older;
+        }
+
+        String visibleAt(long snapshotSeq) {
+            Version version = this;
+            while (version != null && version.seq > snapshotSeq) {
+                version = version.older;
+            }
+            return version == null ? null : version.value;
+        }
+
+        // A write that lost the race to a newer one is slotted in below it
+        Version with(String newValue, long newSeq) {
+            if (newSeq >= seq) {
+                return new Version(newValue, newSeq, this);
+            }
+            return new Version(value, seq, older == null
+                ? new Version(newValue, newSeq, null)
+                : older.with(newValue, newSeq));
+        }
+    }
+}
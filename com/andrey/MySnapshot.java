@@ -0,0 +1,47 @@
+package com.andrey;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Consistent read view of the engine: a sequence number, the memtables and the SSTable
+ * readers that were current when it was taken. Memtable entries newer than the sequence
+ * number are ignored. The snapshot holds a reference on each reader, so flushes and
+ * compactions that replace the file set do not affect it; close() releases them.
+ */
+public class MySnapshot implements Closeable {
+    private final long seq;
+    private final List<MyMemTable> memTables;
+    private final List<MySSTableReader> files;
+    private boolean closed;
+
+    MySnapshot(long seq, List<MyMemTable> memTables, List<MySSTableReader> files) {
+        this.seq = seq;
+        this.memTables = memTables;
+        this.files = files;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    // Newest first
+    List<MyMemTable> getMemTables() {
+        return memTables;
+    }
+
+    // Newest first
+    List<MySSTableReader> getFiles() {
+        return files;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            for (MySSTableReader reader : files) {
+                reader.release();
+            }
+        }
+    }
+}
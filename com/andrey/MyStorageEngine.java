@@ -1,96 +1,549 @@
 package com.andrey;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
-public class MyStorageEngine {
-    private final MyMemTable memTable;
+public class MyStorageEngine implements MyKeyValueStore {
+    private final String dataDir;
+    // Writes go to the active memtable. A full one becomes immutable and is flushed by the
+    // flush thread while a fresh memtable and WAL segment take new writes.
+    private volatile MyMemTable memTable;
+    private volatile MyMemTable immutableMemTable;
+    private final MyMemTable.Type memTableType;
+    private final int memTableRecordLimit;
+    private final long memTableByteLimit;
     private final MyWriteAheadLog wal;
     private final MySSTable ssTable;
+    // Values read from SSTables; null when disabled
+    private final MyRowCache rowCache;
+    private final ExecutorService flushExecutor;
+    // Set when the last flush of the immutable memtable failed. The next write reports it before
+    // it is logged and starts a retry, so a passing error (a full disk that gets cleared) costs
+    // some failed writes but not the engine. Written under this; writers check it without.
+    private volatile IOException flushError;
+    // WAL segment of the immutable memtable, deleted once it is flushed; guarded by this
+    private long immutableSegment;
+    // Writers and snapshots share the read lock; swapping memtables and WAL segments takes the
+    // write lock, so no write straddles a rotation and a snapshot never sees half of one
+    private final ReentrantReadWriteLock rotationLock = new ReentrantReadWriteLock();
+    // WAL sequence numbers restart at 1 in every process; recovered entries are numbered below them
+    private final long seqBase;
+    // Highest sequence number at or below which every write has been applied to the memtable;
+    // snapshots read at it. Writers finish out of order, so it is a low-water mark, not a max.
+    private final AtomicLong completedSeq = new AtomicLong();
+    // Writes applied ahead of an earlier one that is still being applied. Guarded by itself,
+    // and notified when completedSeq moves past one of them.
+    private final TreeSet<Long> appliedAhead = new TreeSet<>();
+    // Tests set this to hold a write, by key, between its WAL append and its memtable apply
+    volatile Consumer<String> applyHook;
+    private final MyMetrics metrics = new MyMetrics();
+    // Set once this engine leads replication
+    private volatile MyReplicationLog replicationLog;
     
     public MyStorageEngine() {
+        this(Constants.DATA_DIR, 1);
+    }
+    
+    // An engine over its own directory holding 1/cacheShares of the configured cache sizes, for
+    // engines that run side by side and share the budget
+    MyStorageEngine(String dataDir, int cacheShares) {
+        this.dataDir = dataDir;
         try {
-            memTable = new MyMemTable(Constants.DEFAULT_RECORD_LIMIT);
-            wal = new MyWriteAheadLog(Constants.WAL_PATH);
-            ssTable = new MySSTable(Constants.DATA_DIR);
-            recoverFromWal();
+            memTableType = MyMemTable.Type.valueOf(
+                System.getProperty("kvdb.memtable.type", Constants.DEFAULT_MEMTABLE_TYPE));
+            memTableRecordLimit = Integer.getInteger("kvdb.memtable.maxRecords", Constants.DEFAULT_RECORD_LIMIT);
+            memTableByteLimit = Long.getLong("kvdb.memtable.bytes", Constants.DEFAULT_MEMTABLE_BYTES);
+            memTable = newMemTable();
+            wal = new MyWriteAheadLog(Paths.get(dataDir, Constants.WAL_FILE_NAME).toString(),
+                MyWriteAheadLog.SyncMode.valueOf(
+                    System.getProperty("kvdb.wal.syncMode", Constants.DEFAULT_WAL_SYNC_MODE)));
+            long blockCacheBytes = Long.getLong("kvdb.blockCache.bytes", Constants.DEFAULT_BLOCK_CACHE_BYTES)
+                / cacheShares;
+            ssTable = new MySSTable(dataDir,
+                blockCacheBytes > 0 ? new MyBlockCache(blockCacheBytes) : null,
+                MySSTableWriter.Compression.valueOf(
+                    System.getProperty("kvdb.sstable.compression", Constants.DEFAULT_SSTABLE_COMPRESSION)));
+            long rowCacheBytes = Long.getLong("kvdb.rowCache.bytes", Constants.DEFAULT_ROW_CACHE_BYTES) / cacheShares;
+            rowCache = rowCacheBytes > 0 ? new MyRowCache(rowCacheBytes) : null;
+            flushExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "memtable-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            seqBase = recoverFromWal();
+            completedSeq.set(seqBase);
         } catch (IOException e) {
             throw new RuntimeException("Failed to initialize storage", e);
         }
     }
     
-    private void recoverFromWal() throws IOException {
-        
-        List<MyWriteAheadLog.LogEntry> entries = wal.recover();
-        for (MyWriteAheadLog.LogEntry entry : entries) {
+    // Returns the number of entries recovered, which are given sequence numbers 1..n
+    private long recoverFromWal() throws IOException {
+        long[] seq = {0};
+        // Entries are applied as they are read, so the log is never held in memory as a whole
+        wal.recover(entry -> {
             switch (entry.getOperation()) {
                 case PUT:
-                    memTable.put(entry.getKey(), entry.getValue());
+                    memTable.put(entry.getKey(), entry.getValue(), ++seq[0]);
                     break;
                 case DELETE:
-                    memTable.delete(entry.getKey());
+                    memTable.delete(entry.getKey(), ++seq[0]);
                     break;
             }
-        }
+        });
+        return seq[0];
     }
     
-    public synchronized void put(String key, String value) {
+    // Writers run in parallel. The WAL orders them and hands out sequence numbers, and the
+    // memtable keeps a key's versions in that order whatever order the writes land in. The
+    // wait for the WAL writer comes last so concurrent writers share one write and fsync.
+    @Override
+    public void put(String key, String value) {
+        long start = System.nanoTime();
         try {
-            wal.logPut(key, value);
-            memTable.put(key, value);
-            
-            if (memTable.isFull()) {
-                flushMemTable();
+            checkFlushError();
+            long walSeq;
+            rotationLock.readLock().lock();
+            try {
+                walSeq = wal.appendPut(key, value);
+                try {
+                    apply(key, value, walSeq);
+                } finally {
+                    markApplied(walSeq);
+                }
+            } finally {
+                rotationLock.readLock().unlock();
             }
+            finishWrite(walSeq);
         } catch (IOException e) {
             throw new RuntimeException("Failed to put key-value pair", e);
+        } finally {
+            metrics.put.recordSince(start);
+        }
+    }
+    
+    // Caller holds the rotation read lock
+    private void apply(String key, String value, long walSeq) {
+        Consumer<String> hook = applyHook;
+        if (hook != null) {
+            hook.accept(key);
+        }
+        memTable.put(key, value, seqBase + walSeq);
+        invalidateRow(key);
+    }
+    
+    // Hands off a full memtable and waits until the WAL record is durable and every earlier
+    // write has been applied. Snapshots taken after this returns include the write.
+    private void finishWrite(long walSeq) throws IOException {
+        if (memTable.isFull()) {
+            scheduleFlush(true);
+        }
+        wal.awaitDurable(walSeq);
+        awaitApplied(walSeq);
+    }
+    
+    // Called once a logged write has reached the memtable, in whatever order writers get here.
+    // completedSeq moves past a write only when every write logged before it is in too, so a
+    // snapshot never holds part of a batch or a write without the ones logged ahead of it.
+    private void markApplied(long walSeq) {
+        long seq = seqBase + walSeq;
+        synchronized (appliedAhead) {
+            if (seq != completedSeq.get() + 1) {
+                appliedAhead.add(seq);
+                return;
+            }
+            boolean waiters = !appliedAhead.isEmpty();
+            while (!appliedAhead.isEmpty() && appliedAhead.first() == seq + 1) {
+                seq = appliedAhead.pollFirst();
+            }
+            completedSeq.set(seq);
+            if (waiters) {
+                appliedAhead.notifyAll();
+            }
+        }
+    }
+    
+    // Applying is quick, so this waits at most for writers that are between append and apply
+    private void awaitApplied(long walSeq) throws IOException {
+        long seq = seqBase + walSeq;
+        if (completedSeq.get() >= seq) {
+            return;
+        }
+        synchronized (appliedAhead) {
+            while (completedSeq.get() < seq) {
+                try {
+                    appliedAhead.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for earlier writes", e);
+                }
+            }
         }
     }
     
+    @Override
     public String get(String key) {
-        // First check MemTable for most recent data
-        String value = memTable.get(key);
+        long start = System.nanoTime();
+        try {
+            return getValue(key);
+        } finally {
+            metrics.get.recordSince(start);
+        }
+    }
+    
+    private String getValue(String key) {
+        // Taken before the memtables are checked, so a write racing with this lookup keeps
+        // the value it read from the SSTables out of the row cache
+        long stamp = rowCache != null ? rowCache.stamp(key) : 0;
         
-        // If not found in MemTable, try to find in SSTable
+        // Check the memtables from newest to oldest; a tombstone there hides older SSTable data.
+        // The active one is read first: a rotation in between has already published the
+        // immutable one, and a finished flush has already added its file.
+        String value = memTable.getRaw(key);
         if (value == null) {
-            try {
-                value = ssTable.get(key);
-                if (value != null) {
-                    memTable.put(key, value);
-                }
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to read from SSTable", e);
+            MyMemTable immutable = immutableMemTable;
+            if (immutable != null) {
+                value = immutable.getRaw(key);
+            }
+        }
+        if (value != null) {
+            return Constants.TOMBSTONE.equals(value) ? null : value;
+        }
+        
+        if (rowCache != null) {
+            value = rowCache.get(key);
+            if (value != null) {
+                return value;
             }
         }
+        
+        // If not found in MemTable, try to find in SSTable
+        try {
+            value = ssTable.get(key);
+            if (value != null && rowCache != null) {
+                rowCache.putIfUnchanged(key, value, stamp);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read from SSTable", e);
+        }
         return value;
     }
     
-    public synchronized void delete(String key) {
+    // Returns the keys that exist, in key order. Each key is resolved as get() would; the ones
+    // not in the memtables or row cache are looked up together with one pass per SSTable.
+    @Override
+    public Map<String, String> multiGet(Collection<String> keys) {
+        long start = System.nanoTime();
         try {
-            wal.logDelete(key);
-            memTable.delete(key);
+            return multiGetValues(keys);
+        } finally {
+            metrics.multiGet.recordSince(start);
+        }
+    }
+    
+    private Map<String, String> multiGetValues(Collection<String> keys) {
+        TreeSet<String> sorted = new TreeSet<>(keys);
+        Map<String, String> results = new TreeMap<>();
+        List<String> missing = new ArrayList<>();
+        // Stamped before the memtables are read, as in get()
+        Map<String, Long> stamps = new HashMap<>();
+        if (rowCache != null) {
+            for (String key : sorted) {
+                stamps.put(key, rowCache.stamp(key));
+            }
+        }
+        MyMemTable active = memTable;
+        MyMemTable immutable = immutableMemTable;
+        for (String key : sorted) {
+            String value = active.getRaw(key);
+            if (value == null && immutable != null) {
+                value = immutable.getRaw(key);
+            }
+            if (value == null && rowCache != null) {
+                value = rowCache.get(key);
+            }
+            if (value == null) {
+                missing.add(key);
+            } else if (!Constants.TOMBSTONE.equals(value)) {
+                results.put(key, value);
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        try {
+            for (Map.Entry<String, String> entry : ssTable.getAll(missing).entrySet()) {
+                String value = entry.getValue();
+                if (Constants.TOMBSTONE.equals(value)) {
+                    continue;
+                }
+                results.put(entry.getKey(), value);
+                if (rowCache != null) {
+                    rowCache.putIfUnchanged(entry.getKey(), value, stamps.get(entry.getKey()));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read from SSTable", e);
+        }
+        return results;
+    }
+
+    @Override
+    public void delete(String key) {
+        long start = System.nanoTime();
+        try {
+            checkFlushError();
+            long walSeq;
+            rotationLock.readLock().lock();
+            try {
+                walSeq = wal.appendDelete(key);
+                try {
+                    apply(key, Constants.TOMBSTONE, walSeq);
+                } finally {
+                    markApplied(walSeq);
+                }
+            } finally {
+                rotationLock.readLock().unlock();
+            }
+            // Tombstones take memory too, so this may hand off a full memtable
+            finishWrite(walSeq);
         } catch (IOException e) {
             throw new RuntimeException("Failed to delete key", e);
+        } finally {
+            metrics.delete.recordSince(start);
+        }
+    }
+    
+    private void invalidateRow(String key) {
+        if (rowCache != null) {
+            rowCache.invalidate(key);
+        }
+    }
+    
+    // Hands the active memtable to the flush thread. Only one memtable can be waiting for a
+    // flush, so writers stall here only if the previous flush has not finished yet. A writer
+    // whose write is already applied (onlyIfFull) is not failed by a flush error: the memtable
+    // stays active past its limit and the next write reports the error.
+    private synchronized void scheduleFlush(boolean onlyIfFull) throws IOException {
+        if (!waitForPendingFlush(!onlyIfFull)) {
+            return;
+        }
+        MyMemTable immutable;
+        long segment;
+        rotationLock.writeLock().lock();
+        try {
+            // Several writers can see the same full memtable; the first one hands it off
+            if (memTable.isEmpty() || (onlyIfFull && !memTable.isFull())) {
+                return;
+            }
+            immutable = memTable;
+            segment = wal.rotate();
+            immutableMemTable = immutable;
+            immutableSegment = segment;
+            memTable = newMemTable();
+        } finally {
+            rotationLock.writeLock().unlock();
+        }
+        flushExecutor.execute(() -> flushImmutable(immutable, segment));
+    }
+    
+    private MyMemTable newMemTable() {
+        return MyMemTable.create(memTableType, memTableRecordLimit, memTableByteLimit);
+    }
+    
+    private void flushImmutable(MyMemTable immutable, long segment) {
+        try {
+            ssTable.flush(immutable);
+            wal.deleteSegmentsUpTo(segment);
+        } catch (IOException e) {
+            // Keep the memtable readable and its WAL segment on disk; the next write reports it
+            System.err.println("Failed to flush memtable: " + e.getMessage());
+            synchronized (this) {
+                flushError = e;
+                notifyAll();
+            }
+            return;
+        }
+        synchronized (this) {
+            immutableMemTable = null;
+            notifyAll();
+        }
+    }
+    
+    // Returns false, when report is not set, if the pending flush failed instead of finishing
+    private synchronized boolean waitForPendingFlush(boolean report) throws IOException {
+        while (immutableMemTable != null && flushError == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for memtable flush", e);
+            }
+        }
+        if (flushError != null) {
+            if (!report) {
+                return false;
+            }
+            reportFlushError();
         }
+        return true;
+    }
+    
+    // Called before a write is logged, so a write that fails here has not been applied
+    private void checkFlushError() throws IOException {
+        if (flushError != null) {
+            synchronized (this) {
+                if (flushError != null) {
+                    reportFlushError();
+                }
+            }
+        }
+    }
+    
+    // Caller holds this; clears the error, resubmits the failed flush and throws the error
+    private void reportFlushError() throws IOException {
+        IOException error = flushError;
+        flushError = null;
+        MyMemTable immutable = immutableMemTable;
+        long segment = immutableSegment;
+        flushExecutor.execute(() -> flushImmutable(immutable, segment));
+        throw new IOException("Background memtable flush failed; retrying", error);
     }
     
     private synchronized void flushMemTable() throws IOException {
-        ssTable.flush(memTable);
-        memTable.clear();
-        wal.cleanup();
+        scheduleFlush(false);
+        waitForPendingFlush(true);
     }
     
+    @Override
     public void gracefulClose() {
         try {
             flushMemTable();
+            flushExecutor.shutdown();
+            flushExecutor.awaitTermination(1, TimeUnit.MINUTES);
+            ssTable.close();
             wal.gracefulClose();
         } catch (IOException e) {
             throw new RuntimeException("Failed to close storage", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while closing storage", e);
+        }
+    }
+
+    public void compact() {
+        try {
+            // Let an in-flight flush land first so it is part of the merge
+            waitForPendingFlush(true);
+            ssTable.compact();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact SSTables", e);
         }
     }
 
+    public MyRowCache getRowCache() {
+        return rowCache;
+    }
+
+    public MyBlockCache getBlockCache() {
+        return ssTable.getBlockCache();
+    }
+
+    public int getSSTableCount() {
+        return ssTable.getFileCount();
+    }
+
+    public MyMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Prometheus text format
+    @Override
+    public String getMetricsText() {
+        String text = MyMetrics.toPrometheus(Collections.singletonList(this));
+        MyReplicationLog log = replicationLog;
+        return log == null ? text : text + MyMetrics.replicationLeader(log);
+    }
+
+    // Starts keeping the WAL records this engine appends for followers to stream, up to
+    // bufferBytes of the newest ones; returns the existing log if already started
+    public synchronized MyReplicationLog enableReplication(long bufferBytes) {
+        if (replicationLog == null) {
+            MyReplicationLog log = new MyReplicationLog(bufferBytes);
+            log.startAfter(wal.setRecordListener(log));
+            replicationLog = log;
+        }
+        return replicationLog;
+    }
+
+    @Override
+    public String getReplicationPosition() {
+        MyReplicationLog log = replicationLog;
+        return log == null ? null : log.getPosition();
+    }
+
+    // For a follower's catch-up: a snapshot of exactly the writes the WAL has logged so far.
+    // Writers and rotations are held off while it is taken, so every record appended so far has
+    // reached the memtable, and the snapshot's sequence number covers writes that haven't
+    // returned to their callers yet. getWalSeq() gives the last WAL record it includes.
+    MySnapshot getReplicationSnapshot() {
+        rotationLock.writeLock().lock();
+        try {
+            List<MyMemTable> memTables = new ArrayList<>(2);
+            memTables.add(memTable);
+            if (immutableMemTable != null) {
+                memTables.add(immutableMemTable);
+            }
+            return new MySnapshot(seqBase + wal.getAppendedSeq(), memTables, ssTable.acquireFiles());
+        } finally {
+            rotationLock.writeLock().unlock();
+        }
+    }
+
+    // The WAL sequence number (of this process) a snapshot of this engine was taken at
+    long getWalSeq(MySnapshot snapshot) {
+        return snapshot.getSeq() - seqBase;
+    }
+
+    MySSTable getSSTable() {
+        return ssTable;
+    }
+
+    MyWriteAheadLog getWal() {
+        return wal;
+    }
+
+    MyMemTable getMemTable() {
+        return memTable;
+    }
+
+    MyMemTable getImmutableMemTable() {
+        return immutableMemTable;
+    }
+
+    public String getDataDir() {
+        return dataDir;
+    }
+
     public void cleanup() {
         try {
             // Clean up SSTable files
@@ -102,52 +555,175 @@ public class MyStorageEngine {
         }
     }
 
-    public synchronized Map<String, String> getBatch(String keyStart, String keyEnd) {
-        Map<String, String> results = new TreeMap<>();
-        
-        // First get from memTable
-        Map<String, String> memTableResults = memTable.getBatch(keyStart, keyEnd);
-        results.putAll(memTableResults);
-        
+    // Takes a read view without blocking writers. It sees every write that has returned to its
+    // caller and none that start afterwards; writes still in flight may or may not show up.
+    // Rotations are excluded while it is taken, so the active memtable it holds cannot be
+    // flushed into a file behind its back.
+    public MySnapshot getSnapshot() {
+        rotationLock.readLock().lock();
         try {
-            // Then get from SSTable
-            Map<String, String> ssTableResults = ssTable.getBatch(keyStart, keyEnd);
-            
-            // Merge results, giving preference to memTable values
-            for (Map.Entry<String, String> entry : ssTableResults.entrySet()) {
-                if (!results.containsKey(entry.getKey())) {
-                    results.put(entry.getKey(), entry.getValue());
-                }
+            long seq = completedSeq.get();
+            List<MyMemTable> memTables = new ArrayList<>(2);
+            memTables.add(memTable);
+            MyMemTable immutable = immutableMemTable;
+            if (immutable != null) {
+                memTables.add(immutable);
             }
-            
-            // Filter out TOMBSTONE markers
-            results.entrySet().removeIf(entry -> "TOMBSTONE".equals(entry.getValue()));
-            
+            return new MySnapshot(seq, memTables, ssTable.acquireFiles());
+        } finally {
+            rotationLock.readLock().unlock();
+        }
+    }
+
+    // Streams the live keys in range from a snapshot taken now, in key order or, when reverse
+    // is set, descending. The caller must close the iterator to release the snapshot.
+    @Override
+    public MyMergeIterator scan(MyKeyRange range, boolean reverse) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return new MyMergeIterator(getSnapshot(), range, reverse);
+        } finally {
+            metrics.scan.recordSince(start);
+        }
+    }
+
+    public MyMergeIterator scan(String keyStart, String keyEnd) throws IOException {
+        return scan(MyKeyRange.closed(keyStart, keyEnd), false);
+    }
+
+    public Map<String, String> getBatch(String keyStart, String keyEnd) {
+        return getBatch(MyKeyRange.closed(keyStart, keyEnd), false, 0);
+    }
+
+    // One page of a scan, in scan order; a limit of 0 or less returns the whole range. The
+    // next page is range.after(last key of this page, reverse).
+    @Override
+    public Map<String, String> getBatch(MyKeyRange range, boolean reverse, int limit) {
+        try (MyMergeIterator iterator = scan(range, reverse)) {
+            Map<String, String> results = new LinkedHashMap<>();
+            while ((limit <= 0 || results.size() < limit) && iterator.next()) {
+                results.put(iterator.key(), iterator.value());
+            }
+            return results;
         } catch (IOException e) {
             throw new RuntimeException("Failed to read batch from SSTable", e);
         }
-        
-        return results;
     }
 
-    public synchronized void putBatch(Map<String, String> entries) {
+    // Writes the entries straight to new SSTables, skipping the WAL and the memtable, and adds
+    // them to the file set at once. Unsorted input is sorted externally; the last pair for a key
+    // wins, and the loaded data replaces what was there before the call. Returns the number of
+    // distinct keys loaded.
+    @Override
+    public long bulkLoad(Iterator<Map.Entry<String, String>> entries) {
+        long start = System.nanoTime();
         try {
-            // First log all entries to WAL
-            for (Map.Entry<String, String> entry : entries.entrySet()) {
-                wal.logPut(entry.getKey(), entry.getValue());
+            MyBulkLoader loader = new MyBulkLoader(Paths.get(dataDir), ssTable.getCompression(),
+                Long.getLong("kvdb.bulkLoad.chunkBytes", Constants.DEFAULT_BULK_LOAD_CHUNK_BYTES));
+            ingest(loader.load(entries));
+            return loader.getEntryCount();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to bulk load", e);
+        } finally {
+            metrics.bulkLoad.recordSince(start);
+        }
+    }
+
+    // Adds an SSTable built elsewhere; its entries replace what was there before the call.
+    // The file is copied, so the original is left in place.
+    public void ingestFile(Path file) {
+        Path copy = Paths.get(dataDir, Constants.FILE_PREFIX + "ingest-" + System.nanoTime()
+            + Constants.TMP_SUFFIX);
+        try {
+            Files.copy(file, copy);
+            // Fails on anything that isn't a readable SSTable
+            MySSTableReader.open(copy).release();
+            ingest(Collections.singletonList(copy));
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(copy);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
             }
-            
-            // Then put all entries in memTable
-            for (Map.Entry<String, String> entry : entries.entrySet()) {
-                memTable.put(entry.getKey(), entry.getValue());
-                
-                // Check if memTable is full after each put
-                if (memTable.isFull()) {
-                    flushMemTable();
+            throw new RuntimeException("Failed to ingest " + file, e);
+        }
+    }
+
+    // Flushes the memtable first so older writes still in memory can't shadow the new files
+    private void ingest(List<Path> files) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        flushMemTable();
+        // Cleared before the swap so no lookup can return a cached row older than the new files
+        if (rowCache != null) {
+            rowCache.beginInvalidateAll();
+        }
+        try {
+            ssTable.ingest(files);
+        } finally {
+            if (rowCache != null) {
+                rowCache.endInvalidateAll();
+            }
+        }
+        resyncFollowers();
+    }
+
+    // Ingested files never pass through the WAL, so followers can't replay them. An empty
+    // record marks the point, and followers that haven't applied it reload from a snapshot.
+    private void resyncFollowers() throws IOException {
+        MyReplicationLog log = replicationLog;
+        if (log == null) {
+            return;
+        }
+        // Holding writers off makes the marker the very next record
+        rotationLock.writeLock().lock();
+        try {
+            log.requireSnapshotThrough(wal.getAppendedSeq() + 1);
+            markApplied(wal.appendBatch(new MyWriteBatch()));
+        } finally {
+            rotationLock.writeLock().unlock();
+        }
+    }
+
+    public void putBatch(Map<String, String> entries) {
+        MyWriteBatch batch = new MyWriteBatch();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        write(batch);
+    }
+
+    // Logs the batch as one WAL record and applies it to one memtable under a single sequence
+    // number, so a crash keeps all of it or none of it and snapshots see all of it or none of it
+    @Override
+    public void write(MyWriteBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            checkFlushError();
+            long walSeq;
+            rotationLock.readLock().lock();
+            try {
+                walSeq = wal.appendBatch(batch);
+                try {
+                    for (MyWriteAheadLog.LogEntry entry : batch.getEntries()) {
+                        apply(entry.getKey(), entry.getOperation() == MyWriteAheadLog.Operation.PUT
+                            ? entry.getValue() : Constants.TOMBSTONE, walSeq);
+                    }
+                } finally {
+                    markApplied(walSeq);
                 }
+            } finally {
+                rotationLock.readLock().unlock();
             }
+            finishWrite(walSeq);
         } catch (IOException e) {
-            throw new RuntimeException("Failed to put batch", e);
+            throw new RuntimeException("Failed to write batch", e);
+        } finally {
+            metrics.write.recordSince(start);
         }
     }
 
@@ -1,9 +1,19 @@
 package com.andrey;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 public class MyTestCases {
     private static final String GREEN = "\u001B[32m";
@@ -348,9 +358,1609 @@ public class MyTestCases {
         }
     }
     
+    private static void testCompaction() {
+        System.out.println("\n=== Testing Compaction ===");
+        MyStorageEngine storage = new MyStorageEngine();
+        
+        try {
+            // Several rounds of overwrites and deletes spread over many flushed files
+            for (int round = 0; round < 5; round++) {
+                for (int i = 0; i < 40; i++) {
+                    storage.put("compact" + i, "value" + round + "-" + i);
+                }
+            }
+            for (int i = 0; i < 40; i += 4) {
+                storage.delete("compact" + i);
+            }
+            for (int i = 0; i < 20; i++) {
+                storage.put("filler" + i, "filler" + i);
+            }
+            
+            storage.compact();
+            assertTest("Compaction merges into one file", storage.getSSTableCount() == 1);
+            
+            boolean allCorrect = true;
+            for (int i = 0; i < 40; i++) {
+                String expected = i % 4 == 0 ? null : "value4-" + i;
+                if (!Objects.equals(expected, storage.get("compact" + i))) {
+                    allCorrect = false;
+                    break;
+                }
+            }
+            assertTest("Latest values survive compaction", allCorrect);
+            assertTest("Deleted keys stay deleted after compaction", 
+                storage.getBatch("compact0", "compact0").isEmpty());
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testBloomFilter() throws IOException {
+        System.out.println("\n=== Testing Bloom Filter ===");
+        MyBloomFilter filter = MyBloomFilter.create(1000, Constants.BLOOM_BITS_PER_KEY);
+        for (int i = 0; i < 1000; i++) {
+            filter.add(("bloom" + i).getBytes());
+        }
+        
+        boolean noFalseNegatives = true;
+        for (int i = 0; i < 1000; i++) {
+            noFalseNegatives &= filter.mightContain(("bloom" + i).getBytes());
+        }
+        assertTest("No false negatives", noFalseNegatives);
+        
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(("missing" + i).getBytes())) {
+                falsePositives++;
+            }
+        }
+        assertTest("False positive rate below 3%", falsePositives < 300);
+        
+        // Filters are persisted inside each SSTable and loaded again on startup
+        MyStorageEngine storage1 = new MyStorageEngine();
+        try {
+            for (int i = 0; i < 30; i++) {
+                storage1.put("bloomkey" + i, "value" + i);
+            }
+            storage1.gracefulClose();
+            
+            MyStorageEngine storage2 = new MyStorageEngine();
+            try {
+                boolean allFound = true;
+                for (int i = 0; i < 30; i++) {
+                    allFound &= ("value" + i).equals(storage2.get("bloomkey" + i));
+                }
+                assertTest("Keys found through bloom filters after restart", allFound);
+                assertTest("Missing key not found", storage2.get("bloomkey-missing") == null);
+            } finally {
+                storage2.gracefulClose();
+                storage2.cleanup();
+            }
+        } finally {
+            storage1.cleanup();
+        }
+    }
+    
+    private static void testSSTableFormat() throws IOException {
+        System.out.println("\n=== Testing SSTable Format ===");
+        Files.createDirectories(Paths.get(Constants.DATA_DIR));
+        
+        // A text-format file as written before the block format existed
+        Path legacy = Paths.get(Constants.DATA_DIR, Constants.FILE_PREFIX + "0" + Constants.FILE_SUFFIX);
+        try (RandomAccessFile writer = new RandomAccessFile(legacy.toFile(), "rw")) {
+            writer.writeInt(3);
+            writer.write("legacy1,old1\nlegacy2,TOMBSTONE\nlegacy3,old3\n".getBytes());
+        }
+        
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            assertTest("Legacy file readable", "old1".equals(storage.get("legacy1")) 
+                && storage.get("legacy2") == null && "old3".equals(storage.get("legacy3")));
+            
+            // Keys and values with separators that broke the text format; small blocks force many blocks
+            Path file = Paths.get(Constants.DATA_DIR, "format-test" + Constants.TMP_SUFFIX);
+            try (MySSTableWriter writer = new MySSTableWriter(file, 500, 256)) {
+                for (int i = 0; i < 500; i++) {
+                    writer.add(String.format("k,%03d", i), "line\n" + i + ",\u00e9");
+                }
+                writer.finish();
+            }
+            MySSTableReader reader = MySSTableReader.open(file);
+            boolean allFound = true;
+            for (int i = 0; i < 500; i++) {
+                allFound &= ("line\n" + i + ",\u00e9").equals(reader.get(String.format("k,%03d", i)));
+            }
+            assertTest("Block format lookups", allFound && reader.get("k,5000") == null && reader.get("a") == null);
+            
+            int scanned = 0;
+            try (MySSTableReader.Scanner scanner = reader.scan("k,250")) {
+                while (scanner.next()) {
+                    scanned++;
+                }
+            }
+            assertTest("Block format scan from key", scanned == 250);
+            
+            // A reader stays usable while a lookup holds it, even after its owner lets go
+            assertTest("Reader retained", reader.retain());
+            reader.release();
+            assertTest("Retained reader still readable", reader.get("k,001") != null);
+            reader.release();
+            assertTest("Released reader cannot be retained", !reader.retain());
+            Files.delete(file);
+            
+            storage.put("new1", "a,b\nc");
+            storage.compact();
+            assertTest("Legacy file compacted into block format", storage.getSSTableCount() == 1
+                && "old1".equals(storage.get("legacy1")) && storage.get("legacy2") == null
+                && "a,b\nc".equals(storage.get("new1")));
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testBackgroundFlush() {
+        System.out.println("\n=== Testing Background Flush ===");
+        MyStorageEngine storage1 = new MyStorageEngine();
+        try {
+            // Every key must be readable right after its put, whether it sits in the active
+            // memtable, the one being flushed, or an SSTable
+            boolean allVisible = true;
+            for (int i = 0; i < 500; i++) {
+                storage1.put("flushkey" + i, "value" + i);
+                allVisible &= ("value" + i).equals(storage1.get("flushkey" + i));
+                allVisible &= "value0".equals(storage1.get("flushkey0"));
+            }
+            assertTest("Writes visible during background flushes", allVisible);
+            
+            storage1.delete("flushkey0");
+            assertTest("Delete hides flushed value", storage1.get("flushkey0") == null);
+            storage1.gracefulClose();
+            
+            MyStorageEngine storage2 = new MyStorageEngine();
+            try {
+                boolean allRecovered = storage2.get("flushkey0") == null;
+                for (int i = 1; i < 500; i++) {
+                    allRecovered &= ("value" + i).equals(storage2.get("flushkey" + i));
+                }
+                assertTest("Flushed data and delete survive restart", allRecovered);
+            } finally {
+                storage2.gracefulClose();
+                storage2.cleanup();
+            }
+        } finally {
+            storage1.cleanup();
+        }
+        
+        // A directory where the first flush wants its temporary file makes that flush fail; it
+        // isn't empty, so the failed flush can't clean it up as if it were a partial file
+        MyStorageEngine storage3 = new MyStorageEngine();
+        Path blocker = Paths.get(Constants.DATA_DIR, Constants.FILE_PREFIX + 0 + Constants.FILE_SUFFIX + Constants.TMP_SUFFIX);
+        try {
+            Files.createDirectories(blocker);
+            Files.createFile(blocker.resolve("in-the-way"));
+            int written = 0;
+            int failures = 0;
+            Set<Integer> rejected = new HashSet<>();
+            // Fails, before it is logged, once a write comes after the broken flush
+            while (failures == 0 && written < 1000) {
+                try {
+                    storage3.put("retrykey" + written, "value" + written);
+                } catch (RuntimeException e) {
+                    failures++;
+                    rejected.add(written);
+                }
+                written++;
+            }
+            Files.delete(blocker.resolve("in-the-way"));
+            Files.delete(blocker);
+            // At most one more writer reports a retry that ran before the blocker went away
+            boolean recovered = true;
+            for (int i = 0; i < 100; i++, written++) {
+                try {
+                    storage3.put("retrykey" + written, "value" + written);
+                } catch (RuntimeException e) {
+                    recovered = ++failures <= 2;
+                    rejected.add(written);
+                }
+            }
+            assertTest("Failed flush is reported and retried", failures >= 1 && recovered
+                && storage3.getSSTableCount() > 0);
+            storage3.gracefulClose();
+            
+            storage3 = new MyStorageEngine();
+            boolean allPresent = true;
+            for (int i = 0; i < written; i++) {
+                String expected = rejected.contains(i) ? null : "value" + i;
+                allPresent &= Objects.equals(expected, storage3.get("retrykey" + i));
+            }
+            assertTest("Writes survive a retried flush and failed ones were never applied", allPresent);
+        } catch (IOException e) {
+            throw new AssertionError("Flush retry test failed: " + e, e);
+        } finally {
+            storage3.gracefulClose();
+            storage3.cleanup();
+        }
+    }
+    
+    private static void testWalGroupCommit() throws IOException, InterruptedException {
+        System.out.println("\n=== Testing WAL Group Commit ===");
+        String walPath = Constants.DATA_DIR + "/group-commit-test.log";
+        for (MyWriteAheadLog.SyncMode mode : MyWriteAheadLog.SyncMode.values()) {
+            MyWriteAheadLog wal = new MyWriteAheadLog(walPath, mode);
+            try {
+                int numThreads = 8;
+                int recordsPerThread = 200;
+                ConcurrentLinkedQueue<Throwable> exceptions = new ConcurrentLinkedQueue<>();
+                Thread[] threads = new Thread[numThreads];
+                for (int i = 0; i < numThreads; i++) {
+                    final int threadId = i;
+                    threads[i] = new Thread(() -> {
+                        try {
+                            for (int j = 0; j < recordsPerThread; j++) {
+                                wal.logPut("wal-" + threadId + "-" + j, "value" + j);
+                            }
+                        } catch (Throwable e) {
+                            exceptions.add(e);
+                        }
+                    });
+                    threads[i].start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                wal.gracefulClose();
+                
+                MyWriteAheadLog reopened = new MyWriteAheadLog(walPath, mode);
+                long recovered = reopened.recover(entry -> { });
+                reopened.gracefulClose();
+                assertTest("All records recovered with " + mode, exceptions.isEmpty()
+                    && recovered == numThreads * recordsPerThread);
+            } finally {
+                wal.cleanup();
+            }
+        }
+        
+        // Every caller whose record was in a failed write or fsync gets the error
+        MyWriteAheadLog wal = new MyWriteAheadLog(Constants.DATA_DIR + "/failing-test.log", MyWriteAheadLog.SyncMode.SYNC);
+        try {
+            wal.logPut("durable", "1");
+            wal.getChannel().close();
+            List<Long> seqs = new ArrayList<>();
+            int failures = 0;
+            for (int i = 0; i < 3; i++) {
+                try {
+                    seqs.add(wal.appendPut("lost-" + i, "2"));
+                } catch (IOException e) {
+                    // Refused outright once the writer has failed
+                    failures++;
+                }
+            }
+            for (long seq : seqs) {
+                try {
+                    wal.awaitDurable(seq);
+                } catch (IOException e) {
+                    failures++;
+                }
+            }
+            assertTest("Failed WAL writes are not acknowledged", failures == 3);
+        } finally {
+            wal.cleanup();
+        }
+    }
+    
+    private static void testWalRecovery() throws IOException {
+        System.out.println("\n=== Testing WAL Recovery ===");
+        String walPath = Constants.DATA_DIR + "/recovery-test.log";
+        MyWriteAheadLog wal = new MyWriteAheadLog(walPath, MyWriteAheadLog.SyncMode.SYNC);
+        try {
+            wal.logPut("key,1", "value,with\ncomma");
+            wal.logPut("key2", "value2");
+            wal.logDelete("key,1");
+            wal.gracefulClose();
+            
+            Path segment;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(Constants.DATA_DIR),
+                    "recovery-test.log.*")) {
+                segment = stream.iterator().next();
+            }
+            // Simulate a torn write: a record header promising more bytes than were written
+            Files.write(segment, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+            
+            List<MyWriteAheadLog.LogEntry> entries = new ArrayList<>();
+            MyWriteAheadLog reopened = new MyWriteAheadLog(walPath);
+            reopened.recover(entries::add);
+            reopened.gracefulClose();
+            assertTest("Replay stops cleanly at torn tail", entries.size() == 3
+                && "value,with\ncomma".equals(entries.get(0).getValue())
+                && entries.get(2).getOperation() == MyWriteAheadLog.Operation.DELETE);
+            
+            // Flip a byte inside the second record's payload so its checksum fails
+            byte[] bytes = Files.readAllBytes(segment);
+            int secondRecord = 5 + 8 + ByteBuffer.wrap(bytes, 5, 4).getInt();
+            bytes[secondRecord + 8 + 6] ^= 0x01;
+            Files.write(segment, bytes);
+            
+            entries.clear();
+            reopened = new MyWriteAheadLog(walPath);
+            reopened.recover(entries::add);
+            reopened.gracefulClose();
+            assertTest("Replay stops at checksum mismatch", entries.size() == 1);
+        } finally {
+            wal.cleanup();
+        }
+        
+        // A record too long to replay is refused rather than logged, so it can't cut off the rest
+        wal = new MyWriteAheadLog(Constants.DATA_DIR + "/oversize-test.log", MyWriteAheadLog.SyncMode.SYNC);
+        try {
+            wal.logPut("before", "1");
+            boolean refused = false;
+            try {
+                wal.logPut("huge", "x".repeat(MyWriteAheadLog.MAX_RECORD_SIZE));
+            } catch (IOException e) {
+                refused = true;
+            }
+            wal.logPut("after", "2");
+            wal.gracefulClose();
+            
+            List<MyWriteAheadLog.LogEntry> entries = new ArrayList<>();
+            MyWriteAheadLog reopened = new MyWriteAheadLog(Constants.DATA_DIR + "/oversize-test.log");
+            reopened.recover(entries::add);
+            reopened.gracefulClose();
+            assertTest("Oversized record refused and later records recovered", refused
+                && entries.size() == 2 && "after".equals(entries.get(1).getKey()));
+        } finally {
+            wal.cleanup();
+        }
+        
+        // Replication marks bulk loads with an empty batch; the writes after it must survive
+        wal = new MyWriteAheadLog(Constants.DATA_DIR + "/marker-test.log", MyWriteAheadLog.SyncMode.SYNC);
+        try {
+            wal.logPut("before", "1");
+            wal.awaitDurable(wal.appendBatch(new MyWriteBatch()));
+            wal.logPut("after", "2");
+            wal.logDelete("before");
+            wal.gracefulClose();
+            
+            List<MyWriteAheadLog.LogEntry> entries = new ArrayList<>();
+            MyWriteAheadLog reopened = new MyWriteAheadLog(Constants.DATA_DIR + "/marker-test.log");
+            long recovered = reopened.recover(entries::add);
+            reopened.gracefulClose();
+            assertTest("Replay continues past an empty batch", recovered == 3 && entries.size() == 3
+                && "after".equals(entries.get(1).getKey())
+                && entries.get(2).getOperation() == MyWriteAheadLog.Operation.DELETE);
+        } finally {
+            wal.cleanup();
+        }
+    }
+    
+    private static void testBlockCache() {
+        System.out.println("\n=== Testing Block Cache ===");
+        MyBlockCache cache = new MyBlockCache(64 * 1024, 4);
+        for (int i = 0; i < 100; i++) {
+            cache.put(1, i, ByteBuffer.wrap(new byte[4000]));
+        }
+        assertTest("Cache stays within capacity", cache.getUsedBytes() <= cache.getCapacityBytes());
+        assertTest("Cache evicts when full", cache.getEvictions() > 0);
+        
+        cache.put(2, 0, ByteBuffer.wrap(new byte[] {42}));
+        ByteBuffer cached = cache.get(2, 0);
+        assertTest("Cached block returned", cached != null && cached.get() == 42);
+        assertTest("Cached view is independent", cache.get(2, 0).remaining() == 1);
+        assertTest("Unknown block misses", cache.get(3, 0) == null && cache.getMisses() == 1);
+        
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            for (int i = 0; i < 50; i++) {
+                storage.put("cachekey" + i, "value" + i);
+            }
+            storage.compact();
+            long hitsBefore = storage.getBlockCache().getHits();
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 40; i++) {
+                    storage.get("cachekey" + i);
+                }
+            }
+            assertTest("Repeated SSTable reads hit the cache", storage.getBlockCache().getHits() > hitsBefore);
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testRowCache() {
+        System.out.println("\n=== Testing Row Cache ===");
+        MyRowCache cache = new MyRowCache(4096, 1);
+        long stamp = cache.stamp("row");
+        cache.invalidate("row");
+        cache.putIfUnchanged("row", "stale", stamp);
+        assertTest("Write during lookup keeps stale value out", cache.get("row") == null);
+        
+        cache.putIfUnchanged("row", "old", cache.stamp("row"));
+        long beforeIngest = cache.stamp("row");
+        cache.beginInvalidateAll();
+        assertTest("Bulk invalidation clears before the swap", cache.get("row") == null);
+        // A lookup that reads the old files while the swap is in progress
+        cache.putIfUnchanged("row", "old", cache.stamp("row"));
+        long duringIngest = cache.stamp("row");
+        cache.endInvalidateAll();
+        cache.putIfUnchanged("row", "old", beforeIngest);
+        cache.putIfUnchanged("row", "old", duringIngest);
+        assertTest("Rows read around a bulk swap stay out of the cache", cache.get("row") == null);
+        cache.putIfUnchanged("row", "new", cache.stamp("row"));
+        assertTest("Row cache fills again after a bulk swap", "new".equals(cache.get("row")));
+        
+        for (int i = 0; i < 100; i++) {
+            cache.putIfUnchanged("row" + i, "value" + i, cache.stamp("row" + i));
+        }
+        assertTest("Row cache stays within capacity", cache.getUsedBytes() <= cache.getCapacityBytes()
+            && cache.getEvictions() > 0 && "value99".equals(cache.get("row99")));
+        
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            for (int i = 0; i < 50; i++) {
+                storage.put("rowkey" + i, "value" + i);
+            }
+            storage.compact();
+            int filesBefore = storage.getSSTableCount();
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 40; i++) {
+                    storage.get("rowkey" + i);
+                }
+            }
+            assertTest("Reads don't cause flushes", storage.getSSTableCount() == filesBefore);
+            assertTest("Repeated reads served from row cache", storage.getRowCache().getHits() >= 19 * 40);
+            
+            storage.put("rowkey1", "updated");
+            storage.delete("rowkey2");
+            for (int i = 0; i < 20; i++) {
+                storage.put("rowfiller" + i, "filler");
+            }
+            assertTest("Put and delete invalidate cached rows",
+                "updated".equals(storage.get("rowkey1")) && storage.get("rowkey2") == null);
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testMemTableSizing() {
+        System.out.println("\n=== Testing MemTable Sizing ===");
+        MyMemTable memTable = new MySkipListMemTable(0, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            memTable.put("small" + i, "v");
+        }
+        assertTest("Small values don't fill a byte-limited memtable", !memTable.isFull());
+        
+        long before = memTable.getSizeBytes();
+        memTable.put("small0", "x".repeat(1000));
+        // Older versions stay until the flush, so an overwrite adds the new value's size
+        assertTest("Overwrite accounts for the new version", memTable.getSizeBytes() >= before + 2 * 1000
+            && memTable.getCurrentSize() == 100);
+        memTable.put("large", "x".repeat(40 * 1024));
+        assertTest("One large value fills a byte-limited memtable", memTable.isFull());
+        memTable.clear();
+        assertTest("Clear resets the byte count", memTable.getSizeBytes() == 0 && !memTable.isFull());
+        
+        String oldLimit = System.getProperty("kvdb.memtable.maxRecords");
+        System.clearProperty("kvdb.memtable.maxRecords");
+        System.setProperty("kvdb.memtable.bytes", String.valueOf(256 * 1024));
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            for (int i = 0; i < 500; i++) {
+                storage.put("sizedkey" + i, "value" + i);
+            }
+            assertTest("Many small writes stay in one memtable", storage.getSSTableCount() == 0);
+            
+            String large = "x".repeat(32 * 1024);
+            for (int i = 0; i < 20; i++) {
+                storage.put("largekey" + i, large);
+            }
+            storage.compact();
+            assertTest("Large values trigger a flush", storage.getSSTableCount() > 0);
+            assertTest("Values readable after size-based flush",
+                large.equals(storage.get("largekey0")) && "value499".equals(storage.get("sizedkey499")));
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+            System.clearProperty("kvdb.memtable.bytes");
+            System.setProperty("kvdb.memtable.maxRecords", oldLimit);
+        }
+    }
+    
+    private static void testArenaMemTable() throws IOException, InterruptedException {
+        System.out.println("\n=== Testing Arena MemTable ===");
+        MyMemTable arena = new MyArenaMemTable(0, 0);
+        MyMemTable reference = new MySkipListMemTable(0, 0);
+        String[] keys = {"b", "a", "ab", "\u00e9", "\ue000", "\ud83d\ude00", "a\uffff", "a\ud83d\ude00", "", "zz"};
+        for (String key : keys) {
+            arena.put(key, "v-" + key);
+            reference.put(key, "v-" + key);
+        }
+        arena.put("ab", "x".repeat(2 * Constants.MEMTABLE_ARENA_MAX_CHUNK));
+        reference.put("ab", "x".repeat(2 * Constants.MEMTABLE_ARENA_MAX_CHUNK));
+        arena.delete("b");
+        reference.delete("b");
+        assertTest("Arena get matches skiplist", "v-\ue000".equals(arena.get("\ue000"))
+            && arena.get("b") == null && Constants.TOMBSTONE.equals(arena.getRaw("b"))
+            && reference.get("ab").equals(arena.get("ab")) && arena.get("missing") == null);
+        assertTest("Arena keys sort like Strings", new ArrayList<>(arena.getBatch("", "\uffff").entrySet())
+            .equals(new ArrayList<>(reference.getBatch("", "\uffff").entrySet())));
+        assertTest("Arena counts distinct keys", arena.getCurrentSize() == keys.length
+            && arena.getSizeBytes() > 2 * Constants.MEMTABLE_ARENA_MAX_CHUNK);
+        
+        Path dir = Files.createTempDirectory("kvdb-arena");
+        Path file = dir.resolve("arena.db");
+        try (MySSTableWriter writer = new MySSTableWriter(file, arena.getCurrentSize())) {
+            arena.writeTo(writer);
+            writer.finish();
+        }
+        MySSTableReader reader = MySSTableReader.open(file);
+        try {
+            boolean allFound = true;
+            for (String key : keys) {
+                allFound &= reference.getRaw(key).equals(reader.get(key));
+            }
+            assertTest("Arena flush writes a readable SSTable", allFound);
+        } finally {
+            reader.release();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+        
+        // Readers walk the skiplist while a writer keeps inserting
+        MyMemTable shared = new MyArenaMemTable(0, 0);
+        AtomicInteger written = new AtomicInteger();
+        AtomicBoolean readersOk = new AtomicBoolean(true);
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread(() -> {
+                while (written.get() < 20000) {
+                    int upTo = written.get();
+                    for (int i = Math.max(0, upTo - 50); i < upTo; i++) {
+                        if (!("value" + i).equals(shared.get("key" + i))) {
+                            readersOk.set(false);
+                        }
+                    }
+                }
+            });
+            readers[t].start();
+        }
+        for (int i = 0; i < 20000; i++) {
+            shared.put("key" + i, "value" + i);
+            written.set(i + 1);
+        }
+        for (Thread reader2 : readers) {
+            reader2.join();
+        }
+        assertTest("Concurrent readers see every published entry", readersOk.get());
+        
+        String oldType = System.getProperty("kvdb.memtable.type");
+        System.setProperty("kvdb.memtable.type", "ARENA");
+        try {
+            MyStorageEngine storage = new MyStorageEngine();
+            for (int i = 0; i < 200; i++) {
+                storage.put("arenakey" + i, "value" + i);
+            }
+            for (int i = 0; i < 200; i += 3) {
+                storage.delete("arenakey" + i);
+            }
+            storage.gracefulClose();
+            
+            storage = new MyStorageEngine();
+            try {
+                boolean correct = true;
+                for (int i = 0; i < 200; i++) {
+                    String expected = i % 3 == 0 ? null : "value" + i;
+                    correct &= Objects.equals(expected, storage.get("arenakey" + i));
+                }
+                assertTest("Engine works with arena memtables", correct && storage.getSSTableCount() > 0);
+            } finally {
+                storage.gracefulClose();
+                storage.cleanup();
+            }
+        } finally {
+            if (oldType == null) {
+                System.clearProperty("kvdb.memtable.type");
+            } else {
+                System.setProperty("kvdb.memtable.type", oldType);
+            }
+        }
+    }
+    
+    private static void testSnapshotReads() throws InterruptedException {
+        System.out.println("\n=== Testing Snapshot Reads ===");
+        for (MyMemTable memTable : new MyMemTable[] {new MySkipListMemTable(0, 0), new MyArenaMemTable(0, 0)}) {
+            String name = memTable.getClass().getSimpleName();
+            // Two writers to one key can reach the memtable in the opposite order to the WAL
+            memTable.put("k", "second", 10);
+            memTable.put("k", "first", 5);
+            memTable.delete("k", 12);
+            memTable.put("k", "third", 11);
+            assertTest(name + " keeps the highest sequence number", memTable.get("k") == null
+                && "third".equals(memTable.getRaw("k", 11)) && "second".equals(memTable.getRaw("k", 10))
+                && "first".equals(memTable.getRaw("k", 7)) && memTable.getRaw("k", 4) == null);
+            assertTest(name + " range reads honour the snapshot", memTable.getBatch("a", "z", 7).equals(Map.of("k", "first"))
+                && memTable.getBatch("a", "z", 4).isEmpty() && memTable.getCurrentSize() == 1);
+        }
+        
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            // One writer adds keys in order while range reads run; every read must see a prefix,
+            // even while memtables are rotated and flushed underneath it
+            int total = 1500;
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicBoolean prefixesOk = new AtomicBoolean(true);
+            AtomicInteger reads = new AtomicInteger();
+            Thread[] readers = new Thread[3];
+            for (int t = 0; t < readers.length; t++) {
+                readers[t] = new Thread(() -> {
+                    while (!done.get()) {
+                        Map<String, String> batch = storage.getBatch("snap-", "snap-~");
+                        int n = batch.size();
+                        if (n > 0 && !batch.containsKey(String.format("snap-%05d", n - 1))) {
+                            prefixesOk.set(false);
+                        }
+                        reads.incrementAndGet();
+                    }
+                });
+                readers[t].start();
+            }
+            for (int i = 0; i < total; i++) {
+                storage.put(String.format("snap-%05d", i), "v" + i);
+            }
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            assertTest("Range reads see a consistent prefix", prefixesOk.get() && reads.get() > 0);
+            assertTest("Final range read sees every write", storage.getBatch("snap-", "snap-~").size() == total);
+            
+            // Writers no longer take turns on one engine lock
+            int threads = 8;
+            int perThread = 300;
+            Thread[] writers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int id = t;
+                writers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        storage.put("par-" + id + "-" + i, "v" + i);
+                        if (i % 10 == 0) {
+                            storage.delete("par-" + id + "-" + (i / 2));
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            boolean allCorrect = true;
+            for (int t = 0; t < threads; t++) {
+                for (int i = 0; i < perThread; i++) {
+                    boolean deleted = i < perThread / 2 && (2 * i) % 10 == 0 && 2 * i < perThread;
+                    String expected = deleted ? null : "v" + i;
+                    allCorrect &= Objects.equals(expected, storage.get("par-" + t + "-" + i));
+                }
+            }
+            assertTest("Concurrent writers all land", allCorrect);
+            
+            // A write that finishes while an earlier one is still being applied must not make a
+            // snapshot skip the earlier one
+            CountDownLatch held = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            storage.applyHook = key -> {
+                if (key.equals("order-slow")) {
+                    held.countDown();
+                    awaitQuietly(release);
+                }
+            };
+            Thread slow = new Thread(() -> storage.put("order-slow", "1"));
+            slow.start();
+            held.await();
+            storage.applyHook = null;
+            Thread fast = new Thread(() -> storage.put("order-fast", "2"));
+            fast.start();
+            fast.join(200);
+            Map<String, String> during = storage.getBatch("order-", "order-~");
+            boolean fastWaited = fast.isAlive();
+            release.countDown();
+            slow.join();
+            fast.join();
+            assertTest("Snapshots wait for earlier writes still being applied", during.isEmpty() && fastWaited
+                && storage.getBatch("order-", "order-~").size() == 2);
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void testRangeScan() throws IOException {
+        System.out.println("\n=== Testing Range Scan ===");
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            // Overwrites and deletes spread over many files and the memtable
+            TreeMap<String, String> expected = new TreeMap<>();
+            Random random = new Random(13);
+            for (int i = 0; i < 600; i++) {
+                String key = String.format("scan-%04d", random.nextInt(300));
+                if (random.nextInt(5) == 0) {
+                    storage.delete(key);
+                    expected.remove(key);
+                } else {
+                    storage.put(key, "v" + i);
+                    expected.put(key, "v" + i);
+                }
+            }
+            boolean rangesMatch = true;
+            for (int i = 0; i < 20; i++) {
+                String from = String.format("scan-%04d", random.nextInt(300));
+                String to = String.format("scan-%04d", random.nextInt(300));
+                if (from.compareTo(to) > 0) {
+                    continue;
+                }
+                List<String> seen = new ArrayList<>();
+                try (MyMergeIterator iterator = storage.scan(from, to)) {
+                    while (iterator.next()) {
+                        seen.add(iterator.key() + "=" + iterator.value());
+                    }
+                }
+                List<String> want = new ArrayList<>();
+                for (Map.Entry<String, String> entry : expected.subMap(from, true, to, true).entrySet()) {
+                    want.add(entry.getKey() + "=" + entry.getValue());
+                }
+                rangesMatch &= seen.equals(want);
+            }
+            assertTest("Merged scans match the expected ranges", rangesMatch);
+            
+            // An open scan keeps reading its snapshot while later writes fill and flush memtables
+            Set<String> seen = new HashSet<>();
+            try (MyMergeIterator iterator = storage.scan("scan-", "scan-~")) {
+                iterator.next();
+                seen.add(iterator.key());
+                for (int i = 0; i < 50; i++) {
+                    storage.put("scan-" + i + "-late", "late");
+                }
+                storage.delete(expected.lastKey());
+                while (iterator.next()) {
+                    seen.add(iterator.key());
+                }
+            }
+            assertTest("Open scan ignores later writes", seen.equals(expected.keySet()));
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testPagedScans() {
+        System.out.println("\n=== Testing Paged Scans ===");
+        MyKeyRange prefix = MyKeyRange.prefix("ab");
+        MyKeyRange top = MyKeyRange.prefix("a\uffff");
+        assertTest("Prefix ranges", prefix.contains("ab") && prefix.contains("ab\uffff\uffff")
+            && !prefix.contains("ac") && !prefix.contains("aa") && top.contains("a\uffffz") && !top.contains("b")
+            && MyKeyRange.prefix("").contains(""));
+        
+        // Both memtables walk a range the same way in either direction
+        MyMemTable arena = new MyArenaMemTable(0, 0);
+        MyMemTable reference = new MySkipListMemTable(0, 0);
+        for (int i = 0; i < 200; i += 3) {
+            arena.put("m" + i, "v" + i);
+            reference.put("m" + i, "v" + i);
+        }
+        boolean memTablesAgree = true;
+        for (MyKeyRange range : new MyKeyRange[] {MyKeyRange.all(), MyKeyRange.prefix("m1"),
+                MyKeyRange.closed("m12", "m45"), MyKeyRange.closed("m13", "m44").after("m21", false),
+                MyKeyRange.closed("m13", "m44").after("m30", true)}) {
+            for (boolean reverse : new boolean[] {false, true}) {
+                List<Map.Entry<String, String>> a = new ArrayList<>();
+                arena.scan(range, reverse, MyMemTable.LATEST).forEachRemaining(a::add);
+                List<Map.Entry<String, String>> b = new ArrayList<>();
+                reference.scan(range, reverse, MyMemTable.LATEST).forEachRemaining(b::add);
+                memTablesAgree &= a.equals(b) && !a.isEmpty();
+            }
+        }
+        assertTest("Arena and skiplist scans agree", memTablesAgree);
+        
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            TreeMap<String, String> expected = new TreeMap<>();
+            Random random = new Random(14);
+            for (int i = 0; i < 500; i++) {
+                String key = "page-" + (char) ('a' + random.nextInt(3)) + "-" + random.nextInt(200);
+                if (random.nextInt(6) == 0) {
+                    storage.delete(key);
+                    expected.remove(key);
+                } else {
+                    storage.put(key, "v" + i);
+                    expected.put(key, "v" + i);
+                }
+            }
+            
+            // Pages of 7 resumed after the last key returned add up to the whole range
+            boolean pagesMatch = true;
+            for (boolean reverse : new boolean[] {false, true}) {
+                for (String p : new String[] {"page-", "page-b"}) {
+                    List<String> keys = new ArrayList<>();
+                    MyKeyRange range = MyKeyRange.prefix(p);
+                    while (true) {
+                        Map<String, String> page = storage.getBatch(range, reverse, 7);
+                        keys.addAll(page.keySet());
+                        if (page.size() < 7) {
+                            break;
+                        }
+                        range = range.after(keys.get(keys.size() - 1), reverse);
+                    }
+                    List<String> want = new ArrayList<>(expected.subMap(p, p + "\uffff").keySet());
+                    if (reverse) {
+                        Collections.reverse(want);
+                    }
+                    pagesMatch &= keys.equals(want);
+                }
+            }
+            assertTest("Paged scans cover the range once, in order", pagesMatch);
+            
+            String from = expected.firstKey();
+            String to = expected.lastKey();
+            Map<String, String> open = storage.getBatch(MyKeyRange.closed(from, to).after(from, false), false, 0);
+            assertTest("Continuation excludes the last key", !open.containsKey(from) && open.containsKey(to)
+                && open.size() == expected.size() - 1);
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testCompression() throws IOException {
+        System.out.println("\n=== Testing SSTable Compression ===");
+        Files.createDirectories(Paths.get(Constants.DATA_DIR));
+        Path plain = Paths.get(Constants.DATA_DIR, "plain-test" + Constants.TMP_SUFFIX);
+        Path packed = Paths.get(Constants.DATA_DIR, "packed-test" + Constants.TMP_SUFFIX);
+        for (Path path : new Path[] {plain, packed}) {
+            Random random = new Random(15);
+            MySSTableWriter.Compression codec = path == plain
+                ? MySSTableWriter.Compression.NONE : MySSTableWriter.Compression.DEFLATE;
+            try (MySSTableWriter writer = new MySSTableWriter(path, 3000, codec)) {
+                for (int i = 0; i < 3000; i++) {
+                    // The last stretch is random, so its blocks don't shrink and are stored raw
+                    String value = i < 2500 ? "user-profile-" + (i % 20) + "-active" : Long.toHexString(random.nextLong());
+                    writer.add(String.format("c-%05d", i), i % 100 == 0 ? Constants.TOMBSTONE : value);
+                }
+                writer.finish();
+            }
+        }
+        assertTest("Compressed file is smaller", Files.size(packed) * 2 < Files.size(plain));
+        
+        MyBlockCache cache = new MyBlockCache(1024 * 1024);
+        MySSTableReader expected = MySSTableReader.open(plain);
+        MySSTableReader reader = MySSTableReader.open(packed, cache);
+        try {
+            boolean allMatch = reader.getCompression() == MySSTableWriter.Compression.DEFLATE
+                && expected.getCompression() == MySSTableWriter.Compression.NONE;
+            for (int i = 0; i < 3000; i += 7) {
+                String key = String.format("c-%05d", i);
+                allMatch &= Objects.equals(expected.get(key), reader.get(key));
+            }
+            assertTest("Compressed lookups", allMatch && Constants.TOMBSTONE.equals(reader.get("c-00100"))
+                && reader.get("c-99999") == null);
+            
+            long hits = cache.getHits();
+            assertTest("Cached blocks are inflated", "user-profile-1-active".equals(reader.get("c-00001"))
+                && cache.getHits() > hits);
+            
+            int forward = 0;
+            try (MySSTableReader.Scanner scanner = reader.scan("c-01000")) {
+                while (scanner.next()) {
+                    forward++;
+                }
+            }
+            int backward = 0;
+            String last = null;
+            try (MySSTableReader.Scanner scanner = reader.scanReverse("c-02999")) {
+                while (scanner.next()) {
+                    backward++;
+                    last = scanner.key();
+                }
+            }
+            assertTest("Compressed scans", forward == 2000 && backward == 3000 && "c-00000".equals(last));
+        } finally {
+            expected.release();
+            reader.release();
+            Files.delete(plain);
+            Files.delete(packed);
+        }
+        
+        // The engine writes new files with the configured codec and still reads older ones
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            for (int i = 0; i < 25; i++) {
+                storage.put("mixed-" + i, "before");
+            }
+        } finally {
+            storage.gracefulClose();
+        }
+        System.setProperty("kvdb.sstable.compression", "DEFLATE");
+        try {
+            storage = new MyStorageEngine();
+            for (int i = 10; i < 50; i++) {
+                storage.put("mixed-" + i, "after");
+            }
+            storage.gracefulClose();
+            storage = new MyStorageEngine();
+            boolean allRead = true;
+            for (int i = 0; i < 50; i++) {
+                allRead &= (i < 10 ? "before" : "after").equals(storage.get("mixed-" + i));
+            }
+            storage.compact();
+            allRead &= "before".equals(storage.get("mixed-3")) && "after".equals(storage.get("mixed-33"));
+            assertTest("Engine mixes compressed and plain files", allRead);
+        } finally {
+            System.clearProperty("kvdb.sstable.compression");
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    // Reads one HTTP/1.1 response with a Content-length body; returns "status body"
+    // Polls for up to 10 seconds; fails the test if the condition never holds
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("Timed out waiting for a condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+    
+    private static String readHttpResponse(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            head.append((char) b);
+        }
+        String[] lines = head.toString().split("\r\n");
+        int length = 0;
+        for (String line : lines) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        return lines[0].split(" ")[1] + " " + new String(in.readNBytes(length), "UTF-8");
+    }
+    
+    private static void testMultiGet() {
+        System.out.println("\n=== Testing Multi-Get ===");
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            // Older file: every key; newer file: an update and a delete; memtable: more of both
+            for (int i = 0; i < 500; i++) {
+                storage.put(String.format("multi-%04d", i), "old-" + i);
+            }
+            storage.compact();
+            storage.put("multi-0010", "new-10");
+            storage.delete("multi-0020");
+            storage.compact();
+            storage.put("multi-0030", "mem-30");
+            storage.delete("multi-0040");
+            
+            List<String> keys = new ArrayList<>();
+            for (int i = 499; i >= 0; i -= 3) {
+                keys.add(String.format("multi-%04d", i));
+            }
+            keys.addAll(Arrays.asList("multi-0010", "multi-0020", "multi-0030", "multi-0040", "multi-0041",
+                "multi-9999", "aaa", "multi-0010"));
+            Map<String, String> results = storage.multiGet(keys);
+            
+            boolean matchesGet = true;
+            for (String key : keys) {
+                matchesGet &= Objects.equals(storage.get(key), results.get(key));
+            }
+            assertTest("Multi-get matches get", matchesGet);
+            assertTest("Multi-get resolves newest versions", "new-10".equals(results.get("multi-0010"))
+                && "mem-30".equals(results.get("multi-0030")) && "old-41".equals(results.get("multi-0041"))
+                && !results.containsKey("multi-0020") && !results.containsKey("multi-0040"));
+            assertTest("Multi-get returns sorted existing keys", results.size() == new TreeSet<>(keys).size() - 4
+                && new ArrayList<>(results.keySet()).equals(new ArrayList<>(new TreeSet<>(results.keySet()))));
+
+            List<String> parsed = MyAPILayer.parseJsonStringArray(" [\"a,b\", \"say \\\"hi\\\"\", \"x\\\\y\\u0041\"] ");
+            assertTest("Multi-get request keeps commas and quotes in keys",
+                parsed.equals(Arrays.asList("a,b", "say \"hi\"", "x\\yA")));
+            assertTest("Multi-get request accepts an empty array", MyAPILayer.parseJsonStringArray("[]").isEmpty());
+            boolean rejected = true;
+            for (String bad : new String[] {"[a,b]", "[\"a\"", "[\"a\",]", "[\"a\\q\"]", "[\"a\"] x"}) {
+                try {
+                    MyAPILayer.parseJsonStringArray(bad);
+                    rejected = false;
+                } catch (IllegalArgumentException expected) {
+                }
+            }
+            assertTest("Multi-get request rejects malformed arrays", rejected);
+            String encoded = MyAPILayer.appendJsonString(new StringBuilder(), "a\"b\\c\n").toString();
+            assertTest("Multi-get response escapes keys and values", "\"a\\\"b\\\\c\\u000a\"".equals(encoded)
+                && MyAPILayer.parseJsonStringArray("[" + encoded + "]").equals(Arrays.asList("a\"b\\c\n")));
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testWriteBatch() throws IOException {
+        System.out.println("\n=== Testing Write Batches ===");
+        String walPath = Constants.DATA_DIR + "/batch-test.log";
+        MyWriteAheadLog wal = new MyWriteAheadLog(walPath, MyWriteAheadLog.SyncMode.SYNC);
+        try {
+            wal.logPut("before", "1");
+            wal.awaitDurable(wal.appendBatch(new MyWriteBatch().put("b1", "x").delete("before").put("b2", "y")));
+            wal.gracefulClose();
+            
+            Path segment;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(Constants.DATA_DIR),
+                    "batch-test.log.*")) {
+                segment = stream.iterator().next();
+            }
+            List<MyWriteAheadLog.LogEntry> entries = new ArrayList<>();
+            MyWriteAheadLog reopened = new MyWriteAheadLog(walPath);
+            reopened.recover(entries::add);
+            reopened.gracefulClose();
+            assertTest("Batch replayed in order", entries.size() == 4
+                && entries.get(2).getOperation() == MyWriteAheadLog.Operation.DELETE
+                && "y".equals(entries.get(3).getValue()));
+            
+            // Tear the batch record: none of its operations may come back
+            byte[] bytes = Files.readAllBytes(segment);
+            Files.write(segment, Arrays.copyOf(bytes, bytes.length - 3));
+            entries.clear();
+            reopened = new MyWriteAheadLog(walPath);
+            reopened.recover(entries::add);
+            reopened.gracefulClose();
+            assertTest("Torn batch is dropped as a whole", entries.size() == 1);
+        } finally {
+            wal.cleanup();
+        }
+        
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            storage.put("batch-old", "1");
+            storage.write(new MyWriteBatch()
+                .put("batch-a", "1").put("batch-a", "2").delete("batch-old").put("batch-b", "3").delete("batch-b"));
+            assertTest("Mixed batch applied in order", "2".equals(storage.get("batch-a"))
+                && storage.get("batch-old") == null && storage.get("batch-b") == null);
+            storage.compact();
+            assertTest("Batch survives a flush", "2".equals(storage.get("batch-a")) && storage.get("batch-b") == null);
+            
+            // Hold a batch half applied while a later write finishes: snapshots see none of it
+            CountDownLatch held = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            storage.applyHook = key -> {
+                if (key.equals("atomic-2")) {
+                    held.countDown();
+                    awaitQuietly(release);
+                }
+            };
+            Thread batchWriter = new Thread(() -> storage.write(new MyWriteBatch()
+                .put("atomic-1", "1").put("atomic-2", "2").put("atomic-3", "3")));
+            batchWriter.start();
+            held.await();
+            storage.applyHook = null;
+            Thread later = new Thread(() -> storage.put("atomic-later", "4"));
+            later.start();
+            later.join(200);
+            Map<String, String> during = storage.getBatch("atomic-", "atomic-~");
+            release.countDown();
+            batchWriter.join();
+            later.join();
+            assertTest("Half-applied batch is invisible to snapshots", during.isEmpty()
+                && storage.getBatch("atomic-", "atomic-~").size() == 4);
+        } catch (InterruptedException e) {
+            throw new AssertionError("Interrupted", e);
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static List<Map.Entry<String, String>> bulkEntries(int from, int to, int step, String value) {
+        List<Map.Entry<String, String>> entries = new ArrayList<>();
+        for (int i = from; i != to; i += step) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(String.format("bulk-%05d", i), value + i));
+        }
+        return entries;
+    }
+    
+    private static void testBulkLoad() throws IOException {
+        System.out.println("\n=== Testing Bulk Load ===");
+        // Small chunks so every load spans several files
+        System.setProperty("kvdb.bulkLoad.chunkBytes", "20000");
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            storage.put("bulk-00005", "memtable");
+            storage.put("bulk-00006", "memtable");
+            storage.compact();
+            storage.get("bulk-00006");
+            storage.put("bulk-00005", "memtable-newer");
+            
+            long loaded = storage.bulkLoad(bulkEntries(0, 2000, 1, "sorted-").iterator());
+            boolean allRead = loaded == 2000 && storage.getSSTableCount() > 2;
+            for (int i = 0; i < 2000; i += 7) {
+                allRead &= ("sorted-" + i).equals(storage.get(String.format("bulk-%05d", i)));
+            }
+            assertTest("Sorted bulk load readable", allRead);
+            assertTest("Bulk load replaces memtable and cached values",
+                "sorted-5".equals(storage.get("bulk-00005")) && "sorted-6".equals(storage.get("bulk-00006")));
+            
+            // Descending input with a second pass over every third key: external sort, last pair wins
+            List<Map.Entry<String, String>> unsorted = bulkEntries(2999, -1, -1, "first-");
+            unsorted.addAll(bulkEntries(0, 3000, 3, "second-"));
+            loaded = storage.bulkLoad(unsorted.iterator());
+            allRead = loaded == 3000;
+            for (int i = 0; i < 3000; i++) {
+                allRead &= ((i % 3 == 0 ? "second-" : "first-") + i).equals(storage.get(String.format("bulk-%05d", i)));
+            }
+            assertTest("Unsorted bulk load merged", allRead);
+            assertTest("Bulk load scans in order", storage.getBatch("bulk-00000", "bulk-09999").size() == 3000);
+            
+            try {
+                storage.bulkLoad(Arrays.<Map.Entry<String, String>>asList(
+                    new AbstractMap.SimpleImmutableEntry<>("bulk-bad", "x"),
+                    new AbstractMap.SimpleImmutableEntry<>("bulk-worse", null)).iterator());
+                assertTest("Invalid bulk load rejected", false);
+            } catch (IllegalArgumentException e) {
+                boolean leftovers;
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(Constants.DATA_DIR), "sstable-bulk-*")) {
+                    leftovers = stream.iterator().hasNext();
+                }
+                assertTest("Failed bulk load leaves nothing behind", !leftovers && storage.get("bulk-bad") == null);
+            }
+            
+            Path external = Paths.get(Constants.DATA_DIR, "external.sst");
+            try (MySSTableWriter writer = new MySSTableWriter(external, 2)) {
+                writer.add("bulk-00001", "external");
+                writer.add("bulk-ext", "external");
+                writer.finish();
+            }
+            storage.ingestFile(external);
+            Files.delete(external);
+            assertTest("External SSTable ingested", "external".equals(storage.get("bulk-00001"))
+                && "external".equals(storage.get("bulk-ext")) && "first-2".equals(storage.get("bulk-00002")));
+        } finally {
+            System.clearProperty("kvdb.bulkLoad.chunkBytes");
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+        
+        // A failed ingest removes every input, whether or not it was already moved in
+        Path failDir = Paths.get(Constants.DATA_DIR, "ingest-failure-test");
+        MySSTable files = new MySSTable(failDir.toString());
+        try {
+            Path staged = failDir.resolve("sstable-bulk-staged.tmp");
+            try (MySSTableWriter writer = new MySSTableWriter(staged, 1)) {
+                writer.add("bulk-staged", "x");
+                writer.finish();
+            }
+            boolean failed = false;
+            try {
+                files.ingest(Arrays.asList(staged, failDir.resolve("sstable-bulk-missing.tmp")));
+            } catch (IOException e) {
+                failed = true;
+            }
+            assertTest("Failed ingest deletes its inputs", failed && !Files.exists(staged)
+                && files.getFileCount() == 0 && files.get("bulk-staged") == null
+                && !Files.exists(failDir.resolve(Constants.INGEST_MANIFEST)));
+        } finally {
+            files.close();
+            files.cleanup();
+        }
+        
+        // A crash after the first of an ingest's moves: the next open completes the rest
+        Path crashDir = Paths.get(Constants.DATA_DIR, "ingest-crash-test");
+        Files.createDirectories(crashDir);
+        for (int i = 0; i < 2; i++) {
+            try (MySSTableWriter writer = new MySSTableWriter(crashDir.resolve("sstable-bulk-" + i + ".tmp"), 1)) {
+                writer.add("crash-" + i, "loaded");
+                writer.finish();
+            }
+        }
+        Files.write(crashDir.resolve(Constants.INGEST_MANIFEST),
+            "sstable-bulk-0.tmp\tsstable-0.db\nsstable-bulk-1.tmp\tsstable-1.db\n".getBytes(StandardCharsets.UTF_8));
+        Files.move(crashDir.resolve("sstable-bulk-0.tmp"), crashDir.resolve("sstable-0.db"));
+        MySSTable reopened = new MySSTable(crashDir.toString());
+        try {
+            assertTest("Interrupted ingest completes on open", "loaded".equals(reopened.get("crash-0"))
+                && "loaded".equals(reopened.get("crash-1"))
+                && !Files.exists(crashDir.resolve(Constants.INGEST_MANIFEST)));
+        } finally {
+            reopened.close();
+            reopened.cleanup();
+        }
+    }
+    
+    private static void testMetrics() {
+        System.out.println("\n=== Testing Metrics ===");
+        MyHistogram histogram = new MyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.getPercentile(0.5);
+        long p99 = histogram.getPercentile(0.99);
+        assertTest("Histogram percentiles within bucket error", p50 >= 500_000 && p50 <= 500_000 * 1.125
+            && p99 >= 990_000 && p99 <= 990_000 * 1.125 && histogram.getPercentile(1.0) == 1_000_000);
+        boolean boundsHold = true;
+        for (long value : new long[] {0, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE}) {
+            boundsHold &= MyHistogram.bucketUpperBound(MyHistogram.bucketIndex(value)) >= value;
+        }
+        assertTest("Histogram buckets cover their values", boundsHold && histogram.getCount() == 1000);
+        
+        // Small memtables so the reads below go to the SSTables
+        System.setProperty("kvdb.memtable.maxRecords", "50");
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            for (int i = 0; i < 100; i++) {
+                storage.put("metric" + i, "value" + i);
+            }
+            storage.delete("metric0");
+            // The second handoff waited for the first flush, so keys 1..49 are only in a file
+            for (int i = 0; i < 100; i++) {
+                storage.get("metric" + i);
+            }
+            String text = storage.getMetricsText();
+            assertTest("Metrics count operations", text.contains("kvdb_op_latency_seconds_count{op=\"put\"} 100\n")
+                && text.contains("kvdb_op_latency_seconds_count{op=\"delete\"} 1\n")
+                && text.contains("kvdb_op_latency_seconds{op=\"get\",quantile=\"0.99\"} "));
+            assertTest("Metrics cover engine internals", storage.getSSTable().getFlushTimes().getCount() >= 1
+                && text.contains("kvdb_wal_records_total 101\n") && storage.getSSTable().getLookups() >= 49
+                && storage.getSSTable().getFilesSearched() >= 49 && storage.getRowCache().getMisses() >= 49
+                && text.contains("kvdb_row_cache_misses_total "));
+        } finally {
+            System.clearProperty("kvdb.memtable.maxRecords");
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testHttpExecutor() throws IOException, InterruptedException {
+        System.out.println("\n=== Testing HTTP Executor ===");
+        System.setProperty("kvdb.http.executor", "POOL");
+        System.setProperty("kvdb.http.threads", "1");
+        System.setProperty("kvdb.http.queue", "1");
+        MyAPILayer api = new MyAPILayer(0);
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) api.getExecutor();
+        try (Socket slow = new Socket("localhost", api.getPort());
+             Socket queued = new Socket("localhost", api.getPort());
+             Socket other = new Socket("localhost", api.getPort())) {
+            api.start();
+            // The only worker blocks reading a request body that has not fully arrived
+            String body = "key=http-key&value=http-value";
+            byte[] bodyBytes = body.getBytes("UTF-8");
+            slow.getOutputStream().write(("POST /put HTTP/1.1\r\nHost: x\r\nContent-Length: " + bodyBytes.length
+                + "\r\n\r\n").getBytes("UTF-8"));
+            slow.getOutputStream().write(bodyBytes, 0, 4);
+            slow.getOutputStream().flush();
+            waitUntil(() -> pool.getActiveCount() == 1);
+            
+            // The next request takes the one queue slot, and the one after it has no room
+            queued.getOutputStream().write("GET /ping HTTP/1.1\r\nHost: x\r\n\r\n".getBytes("UTF-8"));
+            waitUntil(() -> pool.getQueue().size() == 1);
+            other.getOutputStream().write("GET /ping HTTP/1.1\r\nHost: x\r\n\r\n".getBytes("UTF-8"));
+            assertTest("Saturated pool answers 503", readHttpResponse(other.getInputStream()).startsWith("503"));
+            
+            slow.getOutputStream().write(bodyBytes, 4, bodyBytes.length - 4);
+            assertTest("Blocked request completes", readHttpResponse(slow.getInputStream()).startsWith("200"));
+            assertTest("Queued request completes", readHttpResponse(queued.getInputStream()).startsWith("200"));
+            // The same connection carries the next request. With the queue empty again it waits
+            // there if the worker is still between tasks, rather than being refused
+            slow.getOutputStream().write("GET /get?key=http-key HTTP/1.1\r\nHost: x\r\n\r\n".getBytes("UTF-8"));
+            assertTest("Keep-alive connection reused", readHttpResponse(slow.getInputStream()).equals("200 http-value"));
+        } finally {
+            System.clearProperty("kvdb.http.executor");
+            System.clearProperty("kvdb.http.threads");
+            System.clearProperty("kvdb.http.queue");
+            api.stop();
+            MyStorageEngine storage = new MyStorageEngine();
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testBinaryProtocol() throws IOException {
+        System.out.println("\n=== Testing Binary Protocol ===");
+        MyStorageEngine storage = new MyStorageEngine();
+        MyBinaryServer server = new MyBinaryServer(0, storage);
+        server.start();
+        try (MyBinaryClient client = new MyBinaryClient("localhost", server.getPort())) {
+            client.put("bin-k\u00e9y", "v\u00e4lue");
+            assertTest("Binary put/get", "v\u00e4lue".equals(client.get("bin-k\u00e9y")));
+            client.delete("bin-k\u00e9y");
+            assertTest("Binary delete", client.get("bin-k\u00e9y") == null);
+            
+            // Several operations per frame run in order
+            List<String> results = client.execute(new MyBinaryClient.Batch()
+                .put("bin-a", "1").get("bin-a").put("bin-a", "2").get("bin-a").delete("bin-a").get("bin-a"));
+            assertTest("Binary batch", Arrays.asList(null, "1", null, "2", null, null).equals(results));
+            
+            // Pipelined frames are answered in order
+            for (int i = 0; i < 1000; i++) {
+                client.send(new MyBinaryClient.Batch().put("bin-" + i, "value-" + i).get("bin-" + i));
+            }
+            client.flush();
+            boolean inOrder = true;
+            for (int i = 0; i < 1000; i++) {
+                inOrder &= ("value-" + i).equals(client.receive().get(1));
+            }
+            assertTest("Binary pipelining", inOrder);
+            assertTest("Binary writes reach the engine", "value-999".equals(storage.get("bin-999")));
+            
+            // An unknown operation fails its whole frame before any of the frame's operations run
+            try (Socket raw = new Socket("localhost", server.getPort())) {
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                DataOutputStream body = new DataOutputStream(frame);
+                body.writeInt(7);
+                body.writeShort(2);
+                body.writeByte(MyBinaryServer.OP_PUT);
+                MyBinaryServer.writeString(body, "bin-bad");
+                MyBinaryServer.writeString(body, "x");
+                body.writeByte(99);
+                MyBinaryServer.writeString(body, "bin-bad");
+                DataOutputStream out = new DataOutputStream(raw.getOutputStream());
+                out.writeInt(frame.size());
+                out.write(frame.toByteArray());
+                out.flush();
+                assertTest("Unknown operation rejects the whole frame",
+                    raw.getInputStream().read() == -1 && storage.get("bin-bad") == null);
+            }
+        } finally {
+            server.stop();
+        }
+        
+        System.setProperty("kvdb.binary.maxConnections", "1");
+        MyBinaryServer limited = new MyBinaryServer(0, storage);
+        System.clearProperty("kvdb.binary.maxConnections");
+        limited.start();
+        try (MyBinaryClient first = new MyBinaryClient("localhost", limited.getPort());
+             Socket second = new Socket("localhost", limited.getPort())) {
+            first.put("bin-limit", "1");
+            assertTest("Connections over the limit are closed", second.getInputStream().read() == -1
+                && "1".equals(first.get("bin-limit")));
+        } finally {
+            limited.stop();
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testLoadGenerator() throws InterruptedException {
+        System.out.println("\n=== Testing Load Generator ===");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        MyLoadGenerator.Zipfian zipfian = new MyLoadGenerator.Zipfian(100);
+        int[] counts = new int[100];
+        boolean inRange = true;
+        for (int i = 0; i < 100_000; i++) {
+            long rank = zipfian.next(random);
+            inRange &= rank >= 0 && rank < 100;
+            counts[(int) Math.max(0, Math.min(99, rank))]++;
+        }
+        // With theta 0.99 over 100 items, rank 0 draws about 19% and rank 9 about 2%
+        assertTest("Zipfian ranks are skewed", inRange && counts[0] > 15_000 && counts[0] > 5 * counts[9]
+            && counts[99] > 0);
+        MyLoadGenerator.KeyChooser latest = MyLoadGenerator.KeyChooser.create(MyLoadGenerator.Distribution.LATEST, 100);
+        int recent = 0;
+        for (int i = 0; i < 10_000; i++) {
+            long key = latest.next(random, 1000);
+            inRange &= key >= 0 && key < 1000;
+            recent += key >= 990 ? 1 : 0;
+        }
+        assertTest("Latest favours recent keys", inRange && recent > 5000);
+        
+        MyLoadGenerator.Workload workload = MyLoadGenerator.Workload.preset("A");
+        workload.recordCount = 500;
+        workload.operationCount = 2000;
+        workload.threads = 4;
+        workload.valueSize = 50;
+        MyStorageEngine storage = new MyStorageEngine();
+        try {
+            MyLoadGenerator generator = new MyLoadGenerator(workload, new MyLoadGenerator.EngineStore(storage));
+            Map<MyLoadGenerator.OpType, MyLoadGenerator.Stats> loaded = generator.load();
+            assertTest("Load phase inserts every record", loaded.get(MyLoadGenerator.OpType.INSERT).total.getCount() == 500
+                && storage.get(MyLoadGenerator.key(0)) != null && storage.get(MyLoadGenerator.key(499)) != null
+                && storage.get(MyLoadGenerator.key(500)) == null);
+            Map<MyLoadGenerator.OpType, MyLoadGenerator.Stats> ran = generator.run();
+            MyLoadGenerator.Stats reads = ran.get(MyLoadGenerator.OpType.READ);
+            MyLoadGenerator.Stats updates = ran.get(MyLoadGenerator.OpType.UPDATE);
+            assertTest("Run phase follows the mix", reads.total.getCount() + updates.total.getCount() == 2000
+                && reads.total.getCount() > 800 && updates.total.getCount() > 800
+                && reads.notFound.sum() == 0 && reads.errors.sum() + updates.errors.sum() == 0);
+            
+            workload = MyLoadGenerator.Workload.preset("E");
+            workload.recordCount = 500;
+            workload.operationCount = 200;
+            workload.maxScanLength = 10;
+            Map<MyLoadGenerator.OpType, MyLoadGenerator.Stats> scanned =
+                new MyLoadGenerator(workload, new MyLoadGenerator.EngineStore(storage)).run();
+            assertTest("Scans and inserts run", scanned.get(MyLoadGenerator.OpType.SCAN).total.getCount() > 150
+                && scanned.get(MyLoadGenerator.OpType.SCAN).errors.sum() == 0
+                && scanned.get(MyLoadGenerator.OpType.INSERT).errors.sum() == 0);
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+    }
+    
+    private static void testShardedEngine() {
+        System.out.println("\n=== Testing Sharded Engine ===");
+        String dir = Constants.DATA_DIR + "/sharded-test";
+        MyShardedEngine storage = new MyShardedEngine(dir, 4);
+        try {
+            for (int i = 0; i < 400; i++) {
+                storage.put(String.format("shard-%03d", i), "value-" + i);
+            }
+            storage.delete("shard-007");
+            int[] perShard = new int[4];
+            for (int i = 0; i < 400; i++) {
+                String key = String.format("shard-%03d", i);
+                perShard[storage.shardOf(key)]++;
+            }
+            boolean spread = Arrays.stream(perShard).allMatch(count -> count > 50);
+            assertTest("Keys spread over the shards", spread && storage.getShard(storage.shardOf("shard-123"))
+                .get("shard-123").equals("value-123"));
+            assertTest("Point operations are routed", "value-399".equals(storage.get("shard-399"))
+                && storage.get("shard-007") == null && storage.get("shard-400") == null);
+            
+            Map<String, String> found = storage.multiGet(Arrays.asList("shard-001", "shard-007", "shard-250", "missing"));
+            assertTest("Multi-get across shards", found.size() == 2 && "value-250".equals(found.get("shard-250"))
+                && new ArrayList<>(found.keySet()).equals(Arrays.asList("shard-001", "shard-250")));
+            
+            Map<String, String> range = storage.getBatch(MyKeyRange.closed("shard-005", "shard-014"), false, 0);
+            Map<String, String> reversed = storage.getBatch(MyKeyRange.closed("shard-005", "shard-014"), true, 3);
+            assertTest("Scans merge the shards in key order", range.size() == 9
+                && new ArrayList<>(range.keySet()).get(0).equals("shard-005") && !range.containsKey("shard-007")
+                && new ArrayList<>(reversed.keySet()).equals(Arrays.asList("shard-014", "shard-013", "shard-012")));
+            
+            storage.write(new MyWriteBatch().put("shard-001", "batched").delete("shard-002").put("shard-500", "new"));
+            assertTest("Write batches are split by shard", "batched".equals(storage.get("shard-001"))
+                && storage.get("shard-002") == null && "new".equals(storage.get("shard-500")));
+            
+            String text = storage.getMetricsText();
+            assertTest("Metrics are labelled by shard", text.contains("kvdb_sstable_files{shard=\"3\"} ")
+                && text.contains("kvdb_op_latency_seconds_count{shard=\"0\",op=\"put\"} ")
+                && text.indexOf("# TYPE kvdb_wal_records_total") == text.lastIndexOf("# TYPE kvdb_wal_records_total"));
+            
+            List<Map.Entry<String, String>> entries = new ArrayList<>();
+            for (int i = 999; i >= 0; i--) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(String.format("bulk-%04d", i), "loaded-" + i));
+            }
+            entries.add(new AbstractMap.SimpleImmutableEntry<>("bulk-0000", "last"));
+            long loaded = storage.bulkLoad(entries.iterator());
+            assertTest("Bulk load spreads over the shards", loaded == 1000 && "last".equals(storage.get("bulk-0000"))
+                && "loaded-999".equals(storage.get("bulk-0999")) && "value-399".equals(storage.get("shard-399")));
+            entries.add(new AbstractMap.SimpleImmutableEntry<>("bulk-bad", null));
+            boolean rejected = false;
+            try {
+                storage.bulkLoad(entries.iterator());
+            } catch (IllegalArgumentException e) {
+                rejected = true;
+            }
+            assertTest("Failed bulk load leaves the shards alone", rejected && "last".equals(storage.get("bulk-0000")));
+        } finally {
+            storage.gracefulClose();
+        }
+        
+        boolean mismatchRejected = false;
+        try {
+            new MyShardedEngine(dir, 2).gracefulClose();
+        } catch (IllegalStateException e) {
+            mismatchRejected = true;
+        }
+        storage = new MyShardedEngine(dir, 4);
+        try {
+            assertTest("Shards reopen with their data", mismatchRejected && "batched".equals(storage.get("shard-001"))
+                && storage.get("shard-007") == null && "loaded-500".equals(storage.get("bulk-0500")));
+        } finally {
+            storage.gracefulClose();
+            storage.cleanup();
+        }
+        
+        MyShardedEngine ranged = new MyShardedEngine(Constants.DATA_DIR + "/range-sharded-test", Arrays.asList("g", "p"));
+        try {
+            for (String key : new String[] {"apple", "fig", "grape", "kiwi", "pear", "plum", "zucchini"}) {
+                ranged.put(key, key.toUpperCase());
+            }
+            assertTest("Range shards hold their key ranges", ranged.shardOf("fig") == 0 && ranged.shardOf("g") == 1
+                && ranged.shardOf("pear") == 2 && "KIWI".equals(ranged.getShard(1).get("kiwi"))
+                && ranged.getShard(0).get("kiwi") == null);
+            Map<String, String> scanned = ranged.getBatch(MyKeyRange.closed("b", "q"), false, 0);
+            assertTest("Range shards scan across boundaries", new ArrayList<>(scanned.keySet())
+                .equals(Arrays.asList("fig", "grape", "kiwi", "pear", "plum")));
+        } finally {
+            ranged.gracefulClose();
+            ranged.cleanup();
+        }
+    }
+    
+    private static void testReplication() throws IOException {
+        System.out.println("\n=== Testing Replication ===");
+        MyStorageEngine leader = new MyStorageEngine(Constants.DATA_DIR + "/leader-test", 1);
+        MyReplicationServer server = null;
+        MyFollower follower = null;
+        try {
+            for (int i = 0; i < 50; i++) {
+                leader.put(String.format("repl-%02d", i), "before-" + i);
+            }
+            server = new MyReplicationServer(0, leader, 1024 * 1024);
+            server.start();
+            follower = new MyFollower(Constants.DATA_DIR + "/follower-test", "localhost:" + server.getPort());
+            follower.start();
+            
+            assertTest("Follower catches up from a snapshot", follower.awaitReplicationPosition(
+                    leader.getReplicationPosition(), 10_000) && follower.getSnapshotsLoaded() == 1
+                && "before-49".equals(follower.get("repl-49")) && follower.getBatch(MyKeyRange.all(), false, 0).size() == 50);
+            
+            leader.put("repl-00", "after");
+            leader.delete("repl-01");
+            leader.write(new MyWriteBatch().put("repl-50", "batched").delete("repl-02"));
+            String position = leader.getReplicationPosition();
+            assertTest("Writes stream to the follower", follower.awaitReplicationPosition(position, 10_000)
+                && "after".equals(follower.get("repl-00")) && follower.get("repl-01") == null
+                && follower.get("repl-02") == null && "batched".equals(follower.get("repl-50"))
+                && follower.getSnapshotsLoaded() == 1 && follower.getRecordsApplied() == 3);
+            long session = MyReplicationLog.parsePosition(position)[0];
+            assertTest("Unreached positions time out", !follower.awaitReplicationPosition(
+                MyReplicationLog.position(session, Long.MAX_VALUE), 50)
+                && !follower.awaitReplicationPosition(MyReplicationLog.position(session + 1, 1), 50));
+            
+            boolean rejected = false;
+            try {
+                follower.put("repl-00", "on follower");
+            } catch (UnsupportedOperationException e) {
+                rejected = true;
+            }
+            assertTest("Followers reject writes", rejected && "after".equals(follower.get("repl-00")));
+            
+            // Bulk loads skip the WAL, so the follower has to reload from a snapshot
+            leader.bulkLoad(Collections.<Map.Entry<String, String>>singletonList(
+                new AbstractMap.SimpleImmutableEntry<>("repl-bulk", "loaded")).iterator());
+            assertTest("Bulk loads reach the follower", follower.awaitReplicationPosition(
+                    leader.getReplicationPosition(), 10_000) && follower.getSnapshotsLoaded() == 2
+                && "loaded".equals(follower.get("repl-bulk")) && "batched".equals(follower.get("repl-50")));
+            
+            leader.put("repl-lag", "x");
+            follower.awaitReplicationPosition(leader.getReplicationPosition(), 10_000);
+            String leaderText = leader.getMetricsText();
+            String followerText = follower.getMetricsText();
+            assertTest("Replication metrics", leaderText.contains("kvdb_replication_followers 1")
+                && leaderText.contains("kvdb_replication_snapshots_sent_total 2")
+                && followerText.contains("kvdb_replication_connected 1")
+                && followerText.contains("kvdb_replication_snapshots_loaded_total 2")
+                && follower.getReplicationLagMillis() < 10_000);
+        } finally {
+            if (follower != null) {
+                follower.gracefulClose();
+                follower.cleanup();
+            }
+            if (server != null) {
+                server.stop();
+            }
+            leader.gracefulClose();
+            leader.cleanup();
+        }
+    }
+    
     public static void main(String[] args) {
         try {
             System.out.println("Starting test cases...");
+            // Small memtables so the tests below go through many flushes
+            System.setProperty("kvdb.memtable.maxRecords", "10");
             cleanupDataDir();
             
             testBasicOperations();
@@ -359,10 +1969,33 @@ public class MyTestCases {
             testHighLoad();
             testConcurrentAccess();
             testBatchOperations();
+            testCompaction();
+            testBloomFilter();
+            testSSTableFormat();
+            testBackgroundFlush();
+            testWalGroupCommit();
+            testWalRecovery();
+            testBlockCache();
+            testRowCache();
+            testMemTableSizing();
+            testArenaMemTable();
+            testSnapshotReads();
+            testRangeScan();
+            testPagedScans();
+            testCompression();
+            testMultiGet();
+            testWriteBatch();
+            testBulkLoad();
+            testMetrics();
+            testHttpExecutor();
+            testBinaryProtocol();
+            testLoadGenerator();
+            testShardedEngine();
+            testReplication();
             
             System.out.println(GREEN + "\nAll tests passed successfully!" + RESET);
             
-        } catch (AssertionError | InterruptedException e) {
+        } catch (AssertionError | InterruptedException | IOException e) {
             System.out.println(RED + "\nTests failed: " + e.getMessage() + RESET);
             System.exit(1);
         }
@@ -1,89 +1,583 @@
 package com.andrey;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
 
+/**
+ * The log is split into segments named {@code <filename>.<n>}. Each memtable writes to its own
+ * segment; {@link #rotate()} starts a new one when a memtable is handed off for flushing, and
+ * the old segments are deleted once that flush has completed. A plain {@code <filename>} left
+ * by older versions is replayed before any segment.
+ *
+ * Segment layout: [int magic][byte version] followed by records of
+ * [int payloadLength][int crc32c(payload)][payload], where the payload is
+ * [byte operation][int keyLen][key][int valueLen][value], or for a write batch
+ * [byte batch][int count] followed by count such operations. Recovery streams records to the
+ * caller and stops at the first record that is truncated or fails its checksum, which is
+ * what a torn write at the tail of the log looks like. Segments written before the binary
+ * format (comma-separated text lines) have no magic and are still replayed.
+ *
+ * Writes use group commit: callers append their record to a shared buffer and get a sequence
+ * number back, and a single writer thread drains the buffer with one write (plus an fsync,
+ * depending on the {@link SyncMode}) for everything queued since its last pass.
+ */
 public class MyWriteAheadLog {
+    private static final int MAGIC = 0x4D57414C; // "MWAL"
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    // Recovery treats a longer record as corrupt, so nothing longer is ever logged
+    static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+    // An empty batch, [batch][int 0], is the shortest payload; replication logs one as a marker
+    private static final int MIN_PAYLOAD_SIZE = 5;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte OP_BATCH = 3;
+
     private final String logFile;
-    private volatile BufferedWriter writer;
+    private final SyncMode syncMode;
+    private volatile FileChannel channel;
+    private volatile long currentSegment;
     private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition workAvailable = writeLock.newCondition();
+    private final Condition written = writeLock.newCondition();
+    // Records appended since the writer thread's last pass; guarded by writeLock
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appendedSeq;
+    private long writtenSeq;
+    private boolean writing;
+    private boolean closed;
+    private IOException writeError;
+    private final Thread writerThread;
+    private final LongAdder recordsAppended = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder groupWrites = new LongAdder();
+    private final MyHistogram syncTimes = new MyHistogram();
+    // Sees every record as it is appended; set for replication
+    private volatile RecordListener recordListener;
+
+    public enum SyncMode {
+        // Queued for the writer thread; the caller waits for neither the write nor an fsync, and
+        // the log is never fsynced while open
+        ASYNC,
+        // Callers return once their record is in the OS page cache; fsynced at most every
+        // Constants.WAL_SYNC_INTERVAL_MS
+        PERIODIC,
+        // Callers return only after the batch holding their record has been fsynced
+        SYNC
+    }
     
     public MyWriteAheadLog(String filename) throws IOException {
+        this(filename, SyncMode.valueOf(Constants.DEFAULT_WAL_SYNC_MODE));
+    }
+
+    public MyWriteAheadLog(String filename, SyncMode syncMode) throws IOException {
         this.logFile = filename;
+        this.syncMode = syncMode;
         // Create parent directories if they don't exist
         Files.createDirectories(Paths.get(filename).getParent());
-        // Open writer in append mode
-        this.writer = new BufferedWriter(new FileWriter(filename, true));
+        // Never append to a segment left by a previous run; it is replayed by recover()
+        TreeMap<Long, Path> segments = listSegments();
+        this.currentSegment = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        this.channel = openSegment(currentSegment);
+        this.writerThread = new Thread(this::writerLoop, "wal-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
     }
     
     public void logPut(String key, String value) throws IOException {
+        awaitDurable(appendPut(key, value));
+    }
+    
+    public void logDelete(String key) throws IOException {
+        awaitDurable(appendDelete(key));
+    }
+
+    // Queues a record without waiting; pass the returned sequence number to awaitDurable()
+    public long appendPut(String key, String value) throws IOException {
+        return append(encodeRecord(OP_PUT, key, value));
+    }
+
+    public long appendDelete(String key) throws IOException {
+        return append(encodeRecord(OP_DELETE, key, null));
+    }
+
+    // The whole batch becomes one record, so it is written, synced and replayed as a unit
+    public long appendBatch(MyWriteBatch batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeByte(OP_BATCH);
+        payload.writeInt(batch.size());
+        for (LogEntry entry : batch.getEntries()) {
+            writeOperation(payload, entry.getOperation() == Operation.PUT ? OP_PUT : OP_DELETE,
+                entry.getKey(), entry.getValue());
+        }
+        checkRecordSize("Write batch", bytes.size());
+        return append(frameRecord(bytes.toByteArray()));
+    }
+
+    private static byte[] encodeRecord(byte operation, String key, String value) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        long length = 1L + 4 + keyBytes.length + 4 + valueBytes.length;
+        checkRecordSize("Record", length);
+        int payloadLength = (int) length;
+        ByteBuffer record = ByteBuffer.allocate(8 + payloadLength);
+        record.putInt(payloadLength).putInt(0);
+        record.put(operation).putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 8, payloadLength);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static void checkRecordSize(String what, long payloadLength) throws IOException {
+        if (payloadLength > MAX_RECORD_SIZE) {
+            throw new IOException(what + " of " + payloadLength + " bytes exceeds the WAL record limit");
+        }
+    }
+
+    private static void writeOperation(DataOutputStream out, byte operation, String key, String value)
+            throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(operation);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(valueBytes.length);
+        out.write(valueBytes);
+    }
+
+    // Prefixes a batch payload with its length and checksum
+    private static byte[] frameRecord(byte[] payload) {
+        CRC32C crc = new CRC32C();
+        crc.update(payload, 0, payload.length);
+        return ByteBuffer.allocate(8 + payload.length)
+            .putInt(payload.length).putInt((int) crc.getValue()).put(payload).array();
+    }
+
+    private long append(byte[] record) throws IOException {
         writeLock.lock();
         try {
-            String entry = String.format("PUT,%s,%s\n", key, value);
-            writer.write(entry);
-            writer.flush();
+            checkOpen();
+            pending.write(record);
+            recordsAppended.increment();
+            workAvailable.signal();
+            long seq = ++appendedSeq;
+            RecordListener listener = recordListener;
+            if (listener != null) {
+                listener.appended(seq, record);
+            }
+            return seq;
         } finally {
             writeLock.unlock();
         }
     }
-    
-    public void logDelete(String key) throws IOException {
+
+    // Called for each record as it is appended, in sequence order, with the append lock held,
+    // so it must be quick. The record is framed as in a segment: [length][crc32c][payload].
+    public interface RecordListener {
+        void appended(long seq, byte[] record);
+    }
+
+    // Installs the listener and returns the sequence number of the last record it won't see
+    public long setRecordListener(RecordListener listener) {
         writeLock.lock();
         try {
-            String entry = String.format("DELETE,%s\n", key);
-            writer.write(entry);
-            writer.flush();
+            recordListener = listener;
+            return appendedSeq;
         } finally {
             writeLock.unlock();
         }
     }
-    
-    public List<LogEntry> recover() throws IOException {
+
+    // Sequence number of the last record appended in this process
+    public long getAppendedSeq() {
+        writeLock.lock();
+        try {
+            return appendedSeq;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // The operations in one record as passed to a RecordListener, after checking its checksum
+    public static List<LogEntry> decodeRecord(byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        if (record.length < 8 || buffer.getInt() != record.length - 8) {
+            throw new IOException("Malformed WAL record");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(record, 8, record.length - 8);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            throw new IOException("WAL record fails its checksum");
+        }
         List<LogEntry> entries = new ArrayList<>();
+        try {
+            replayPayload(buffer, entries::add);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Malformed WAL record", e);
+        }
+        return entries;
+    }
+
+    // Blocks until the record is as durable as the sync mode promises. ASYNC returns at once.
+    public void awaitDurable(long seq) throws IOException {
+        if (syncMode == SyncMode.ASYNC) {
+            return;
+        }
         writeLock.lock();
         try {
-            try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length >= 2) {
-                        String operation = parts[0];
-                        String key = parts[1];
-                        if ("PUT".equals(operation) && parts.length >= 3) {
-                            entries.add(new LogEntry(Operation.PUT, key, parts[2]));
-                        } else if ("DELETE".equals(operation)) {
-                            entries.add(new LogEntry(Operation.DELETE, key, null));
+            awaitWritten(seq);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void awaitWritten(long seq) throws IOException {
+        while (writtenSeq < seq) {
+            checkOpen();
+            written.awaitUninterruptibly();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (writeError != null) {
+            throw new IOException("WAL write failed", writeError);
+        }
+        if (closed) {
+            throw new IOException("WAL is closed");
+        }
+    }
+
+    private void writerLoop() {
+        long lastSync = System.nanoTime();
+        boolean unsynced = false;
+        long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Constants.WAL_SYNC_INTERVAL_MS);
+        while (true) {
+            byte[] batch;
+            long batchSeq;
+            FileChannel target;
+            writeLock.lock();
+            try {
+                while (pending.size() == 0 && !closed) {
+                    if (unsynced && syncMode == SyncMode.PERIODIC) {
+                        long wait = syncIntervalNanos - (System.nanoTime() - lastSync);
+                        if (wait <= 0) {
+                            break;
                         }
+                        workAvailable.awaitNanos(wait);
+                    } else {
+                        workAvailable.awaitUninterruptibly();
                     }
                 }
+                if (pending.size() == 0 && closed) {
+                    return;
+                }
+                batch = pending.toByteArray();
+                batchSeq = appendedSeq;
+                pending = new ByteArrayOutputStream();
+                target = channel;
+                writing = true;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                if (batch.length > 0) {
+                    bytesWritten.add(batch.length);
+                    groupWrites.increment();
+                }
+                unsynced |= batch.length > 0;
+                if (syncMode == SyncMode.SYNC
+                        || (syncMode == SyncMode.PERIODIC && unsynced && System.nanoTime() - lastSync >= syncIntervalNanos)) {
+                    long syncStart = System.nanoTime();
+                    target.force(false);
+                    lastSync = System.nanoTime();
+                    syncTimes.record(lastSync - syncStart);
+                    unsynced = false;
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            writeLock.lock();
+            try {
+                // A failed group is never reported written, nor is anything after it: each of
+                // those callers wakes up to the error instead
+                if (error != null) {
+                    writeError = error;
+                } else if (writeError == null) {
+                    writtenSeq = batchSeq;
+                }
+                writing = false;
+                written.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    // Waits, holding writeLock, until the writer thread has drained everything appended so far
+    private void drain() throws IOException {
+        while (pending.size() > 0 || writing) {
+            if (writeError != null) {
+                throw new IOException("WAL write failed", writeError);
+            }
+            workAvailable.signal();
+            written.awaitUninterruptibly();
+        }
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        FileChannel segmentChannel = FileChannel.open(segmentPath(segment),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (segmentChannel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).put(VERSION).flip();
+            while (header.hasRemaining()) {
+                segmentChannel.write(header);
+            }
+        }
+        return segmentChannel;
+    }
+    
+    // Streams every logged operation, oldest first, to the consumer and returns how many there were
+    public long recover(Consumer<LogEntry> consumer) throws IOException {
+        writeLock.lock();
+        try {
+            List<Path> files = new ArrayList<>();
+            if (Files.exists(Paths.get(logFile))) {
+                files.add(Paths.get(logFile));
+            }
+            files.addAll(listSegments().values());
+            long count = 0;
+            for (Path file : files) {
+                count += recoverFile(file, consumer);
+            }
+            return count;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private long recoverFile(Path file, Consumer<LogEntry> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile())))) {
+            in.mark(HEADER_SIZE);
+            byte[] header = in.readNBytes(HEADER_SIZE);
+            if (header.length == HEADER_SIZE && ByteBuffer.wrap(header).getInt() == MAGIC) {
+                return recoverBinary(file, in, consumer);
+            }
+            in.reset();
+            return recoverText(in, consumer);
+        }
+    }
+
+    private long recoverBinary(Path file, DataInputStream in, Consumer<LogEntry> consumer) throws IOException {
+        long count = 0;
+        CRC32C crc = new CRC32C();
+        while (true) {
+            byte[] prefix = in.readNBytes(8);
+            if (prefix.length == 0) {
+                return count;
+            }
+            ByteBuffer prefixBuffer = ByteBuffer.wrap(prefix);
+            int payloadLength = prefix.length == 8 ? prefixBuffer.getInt() : -1;
+            if (payloadLength < MIN_PAYLOAD_SIZE || payloadLength > MAX_RECORD_SIZE) {
+                warnCorrupt(file, count);
+                return count;
+            }
+            int expectedCrc = prefixBuffer.getInt();
+            byte[] payload = in.readNBytes(payloadLength);
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            if (payload.length != payloadLength || (int) crc.getValue() != expectedCrc) {
+                warnCorrupt(file, count);
+                return count;
+            }
+
+            count += replayPayload(ByteBuffer.wrap(payload), consumer);
+        }
+    }
+
+    // One record's payload, a single operation or a batch; returns the number of operations
+    private static int replayPayload(ByteBuffer record, Consumer<LogEntry> consumer) {
+        byte operation = record.get();
+        if (operation == OP_BATCH) {
+            int operations = record.getInt();
+            for (int i = 0; i < operations; i++) {
+                replayOperation(record.get(), record, consumer);
+            }
+            return operations;
+        }
+        replayOperation(operation, record, consumer);
+        return 1;
+    }
+
+    private static void replayOperation(byte operation, ByteBuffer record, Consumer<LogEntry> consumer) {
+        String key = readString(record);
+        String value = readString(record);
+        if (operation == OP_PUT) {
+            consumer.accept(new LogEntry(Operation.PUT, key, value));
+        } else if (operation == OP_DELETE) {
+            consumer.accept(new LogEntry(Operation.DELETE, key, null));
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void warnCorrupt(Path file, long validRecords) {
+        System.err.println("WAL " + file + ": stopping replay at corrupt or torn record after "
+            + validRecords + " valid records");
+    }
+
+    // Segments written before the binary format
+    private static long recoverText(InputStream in, Consumer<LogEntry> consumer) throws IOException {
+        long count = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] parts = line.split(",");
+            if (parts.length >= 2) {
+                String operation = parts[0];
+                String key = parts[1];
+                if ("PUT".equals(operation) && parts.length >= 3) {
+                    consumer.accept(new LogEntry(Operation.PUT, key, parts[2]));
+                    count++;
+                } else if ("DELETE".equals(operation)) {
+                    consumer.accept(new LogEntry(Operation.DELETE, key, null));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Switches new writes to a fresh segment and returns the id of the segment just closed
+    public long rotate() throws IOException {
+        writeLock.lock();
+        try {
+            drain();
+            if (syncMode != SyncMode.ASYNC) {
+                // The closed segment must be durable on its own until its memtable is flushed
+                channel.force(false);
             }
-            return entries;
+            channel.close();
+            long closedSegment = currentSegment++;
+            channel = openSegment(currentSegment);
+            return closedSegment;
         } finally {
             writeLock.unlock();
         }
     }
+
+    public long getRecordsAppended() {
+        return recordsAppended.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    // Writer thread passes that wrote at least one record; records per pass is the group size
+    public long getGroupWrites() {
+        return groupWrites.sum();
+    }
+
+    public MyHistogram getSyncTimes() {
+        return syncTimes;
+    }
+
+    // Deletes the legacy log and every segment up to and including the given one
+    public void deleteSegmentsUpTo(long segment) throws IOException {
+        Files.deleteIfExists(Paths.get(logFile));
+        for (Path file : listSegments().headMap(segment, true).values()) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return Paths.get(logFile + "." + segment);
+    }
+
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        Path log = Paths.get(logFile);
+        String prefix = log.getFileName().toString() + ".";
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(log.getParent(), prefix + "*")) {
+            for (Path file : stream) {
+                try {
+                    segments.put(Long.parseLong(file.getFileName().toString().substring(prefix.length())), file);
+                } catch (NumberFormatException e) {
+                    // Skip files that don't match our naming pattern
+                }
+            }
+        }
+        return segments;
+    }
     
     public void gracefulClose() throws IOException {
         writeLock.lock();
         try {
-            writer.close();
+            if (closed) {
+                return;
+            }
+            drain();
+            closed = true;
+            workAvailable.signal();
+            channel.force(false);
+            channel.close();
         } finally {
             writeLock.unlock();
         }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // The current segment's channel; tests close it to make the writer fail
+    FileChannel getChannel() {
+        return channel;
     }
     
     public void cleanup() throws IOException {
         writeLock.lock();
         try {
-            // Close current writer
-            writer.close();
-            // Create new empty file
-            new FileWriter(logFile, false).close();
-            // Reopen writer in append mode
-            writer = new BufferedWriter(new FileWriter(logFile, true));
+            // Close current segment
+            if (!closed) {
+                drain();
+                channel.close();
+            }
+            // Drop every segment, including the current one
+            deleteSegmentsUpTo(Long.MAX_VALUE);
+            // Reopen on a new empty segment
+            if (!closed) {
+                channel = openSegment(currentSegment);
+            }
         } finally {
             writeLock.unlock();
         }
@@ -0,0 +1,37 @@
+package com.andrey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Puts and deletes applied together by {@link MyStorageEngine#write}. A batch is logged as one
+ * WAL record and applied to a single memtable, so after a crash either all of it is recovered
+ * or none of it is. Operations apply in the order they were added; a later one on the same key
+ * wins.
+ */
+public class MyWriteBatch {
+    private final List<MyWriteAheadLog.LogEntry> entries = new ArrayList<>();
+
+    public MyWriteBatch put(String key, String value) {
+        entries.add(new MyWriteAheadLog.LogEntry(MyWriteAheadLog.Operation.PUT, key, value));
+        return this;
+    }
+
+    public MyWriteBatch delete(String key) {
+        entries.add(new MyWriteAheadLog.LogEntry(MyWriteAheadLog.Operation.DELETE, key, null));
+        return this;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    List<MyWriteAheadLog.LogEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+}